@@ -0,0 +1,60 @@
+package ca.vlastier.httpproxy.benchmarks;
+
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+import org.jsoup.parser.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the response body by {@link HttpResponseWrapper#buildResponse()}, for an untouched body and for a parsed DOM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class BuildResponseBenchmark
+{
+	@Param({ "100", "1000" })
+	private int articles;
+
+	private HttpResponseWrapper untouchedResponse;
+	private HttpResponseWrapper domResponse;
+
+	@Setup
+	public void setup()
+	{
+		final String page = Pages.page(articles);
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method("GET").url("https://example.com/").headers(new HttpHeaders()).build();
+
+		untouchedResponse = new StubHttpRequestExecutor(page).executeRequest(request);
+		domResponse = new StubHttpRequestExecutor(page).executeRequest(request);
+		domResponse.setDomBody(Parser.parse(page, request.getUrl()));
+	}
+
+	@Benchmark
+	public Object untouchedBody()
+	{
+		return untouchedResponse.buildResponse().getBody();
+	}
+
+	@Benchmark
+	public Object domBody()
+	{
+		return domResponse.buildResponse().getBody();
+	}
+}
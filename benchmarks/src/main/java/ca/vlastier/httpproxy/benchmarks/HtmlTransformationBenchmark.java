@@ -0,0 +1,67 @@
+package ca.vlastier.httpproxy.benchmarks;
+
+import ca.vlastier.httpproxy.HttpProxyService;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.configuration.ResponseConditionConfigurator;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * changeAllHtmlElements, streamed or not, followed by building the response, on pages of about 60KB and 600KB.
+ * A streamed plain tag selector is applied while streaming; a css selector or a change which isn't streamed needs the whole DOM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class HtmlTransformationBenchmark
+{
+	@Param({ "100", "1000" })
+	private int articles;
+
+	@Param({ "a", "main a" })
+	private String selector;
+
+	@Param({ "true", "false" })
+	private boolean streamed;
+
+	private HttpProxyService service;
+
+	@Setup
+	public void setup()
+	{
+		final Predicate<Element> filter = a -> a.attr("href").startsWith("https://");
+		final Consumer<Element> action = a -> a.attr("rel", "nofollow");
+		final ResponseConditionConfigurator configurator = HttpProxyService.configure(new StubHttpRequestExecutor(Pages.page(articles)))
+				.anyResponse();
+		service = (streamed ? configurator.changeAllHtmlElementsStreamed(selector, filter, action)
+				: configurator.changeAllHtmlElements(selector, filter, action))
+				.appendHtmlElementToBody("div", () -> "<b>banner</b>")
+				.build();
+	}
+
+	@Benchmark
+	public Object transformAndBuildResponse()
+	{
+		return service.surf(HttpRequestWrapper.builder().method("GET").url("https://example.com/").headers(new HttpHeaders()).build())
+				.buildResponse()
+				.getBody();
+	}
+}
@@ -0,0 +1,40 @@
+package ca.vlastier.httpproxy.benchmarks;
+
+/**
+ * Synthetic but realistically shaped pages: head with scripts and styles, navigation, articles with links and images, footer.
+ */
+public final class Pages
+{
+	private Pages()
+	{
+	}
+
+	public static String page(final int articles)
+	{
+		final StringBuilder html = new StringBuilder(articles * 600);
+		html.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"utf-8\">\n<title>Benchmark page</title>\n")
+				.append("<link rel=\"stylesheet\" href=\"/static/main.css\">\n")
+				.append("<style>body { font-family: sans-serif; } .article > h2 { color: #333; }</style>\n")
+				.append("<script>window.config = { items: '<div>not a tag</div>', count: ").append(articles).append(" };</script>\n")
+				.append("</head>\n<body>\n<header><nav><ul>");
+		for (int i = 0; i < 20; i++)
+		{
+			html.append("<li><a href=\"/section/").append(i).append("\">Section ").append(i).append("</a></li>");
+		}
+		html.append("</ul></nav></header>\n<main>\n");
+		for (int i = 0; i < articles; i++)
+		{
+			html.append("<div class=\"article\" id=\"article-").append(i).append("\">\n")
+					.append("  <h2>Article ").append(i).append(" title</h2>\n")
+					.append("  <img src=\"/images/").append(i).append(".jpg\" alt=\"image ").append(i).append("\">\n")
+					.append("  <p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. ")
+					.append("<a href=\"https://external.example.com/").append(i).append("\">external link</a> and ")
+					.append("<a href=\"/local/").append(i).append("\">local link</a>.</p>\n")
+					.append("  <span class=\"meta\">posted &amp; shared ").append(i).append(" times</span>\n")
+					.append("</div>\n");
+		}
+		html.append("</main>\n<footer><div class=\"copyright\">&copy; benchmark</div></footer>\n")
+				.append("<script src=\"/static/main.js\"></script>\n</body>\n</html>\n");
+		return html.toString();
+	}
+}
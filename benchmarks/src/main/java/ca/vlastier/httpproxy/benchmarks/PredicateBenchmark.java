@@ -0,0 +1,82 @@
+package ca.vlastier.httpproxy.benchmarks;
+
+import ca.vlastier.httpproxy.HttpProxyService;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+import ca.vlastier.httpproxy.configuration.RequestCondition;
+import ca.vlastier.httpproxy.configuration.RequestTransformationConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the request predicates created by the configurator: 100 rules of the same kind, none of them is indexable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class PredicateBenchmark
+{
+	private static final int RULE_COUNT = 100;
+
+	@Param({ "urlRegex", "headerWithValue", "headerPresence" })
+	private String predicate;
+
+	private HttpProxyService service;
+	private HttpHeaders requestHeaders;
+
+	@Setup
+	public void setup()
+	{
+		RequestCondition conditions = HttpProxyService.configure(new StubHttpRequestExecutor(Pages.page(10)));
+		RequestTransformationConfigurator configured = null;
+		for (int i = 0; i < RULE_COUNT; i++)
+		{
+			switch (predicate)
+			{
+				case "urlRegex":
+					configured = conditions.get("/api/v[0-9]+/resource" + i + "(/|$)").setRequestHeader("X-Rule", "rule" + i);
+					break;
+				case "headerWithValue":
+					configured = conditions.requestHasHeaderWithValue("X-Header-" + i % 20, "value" + i).setRequestHeader("X-Rule", "rule" + i);
+					break;
+				default:
+					configured = conditions.requestHasHeader("X-Missing-" + i).setRequestHeader("X-Rule", "rule" + i);
+			}
+			conditions = configured;
+		}
+		service = configured.build();
+
+		requestHeaders = new HttpHeaders();
+		for (int i = 0; i < 20; i++)
+		{
+			requestHeaders.add("X-Header-" + i, "Some Mixed Case Header Value " + i);
+		}
+	}
+
+	@Benchmark
+	public HttpResponseWrapper surf()
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.putAll(requestHeaders);
+		return service.surf(HttpRequestWrapper.builder()
+				.method("GET")
+				.url("https://api.example.com/api/v2/resource50/items?page=3")
+				.headers(headers)
+				.build());
+	}
+}
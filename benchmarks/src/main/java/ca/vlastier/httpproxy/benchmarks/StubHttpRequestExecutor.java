@@ -0,0 +1,44 @@
+package ca.vlastier.httpproxy.benchmarks;
+
+import ca.vlastier.httpproxy.HttpRequestExecutor;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+import ca.vlastier.httpproxy.RawBody;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers every request with the same body, so benchmarks measure the proxy and not the network.
+ * A new wrapper is returned each time because response transformations modify it.
+ */
+public class StubHttpRequestExecutor implements HttpRequestExecutor
+{
+	private final HttpHeaders headers;
+	private final byte[] body;
+
+	public StubHttpRequestExecutor(final String body)
+	{
+		this.headers = new HttpHeaders();
+		this.headers.setContentType(new MediaType(MediaType.TEXT_HTML, StandardCharsets.UTF_8));
+		this.headers.setCacheControl("max-age=60");
+		this.body = body.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequest(final HttpRequestWrapper request)
+	{
+		final HttpHeaders responseHeaders = new HttpHeaders();
+		responseHeaders.putAll(headers);
+
+		// like the real executors, the body is received as bytes and decoded only if a rule needs it
+		return HttpResponseWrapper.builder()
+				.headers(responseHeaders)
+				.httpStatus(HttpStatus.OK)
+				.rawBody(RawBody.of(body, responseHeaders))
+				.originalRequest(request)
+				.build();
+	}
+}
@@ -0,0 +1,64 @@
+package ca.vlastier.httpproxy.benchmarks;
+
+import ca.vlastier.httpproxy.HttpProxyService;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+import ca.vlastier.httpproxy.configuration.RequestCondition;
+import ca.vlastier.httpproxy.configuration.RequestTransformationConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anchored patterns are indexed by host and path; unanchored ones are found by the literal text they require.
+ * Anchored patterns can be indexed by host and path; unanchored ones are tested one by one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class SurfBenchmark
+{
+	@Param({ "10", "1000", "10000" })
+	private int ruleCount;
+
+	@Param({ "anchored", "unanchored" })
+	private String urlPatterns;
+
+	private HttpProxyService service;
+	private String url;
+
+	@Setup
+	public void setup()
+	{
+		RequestCondition conditions = HttpProxyService.configure(new StubHttpRequestExecutor(Pages.page(10)));
+		RequestTransformationConfigurator configured = null;
+		for (int i = 0; i < ruleCount; i++)
+		{
+			final String pattern = "host" + i + "\\.example\\.com/path/";
+			configured = conditions.get(urlPatterns.equals("anchored") ? "^https://" + pattern : pattern).setRequestHeader("X-Rule", "rule" + i);
+			conditions = configured;
+		}
+		service = configured.build();
+		url = "https://host" + ruleCount / 2 + ".example.com/path/resource?query=1";
+	}
+
+	@Benchmark
+	public HttpResponseWrapper surf()
+	{
+		return service.surf(HttpRequestWrapper.builder().method("GET").url(url).headers(new HttpHeaders()).build());
+	}
+}
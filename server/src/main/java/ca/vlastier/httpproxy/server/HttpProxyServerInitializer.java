@@ -0,0 +1,124 @@
+package ca.vlastier.httpproxy.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.flow.FlowControlHandler;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Sets up the pipeline of an accepted connection. Whatever the protocol, requests reach the {@link ProxyRequestHandler} as aggregated HTTP/1.1
+ * messages: HTTP/2 streams are multiplexed on child channels converting their frames.
+ */
+class HttpProxyServerInitializer extends ChannelInitializer<SocketChannel>
+{
+	private final ProxyRequestHandler requestHandler;
+	private final int maxRequestBodySize;
+	private final SslContext sslContext;
+
+	HttpProxyServerInitializer(final ProxyRequestHandler requestHandler, final int maxRequestBodySize, final SslContext sslContext)
+	{
+		this.requestHandler = requestHandler;
+		this.maxRequestBodySize = maxRequestBodySize;
+		this.sslContext = sslContext;
+	}
+
+	@Override
+	protected void initChannel(final SocketChannel channel)
+	{
+		if (sslContext != null)
+		{
+			channel.pipeline().addLast(sslContext.newHandler(channel.alloc()), new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1)
+			{
+				@Override
+				protected void configurePipeline(final ChannelHandlerContext context, final String protocol)
+				{
+					if (ApplicationProtocolNames.HTTP_2.equals(protocol))
+					{
+						context.pipeline().addLast(http2Handler());
+					}
+					else
+					{
+						addHttp1Handlers(context.pipeline().addLast(new HttpServerCodec()));
+					}
+				}
+			});
+		}
+		else
+		{
+			final HttpServerCodec http1Codec = new HttpServerCodec();
+			final HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(http1Codec,
+					protocol -> AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol) ?
+							new Http2ServerUpgradeCodec(Http2FrameCodecBuilder.forServer().build(), new Http2MultiplexHandler(streamInitializer())) :
+							null,
+					maxRequestBodySize);
+			channel.pipeline().addLast(new CleartextHttp2ServerUpgradeHandler(http1Codec, upgradeHandler, http2Handler()),
+					new Http1Fallback());
+		}
+	}
+
+	/**
+	 * handlers of a connection speaking HTTP/2 from the start: with prior knowledge or after ALPN
+	 */
+	private ChannelHandler http2Handler()
+	{
+		return new ChannelInitializer<Channel>()
+		{
+			@Override
+			protected void initChannel(final Channel channel)
+			{
+				channel.pipeline().addLast(Http2FrameCodecBuilder.forServer().build(), new Http2MultiplexHandler(streamInitializer()));
+			}
+		};
+	}
+
+	private ChannelHandler streamInitializer()
+	{
+		return new ChannelInitializer<Channel>()
+		{
+			@Override
+			protected void initChannel(final Channel stream)
+			{
+				addHttp1Handlers(stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true)));
+			}
+		};
+	}
+
+	private void addHttp1Handlers(final ChannelPipeline pipeline)
+	{
+		pipeline.addLast(new HttpObjectAggregator(maxRequestBodySize), new FlowControlHandler(), requestHandler);
+	}
+
+	/**
+	 * Completes the pipeline of a cleartext connection which stays on HTTP/1.1, once its first request is not an upgrade to HTTP/2.
+	 */
+	private class Http1Fallback extends SimpleChannelInboundHandler<HttpMessage>
+	{
+		@Override
+		protected void channelRead0(final ChannelHandlerContext context, final HttpMessage message)
+		{
+			final ChannelPipeline pipeline = context.pipeline();
+			addHttp1Handlers(pipeline);
+			pipeline.remove(this);
+			context.fireChannelRead(ReferenceCountUtil.retain(message));
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package ca.vlastier.httpproxy.server;
+
+import ca.vlastier.httpproxy.HttpProxyService;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded server passing the requests it accepts to an {@link HttpProxyService} and writing its responses back, without a servlet stack.
+ * <p>
+ * Requests and responses are converted straight from and to Netty buffers. Cleartext connections speak HTTP/1.1, HTTP/2 with prior knowledge
+ * and HTTP/2 upgraded from HTTP/1.1 (h2c). TLS connections, when an {@link SslContext} is given, negotiate HTTP/2 or HTTP/1.1 with ALPN: the
+ * context has to advertise the {@code h2} and {@code http/1.1} protocols.
+ * <p>
+ * The url of the upstream request is the request target itself when it is absolute (forward proxy), otherwise the target appended to the
+ * {@code upstreamBaseUrl} (reverse proxy) or, without one, to the scheme and Host of the request.
+ * <p>
+ * Requests are handled with {@link HttpProxyService#surfAsync}. The event loop threads must not block: the service has to be configured with
+ * an {@link ca.vlastier.httpproxy.AsyncHttpRequestExecutor} or with a surf executor, e.g. virtual threads. Streamed upstream bodies are read on
+ * the {@code bodyStreamExecutor}.
+ */
+@Slf4j
+public class NettyHttpProxyServer implements AutoCloseable
+{
+	private static final int DEFAULT_MAX_REQUEST_BODY_SIZE = 10 * 1024 * 1024;
+
+	private final HttpProxyService service;
+	private final String host;
+	private final int port;
+	private final String upstreamBaseUrl;
+	private final int ioThreads;
+	private final int maxRequestBodySize;
+	private final SslContext sslContext;
+	private final Executor bodyStreamExecutor;
+
+	private EventLoopGroup acceptorGroup;
+	private EventLoopGroup ioGroup;
+	// created by the server when no body stream executor is given, and shut down with it
+	private ExecutorService ownBodyStreamExecutor;
+	private Channel serverChannel;
+
+	/**
+	 * @param service            service handling the requests
+	 * @param host               address to listen on, all addresses by default
+	 * @param port               port to listen on, 0 for a free port. See {@link #getPort()}
+	 * @param upstreamBaseUrl    scheme, host and optional path prefix of the upstream server, e.g. {@code https://example.com}. When not set the
+	 *                           upstream server is taken from the request
+	 * @param ioThreads          number of event loop threads handling the connections, 0 (the default) for twice the number of cores
+	 * @param maxRequestBodySize maximum size of a request body, 10 MiB by default. Larger requests are answered with 413
+	 * @param sslContext         TLS configuration, none by default
+	 * @param bodyStreamExecutor executor reading streamed upstream bodies, whose reads block. By default a cached pool of daemon threads, shut
+	 *                           down when the server is closed
+	 */
+	@lombok.Builder
+	private NettyHttpProxyServer(@NonNull final HttpProxyService service, final String host, final int port, final String upstreamBaseUrl,
+			final int ioThreads, final int maxRequestBodySize, final SslContext sslContext, final Executor bodyStreamExecutor)
+	{
+		if (port < 0 || ioThreads < 0 || maxRequestBodySize < 0)
+		{
+			throw new IllegalArgumentException("port, number of threads and maximum body size can't be negative");
+		}
+		this.service = service;
+		this.host = host;
+		this.port = port;
+		this.upstreamBaseUrl = upstreamBaseUrl;
+		this.ioThreads = ioThreads;
+		this.maxRequestBodySize = maxRequestBodySize > 0 ? maxRequestBodySize : DEFAULT_MAX_REQUEST_BODY_SIZE;
+		this.sslContext = sslContext;
+		this.bodyStreamExecutor = bodyStreamExecutor;
+	}
+
+	/**
+	 * Binds the server and returns once it accepts connections.
+	 */
+	public synchronized NettyHttpProxyServer start() throws InterruptedException
+	{
+		if (serverChannel != null)
+		{
+			throw new IllegalStateException("server already started");
+		}
+		acceptorGroup = new NioEventLoopGroup(1);
+		ioGroup = new NioEventLoopGroup(ioThreads);
+		if (bodyStreamExecutor == null)
+		{
+			ownBodyStreamExecutor = Executors.newCachedThreadPool(new DefaultThreadFactory("httpproxy-body-stream", true));
+		}
+
+		final ProxyRequestHandler requestHandler = new ProxyRequestHandler(service, upstreamBaseUrl, sslContext != null,
+				bodyStreamExecutor != null ? bodyStreamExecutor : ownBodyStreamExecutor);
+		final ServerBootstrap bootstrap = new ServerBootstrap().group(acceptorGroup, ioGroup)
+				.channel(NioServerSocketChannel.class)
+				.option(ChannelOption.SO_BACKLOG, 1024)
+				.childOption(ChannelOption.TCP_NODELAY, true)
+				.childHandler(new HttpProxyServerInitializer(requestHandler, maxRequestBodySize, sslContext));
+		try
+		{
+			serverChannel = bootstrap.bind(host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port)).sync().channel();
+		}
+		catch (final InterruptedException | RuntimeException e)
+		{
+			shutdownEventLoops();
+			throw e;
+		}
+		log.info("http proxy server listening on {}", serverChannel.localAddress());
+		return this;
+	}
+
+	/**
+	 * @return the port the server listens on, the chosen one when started with port 0
+	 */
+	public int getPort()
+	{
+		if (serverChannel == null)
+		{
+			throw new IllegalStateException("server not started");
+		}
+		return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (serverChannel != null)
+		{
+			serverChannel.close().syncUninterruptibly();
+			serverChannel = null;
+		}
+		shutdownEventLoops();
+	}
+
+	private void shutdownEventLoops()
+	{
+		if (acceptorGroup != null)
+		{
+			acceptorGroup.shutdownGracefully().syncUninterruptibly();
+			ioGroup.shutdownGracefully().syncUninterruptibly();
+			acceptorGroup = null;
+			ioGroup = null;
+		}
+		if (ownBodyStreamExecutor != null)
+		{
+			ownBodyStreamExecutor.shutdownNow();
+			ownBodyStreamExecutor = null;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package ca.vlastier.httpproxy.server;
+
+import ca.vlastier.httpproxy.HttpProxyService;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Converts an aggregated request into an {@link HttpRequestWrapper}, surfs it and writes the resulting response: its body is written straight
+ * into the response buffer, see {@link HttpResponseWrapper#writeTo(java.io.OutputStream)}, or streamed when the upstream body is streamed.
+ * <p>
+ * A connection handles one request at a time: reading stops when a request is received and resumes once its response is written, so that
+ * responses to pipelined HTTP/1.1 requests are written in the order of the requests. Requests already decoded meanwhile wait in the
+ * {@link io.netty.handler.flow.FlowControlHandler} preceding this handler.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+class ProxyRequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
+{
+	/**
+	 * headers describing a single connection, which are not forwarded. Host and Content-Length are set again from the url and the body which
+	 * are sent
+	 */
+	private static final Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "proxy-authenticate",
+			"proxy-authorization", "transfer-encoding", "te", "trailer", "upgrade", "http2-settings", "content-length", "host");
+
+	private static final String HTTP2_CONVERSION_HEADERS_PREFIX = "x-http2-";
+
+	private static final int BODY_CHUNK_SIZE = 8192;
+
+	private final HttpProxyService service;
+	private final String upstreamBaseUrl;
+	private final String scheme;
+	private final Executor bodyStreamExecutor;
+
+	ProxyRequestHandler(final HttpProxyService service, final String upstreamBaseUrl, final boolean secure, final Executor bodyStreamExecutor)
+	{
+		this.service = service;
+		this.bodyStreamExecutor = bodyStreamExecutor;
+		this.upstreamBaseUrl = upstreamBaseUrl != null && upstreamBaseUrl.endsWith("/") ?
+				upstreamBaseUrl.substring(0, upstreamBaseUrl.length() - 1) :
+				upstreamBaseUrl;
+		this.scheme = secure ? "https" : "http";
+	}
+
+	@Override
+	protected void channelRead0(final ChannelHandlerContext context, final FullHttpRequest request)
+	{
+		// the next request is read once the response to this one is written, see completeExchange
+		context.channel().config().setAutoRead(false);
+		if (!request.decoderResult().isSuccess())
+		{
+			writeError(context, HttpResponseStatus.BAD_REQUEST, false);
+			return;
+		}
+
+		final boolean keepAlive = HttpUtil.isKeepAlive(request);
+		final HttpRequestWrapper requestWrapper = toRequestWrapper(request);
+		final CompletionStage<HttpResponseWrapper> response;
+		try
+		{
+			response = service.surfAsync(requestWrapper);
+		}
+		catch (final RuntimeException e)
+		{
+			// request rules and synchronous executors fail before any stage is returned
+			log.error("Request {} {} failed", requestWrapper.getMethod(), requestWrapper.getUrl(), e);
+			writeError(context, HttpResponseStatus.BAD_GATEWAY, keepAlive);
+			return;
+		}
+		response.whenComplete((responseWrapper, error) -> {
+			if (error != null)
+			{
+				log.error("Request {} {} failed", requestWrapper.getMethod(), requestWrapper.getUrl(), error);
+				writeError(context, HttpResponseStatus.BAD_GATEWAY, keepAlive);
+			}
+			else
+			{
+				try
+				{
+					writeResponse(context, responseWrapper, keepAlive);
+				}
+				catch (final RuntimeException e)
+				{
+					log.error("Response of {} {} can't be written", requestWrapper.getMethod(), requestWrapper.getUrl(), e);
+					writeError(context, HttpResponseStatus.BAD_GATEWAY, keepAlive);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause)
+	{
+		log.warn("Closing connection from {}", context.channel().remoteAddress(), cause);
+		context.close();
+	}
+
+	private HttpRequestWrapper toRequestWrapper(final FullHttpRequest request)
+	{
+		final org.springframework.http.HttpHeaders headers = new org.springframework.http.HttpHeaders();
+		for (final Map.Entry<String, String> header : request.headers())
+		{
+			final String name = header.getKey().toLowerCase(Locale.ROOT);
+			if (!HOP_BY_HOP_HEADERS.contains(name) && !name.startsWith(HTTP2_CONVERSION_HEADERS_PREFIX))
+			{
+				headers.add(header.getKey(), header.getValue());
+			}
+		}
+
+		final ByteBuf content = request.content();
+		return HttpRequestWrapper.builder()
+				.method(request.method().name())
+				.url(upstreamUrl(request))
+				.headers(headers)
+				.body(content.isReadable() ? ByteBufUtil.getBytes(content) : null)
+				.build();
+	}
+
+	private String upstreamUrl(final FullHttpRequest request)
+	{
+		final String target = request.uri();
+		if (target.startsWith("http://") || target.startsWith("https://"))
+		{
+			return target;
+		}
+		if (upstreamBaseUrl != null)
+		{
+			return upstreamBaseUrl + target;
+		}
+
+		final String requestScheme = request.headers().get("x-http2-scheme", scheme);
+		return URI.create(requestScheme + "://" + request.headers().get(HttpHeaderNames.HOST) + target).toString();
+	}
+
+	private void writeResponse(final ChannelHandlerContext context, final HttpResponseWrapper responseWrapper, final boolean keepAlive)
+	{
+		if (responseWrapper.getBodyStream() != null)
+		{
+			writeStreamedResponse(context, responseWrapper.buildResponse(), keepAlive);
+			return;
+		}
+
+		// the body is serialized straight into the buffer, without building it as a string first
+		final ByteBuf content = context.alloc().buffer();
+		boolean written = false;
+		try (final ByteBufOutputStream out = new ByteBufOutputStream(content))
+		{
+			responseWrapper.writeTo(out);
+			written = true;
+		}
+		catch (final IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		finally
+		{
+			if (!written)
+			{
+				content.release();
+			}
+		}
+
+		final DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+				HttpResponseStatus.valueOf(responseWrapper.getHttpStatus().value()), content);
+		copyHeaders(responseWrapper.getHeaders(), response.headers());
+		HttpUtil.setContentLength(response, content.readableBytes());
+		HttpUtil.setKeepAlive(response, keepAlive);
+		completeExchange(context, context.writeAndFlush(response), keepAlive);
+	}
+
+	private void writeStreamedResponse(final ChannelHandlerContext context, final ResponseEntity<Object> responseEntity, final boolean keepAlive)
+	{
+		final InputStream bodyStream;
+		try
+		{
+			bodyStream = ((InputStreamResource) responseEntity.getBody()).getInputStream();
+		}
+		catch (final IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseEntity.getStatusCodeValue()));
+		copyHeaders(responseEntity.getHeaders(), response.headers());
+		HttpUtil.setTransferEncodingChunked(response, true);
+		HttpUtil.setKeepAlive(response, keepAlive);
+		context.writeAndFlush(response);
+		pumpBody(context, bodyStream, keepAlive);
+	}
+
+	/**
+	 * Reads the next chunk of a streamed body and writes it. Reads block, so they are made on the body stream executor, never on the event loop.
+	 * The next chunk is read once the previous one is written, so a slow client doesn't make the whole body pile up in memory.
+	 */
+	private void pumpBody(final ChannelHandlerContext context, final InputStream bodyStream, final boolean keepAlive)
+	{
+		try
+		{
+			bodyStreamExecutor.execute(() -> writeNextChunk(context, bodyStream, keepAlive));
+		}
+		catch (final RejectedExecutionException e)
+		{
+			log.warn("Body of the response to {} can't be read, the server is closing", context.channel().remoteAddress());
+			abortStreamedResponse(context, bodyStream);
+		}
+	}
+
+	private void writeNextChunk(final ChannelHandlerContext context, final InputStream bodyStream, final boolean keepAlive)
+	{
+		final ByteBuf chunk = context.alloc().buffer(BODY_CHUNK_SIZE);
+		final int read;
+		try
+		{
+			read = chunk.writeBytes(bodyStream, BODY_CHUNK_SIZE);
+		}
+		catch (final IOException | RuntimeException e)
+		{
+			chunk.release();
+			// the headers are already sent: the client learns about the failure from the connection being closed
+			log.error("Body of the response to {} can't be read", context.channel().remoteAddress(), e);
+			abortStreamedResponse(context, bodyStream);
+			return;
+		}
+
+		if (read < 0)
+		{
+			chunk.release();
+			closeQuietly(bodyStream);
+			completeExchange(context, context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT), keepAlive);
+			return;
+		}
+		context.writeAndFlush(new DefaultHttpContent(chunk)).addListener(write -> {
+			if (write.isSuccess())
+			{
+				pumpBody(context, bodyStream, keepAlive);
+			}
+			else
+			{
+				closeQuietly(bodyStream);
+			}
+		});
+	}
+
+	private static void abortStreamedResponse(final ChannelHandlerContext context, final InputStream bodyStream)
+	{
+		closeQuietly(bodyStream);
+		context.close();
+	}
+
+	private static void closeQuietly(final InputStream bodyStream)
+	{
+		try
+		{
+			bodyStream.close();
+		}
+		catch (final IOException e)
+		{
+			log.debug("Body stream can't be closed", e);
+		}
+	}
+
+	private static void copyHeaders(final org.springframework.http.HttpHeaders from, final HttpHeaders to)
+	{
+		for (final Map.Entry<String, List<String>> header : from.entrySet())
+		{
+			if (!HOP_BY_HOP_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT)))
+			{
+				to.add(header.getKey(), header.getValue());
+			}
+		}
+	}
+
+	private static void writeError(final ChannelHandlerContext context, final HttpResponseStatus status, final boolean keepAlive)
+	{
+		final DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+				Unpooled.copiedBuffer(status.reasonPhrase(), StandardCharsets.US_ASCII));
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain;charset=US-ASCII");
+		HttpUtil.setContentLength(response, response.content().readableBytes());
+		HttpUtil.setKeepAlive(response, keepAlive);
+		completeExchange(context, context.writeAndFlush(response), keepAlive);
+	}
+
+	/**
+	 * once the response is written, closes the connection or reads the next request
+	 */
+	private static void completeExchange(final ChannelHandlerContext context, final ChannelFuture write, final boolean keepAlive)
+	{
+		if (keepAlive)
+		{
+			write.addListener(future -> context.channel().config().setAutoRead(true));
+		}
+		else
+		{
+			write.addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package ca.vlastier.httpproxy.server;
+
+import ca.vlastier.httpproxy.AsyncHttpRequestExecutor;
+import ca.vlastier.httpproxy.HttpProxyService;
+import ca.vlastier.httpproxy.HttpRequestExecutor;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+import ca.vlastier.httpproxy.RawBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NettyHttpProxyServerTest
+{
+	private static final String HTML = "<html><head></head><body><h1>caf\u00e9</h1></body></html>";
+
+	private final AtomicReference<HttpRequestWrapper> upstreamRequest = new AtomicReference<>();
+	private NettyHttpProxyServer server;
+
+	@AfterEach
+	public void tearDown()
+	{
+		if (server != null)
+		{
+			server.close();
+		}
+	}
+
+	@Test
+	public void shouldTransformResponseOverHttp1() throws Exception
+	{
+		start(request -> htmlResponse());
+
+		final HttpResponse<String> response = send(HttpClient.Version.HTTP_1_1, HttpRequest.newBuilder(uri("/page?q=1")).GET());
+
+		assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+		assertEquals(200, response.statusCode());
+		assertTrue(response.body().contains("<h1>caf\u00e9!</h1>"), response.body());
+		assertEquals("https://upstream.example.com/page?q=1", upstreamRequest.get().getUrl());
+	}
+
+	@Test
+	public void shouldServeHttp2AfterUpgrade() throws Exception
+	{
+		start(request -> htmlResponse());
+
+		final HttpResponse<String> response = send(HttpClient.Version.HTTP_2, HttpRequest.newBuilder(uri("/page")).GET());
+
+		assertEquals(HttpClient.Version.HTTP_2, response.version());
+		assertEquals(200, response.statusCode());
+		assertEquals("text/html;charset=UTF-8", response.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElse(null));
+	}
+
+	@Test
+	public void shouldForwardRequestBodyAndEndToEndHeadersOnly() throws Exception
+	{
+		start(request -> HttpResponseWrapper.builder()
+				.httpStatus(HttpStatus.CREATED)
+				.headers(new HttpHeaders())
+				.bodyStream(new ByteArrayInputStream(new byte[] { 1, 2, 3 }))
+				.build());
+
+		final HttpResponse<byte[]> response = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.build()
+				.send(HttpRequest.newBuilder(uri("/items"))
+						.header("X-Custom", "value")
+						.POST(HttpRequest.BodyPublishers.ofString("{\"name\":\"item\"}")).build(), HttpResponse.BodyHandlers.ofByteArray());
+
+		assertEquals(201, response.statusCode());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, response.body());
+		final HttpRequestWrapper forwarded = upstreamRequest.get();
+		assertEquals("POST", forwarded.getMethod());
+		assertArrayEquals("{\"name\":\"item\"}".getBytes(StandardCharsets.UTF_8), (byte[]) forwarded.getBody());
+		assertEquals("value", forwarded.getHeaders().getFirst("X-Custom"));
+		assertNull(forwarded.getHeaders().getFirst(HttpHeaders.HOST));
+		assertNull(forwarded.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH));
+		assertFalse(forwarded.getHeaders().containsKey(HttpHeaders.CONNECTION));
+	}
+
+	@Test
+	public void shouldAnswerBadGatewayWhenUpstreamRequestFails() throws Exception
+	{
+		start(request -> {
+			throw new IllegalStateException("connection refused");
+		});
+
+		final HttpResponse<String> response = send(HttpClient.Version.HTTP_1_1, HttpRequest.newBuilder(uri("/")).GET());
+
+		assertEquals(502, response.statusCode());
+	}
+
+	@Test
+	public void shouldReadStreamedBodyOffTheEventLoop() throws Exception
+	{
+		final byte[] body = new byte[50_000];
+		Arrays.fill(body, (byte) 'x');
+		final Set<String> readingThreads = ConcurrentHashMap.newKeySet();
+		start(request -> HttpResponseWrapper.builder()
+				.httpStatus(HttpStatus.OK)
+				.headers(new HttpHeaders())
+				.bodyStream(new ByteArrayInputStream(body)
+				{
+					@Override
+					public synchronized int read(final byte[] buffer, final int offset, final int length)
+					{
+						readingThreads.add(Thread.currentThread().getName());
+						return super.read(buffer, offset, length);
+					}
+				})
+				.build());
+
+		final HttpResponse<byte[]> response = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.build()
+				.send(HttpRequest.newBuilder(uri("/file")).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+
+		assertArrayEquals(body, response.body());
+		assertFalse(readingThreads.isEmpty());
+		assertTrue(readingThreads.stream().allMatch(name -> name.startsWith("httpproxy-body-stream")), readingThreads::toString);
+	}
+
+	@Test
+	public void shouldWritePipelinedResponsesInRequestOrder() throws Exception
+	{
+		final AsyncHttpRequestExecutor upstream = request -> {
+			final boolean slow = request.getUrl().endsWith("/slow");
+			return CompletableFuture.supplyAsync(() -> textResponse(slow ? "slow-body" : "fast-body"),
+					slow ? CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS) : Runnable::run);
+		};
+		final HttpProxyService service = HttpProxyService.configure(upstream).build();
+		server = NettyHttpProxyServer.builder().service(service).host("localhost").upstreamBaseUrl("https://upstream.example.com/").build().start();
+
+		try (Socket socket = new Socket("localhost", server.getPort()))
+		{
+			socket.setSoTimeout(5000);
+			socket.getOutputStream()
+					.write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\nGET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+			final StringBuilder responses = new StringBuilder();
+			final byte[] buffer = new byte[1024];
+			while (responses.indexOf("slow-body") < 0 || responses.indexOf("fast-body") < 0)
+			{
+				final int read = socket.getInputStream().read(buffer);
+				assertTrue(read > 0, responses::toString);
+				responses.append(new String(buffer, 0, read, StandardCharsets.US_ASCII));
+			}
+			assertTrue(responses.indexOf("slow-body") < responses.indexOf("fast-body"), responses::toString);
+		}
+	}
+
+	private void start(final HttpRequestExecutor upstream) throws InterruptedException
+	{
+		final HttpRequestExecutor recordingUpstream = request -> {
+			upstreamRequest.set(request);
+			return upstream.executeRequest(request);
+		};
+		final HttpProxyService service = HttpProxyService.configure(recordingUpstream)
+				.anyResponse()
+				.changeAllHtmlElements("h1", heading -> heading.text(heading.text() + "!"))
+				.build();
+		server = NettyHttpProxyServer.builder().service(service).host("localhost").upstreamBaseUrl("https://upstream.example.com/").build().start();
+	}
+
+	private URI uri(final String path)
+	{
+		return URI.create("http://localhost:" + server.getPort() + path);
+	}
+
+	private static HttpResponse<String> send(final HttpClient.Version version, final HttpRequest.Builder request)
+			throws IOException, InterruptedException
+	{
+		return HttpClient.newBuilder().version(version).build().send(request.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private static HttpResponseWrapper textResponse(final String body)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, "text/plain;charset=US-ASCII");
+		return HttpResponseWrapper.builder()
+				.headers(headers)
+				.httpStatus(HttpStatus.OK)
+				.rawBody(RawBody.of(body.getBytes(StandardCharsets.US_ASCII), headers))
+				.build();
+	}
+
+	private static HttpResponseWrapper htmlResponse()
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+		return HttpResponseWrapper.builder()
+				.headers(headers)
+				.httpStatus(HttpStatus.OK)
+				.rawBody(RawBody.of(HTML.getBytes(StandardCharsets.UTF_8), headers))
+				.build();
+	}
+}
@@ -0,0 +1,49 @@
+package ca.vlastier.httpproxy;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * {@link HttpRequestExecutor} able to execute requests without blocking the calling thread. Used by {@link HttpProxyService#surfAsync(HttpRequestWrapper)}.
+ * The synchronous methods wait for the asynchronous result, so the executor can be used with {@link HttpProxyService#surf(HttpRequestWrapper)} as well.
+ */
+public interface AsyncHttpRequestExecutor extends HttpRequestExecutor
+{
+	CompletionStage<HttpResponseWrapper> executeRequestAsync(HttpRequestWrapper request);
+
+	/**
+	 * Asynchronous version of {@link #executeRequestStreaming(HttpRequestWrapper)}.
+	 */
+	default CompletionStage<HttpResponseWrapper> executeRequestStreamingAsync(final HttpRequestWrapper request)
+	{
+		return executeRequestAsync(request);
+	}
+
+	@Override
+	default HttpResponseWrapper executeRequest(final HttpRequestWrapper request)
+	{
+		return join(executeRequestAsync(request));
+	}
+
+	@Override
+	default HttpResponseWrapper executeRequestStreaming(final HttpRequestWrapper request)
+	{
+		return join(executeRequestStreamingAsync(request));
+	}
+
+	private static HttpResponseWrapper join(final CompletionStage<HttpResponseWrapper> response)
+	{
+		try
+		{
+			return response.toCompletableFuture().join();
+		}
+		catch (final CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package ca.vlastier.httpproxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounds the memory taken by upstream bodies buffered by an executor, see
+ * {@link RestTemplateHttpRequestExecutorImpl#RestTemplateHttpRequestExecutorImpl(org.springframework.web.client.RestTemplate, BodyBufferLimits)}.
+ * <ul>
+ * <li>bodies up to the in-memory limit of their Content-Type are kept on the heap</li>
+ * <li>larger bodies are written to a temporary file, memory-mapped as a {@link RawBody}: rules still read them, as a stream or decoded as text
+ * when they need to, while the heap only holds what they build from them. The file is deleted right away, its disk space is freed once the
+ * body is garbage collected</li>
+ * <li>bodies over the spill limit are not buffered: they are streamed through as {@link HttpResponseWrapper#getBodyStream()}, untouched by the
+ * rules</li>
+ * </ul>
+ * <pre>{@code
+ * BodyBufferLimits.builder()
+ *         .defaultInMemoryLimit(1024L * 1024)
+ *         .inMemoryLimits(Map.of("text/html", 4L * 1024 * 1024, "image/*", 0L))
+ *         .spillLimit(256L * 1024 * 1024)
+ *         .build()
+ * }</pre>
+ */
+@Slf4j
+public class BodyBufferLimits
+{
+	private static final long DEFAULT_IN_MEMORY_LIMIT = 4 * 1024 * 1024;
+	private static final long DEFAULT_SPILL_LIMIT = 1024 * 1024 * 1024;
+	private static final int COPY_CHUNK_SIZE = 8192;
+
+	// limits by "type/subtype" and by "type" for "type/*", lower cased
+	private final Map<String, Long> limitsByMediaType = new HashMap<>();
+	private final Map<String, Long> limitsByType = new HashMap<>();
+	private final long defaultInMemoryLimit;
+	private final long spillLimit;
+	private final Path spillDirectory;
+
+	/**
+	 * @param inMemoryLimits       maximum size in bytes of the bodies kept on the heap, by content type such as {@code text/html} or
+	 *                             {@code image/*}. Parameters of the content type are ignored
+	 * @param defaultInMemoryLimit maximum size of the bodies of other content types kept on the heap, 4 MiB by default
+	 * @param spillLimit           maximum size of the bodies written to a file, 1 GiB by default, at most {@link Integer#MAX_VALUE}
+	 * @param spillDirectory       directory of the temporary files, the default temporary directory if not set
+	 * @throws IllegalArgumentException if a limit is negative, the spill limit too large or a content type invalid
+	 */
+	@lombok.Builder
+	private BodyBufferLimits(final Map<String, Long> inMemoryLimits, final Long defaultInMemoryLimit, final Long spillLimit,
+			final Path spillDirectory)
+	{
+		(inMemoryLimits != null ? inMemoryLimits : Map.<String, Long>of()).forEach((contentType, limit) -> {
+			final MediaType mediaType = MediaType.parseMediaType(contentType);
+			final String type = mediaType.getType().toLowerCase(Locale.ROOT);
+			if (mediaType.isWildcardSubtype())
+			{
+				limitsByType.put(type, checkLimit(limit));
+			}
+			else
+			{
+				limitsByMediaType.put(type + "/" + mediaType.getSubtype().toLowerCase(Locale.ROOT), checkLimit(limit));
+			}
+		});
+		this.defaultInMemoryLimit = defaultInMemoryLimit != null ? checkLimit(defaultInMemoryLimit) : DEFAULT_IN_MEMORY_LIMIT;
+		this.spillLimit = spillLimit != null ? checkLimit(spillLimit) : DEFAULT_SPILL_LIMIT;
+		if (this.spillLimit > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("bodies larger than " + Integer.MAX_VALUE + " bytes can't be mapped: " + this.spillLimit);
+		}
+		this.spillDirectory = spillDirectory;
+	}
+
+	private static long checkLimit(final Long limit)
+	{
+		if (limit == null || limit < 0)
+		{
+			throw new IllegalArgumentException("body size limit must be positive or zero: " + limit);
+		}
+		return limit;
+	}
+
+	/**
+	 * @return the maximum size of the bodies of the content type kept on the heap
+	 */
+	long inMemoryLimitOf(final HttpHeaders headers)
+	{
+		final MediaType contentType;
+		try
+		{
+			contentType = headers.getContentType();
+		}
+		catch (final InvalidMediaTypeException e)
+		{
+			return defaultInMemoryLimit;
+		}
+		if (contentType == null)
+		{
+			return defaultInMemoryLimit;
+		}
+
+		final String type = contentType.getType().toLowerCase(Locale.ROOT);
+		final Long limit = limitsByMediaType.get(type + "/" + contentType.getSubtype().toLowerCase(Locale.ROOT));
+		if (limit != null)
+		{
+			return limit;
+		}
+		return limitsByType.getOrDefault(type, defaultInMemoryLimit);
+	}
+
+	/**
+	 * Reads the body into the response being built, as a raw body on the heap or mapped from a file, or as a body stream when it is over the
+	 * spill limit. The body is closed once read, unless it is streamed.
+	 *
+	 * @return true if the body was empty
+	 */
+	boolean buffer(final InputStream body, final HttpHeaders headers, final HttpResponseWrapper.HttpResponseWrapperBuilder response) throws IOException
+	{
+		final long inMemoryLimit = Math.min(inMemoryLimitOf(headers), spillLimit);
+		final byte[] head;
+		try
+		{
+			head = body.readNBytes((int) Math.min(inMemoryLimit + 1, Integer.MAX_VALUE));
+		}
+		catch (final IOException | RuntimeException e)
+		{
+			body.close();
+			throw e;
+		}
+		if (head.length <= inMemoryLimit)
+		{
+			body.close();
+			response.rawBody(RawBody.of(head, headers));
+			return head.length == 0;
+		}
+		if (head.length > spillLimit)
+		{
+			streamThrough(response, new ByteArrayInputStream(head), body);
+			return false;
+		}
+
+		spill(head, body, headers, response);
+		return false;
+	}
+
+	private void spill(final byte[] head, final InputStream body, final HttpHeaders headers,
+			final HttpResponseWrapper.HttpResponseWrapperBuilder response) throws IOException
+	{
+		final Path file = spillDirectory != null ?
+				Files.createTempFile(spillDirectory, "httpproxy-body-", ".tmp") :
+				Files.createTempFile("httpproxy-body-", ".tmp");
+		final FileChannel channel;
+		try
+		{
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+		catch (final IOException | RuntimeException e)
+		{
+			Files.deleteIfExists(file);
+			body.close();
+			throw e;
+		}
+
+		boolean streamed = false;
+		try
+		{
+			writeFully(channel, ByteBuffer.wrap(head));
+			long size = head.length;
+			final byte[] chunk = new byte[COPY_CHUNK_SIZE];
+			int read;
+			while ((read = body.read(chunk)) >= 0)
+			{
+				if (size + read > spillLimit)
+				{
+					// the bytes already read are streamed first, from the file which is deleted when the stream is closed
+					channel.position(0);
+					streamThrough(response, Channels.newInputStream(channel), new ByteArrayInputStream(chunk, 0, read), body);
+					streamed = true;
+					return;
+				}
+				writeFully(channel, ByteBuffer.wrap(chunk, 0, read));
+				size += read;
+			}
+
+			log.debug("upstream body of {} bytes buffered in a memory-mapped file", size);
+			response.rawBody(RawBody.ofMapped(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), RawBody.charsetOf(headers)));
+		}
+		finally
+		{
+			if (!streamed)
+			{
+				// the mapping stays valid once the channel is closed and the file deleted
+				channel.close();
+				body.close();
+			}
+		}
+	}
+
+	private void streamThrough(final HttpResponseWrapper.HttpResponseWrapperBuilder response, final InputStream... parts)
+	{
+		log.debug("upstream body of more than {} bytes streamed through without being buffered", spillLimit);
+		// closing the sequence closes the parts which haven't been read to their end
+		response.bodyStream(new SequenceInputStream(Collections.enumeration(List.of(parts))));
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer bytes) throws IOException
+	{
+		while (bytes.hasRemaining())
+		{
+			channel.write(bytes);
+		}
+	}
+}
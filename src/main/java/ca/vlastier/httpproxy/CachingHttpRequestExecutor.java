@@ -0,0 +1,552 @@
+package ca.vlastier.httpproxy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Shared HTTP cache in front of another {@link HttpRequestExecutor}. Follows the caching rules of RFC 7234 for shared caches:
+ * <ul>
+ *     <li>only GET responses with explicit freshness (Cache-Control max-age/s-maxage or Expires) or a validator (ETag or Last-Modified) are stored.
+ *     Responses marked no-store or private, varying on *, setting cookies or answering an authorized request without being public are not</li>
+ *     <li>fresh entries are served without calling the upstream server. Stale entries having validators are revalidated with a conditional request</li>
+ *     <li>entries are selected by the request headers listed in the Vary header of the response</li>
+ *     <li>successful unsafe requests (POST, PUT, DELETE...) invalidate the entries of their url</li>
+ * </ul>
+ * Requests carrying their own conditional or range headers are not served from the cache, so the client gets the answer it asked for.
+ * Bodies are kept as received, see {@link RawBody}, and the cache is bounded by their total size, with W-TinyLFU eviction.
+ * Every call returns a new {@link HttpResponseWrapper}, so the response rules of {@link HttpProxyService} run on cache hits as well and their changes
+ * do not alter the cached entry.
+ * Streamed requests are served from the cache when a fresh entry exists; otherwise they are forwarded and not stored.
+ */
+@Slf4j
+public class CachingHttpRequestExecutor implements AsyncHttpRequestExecutor
+{
+	private static final Set<Integer> CACHEABLE_STATUSES = Set.of(200, 203, 204, 300, 301, 404, 405, 410, 414, 501);
+	private static final List<String> CONDITIONAL_REQUEST_HEADERS = List.of(HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.IF_MATCH,
+			HttpHeaders.IF_UNMODIFIED_SINCE, HttpHeaders.IF_RANGE, HttpHeaders.RANGE);
+	// headers of a 304 response which must not replace the stored ones
+	private static final Set<String> NOT_UPDATED_HEADERS = Set.of(HttpHeaders.CONTENT_LENGTH.toLowerCase(Locale.ROOT),
+			HttpHeaders.CONTENT_ENCODING.toLowerCase(Locale.ROOT), HttpHeaders.TRANSFER_ENCODING.toLowerCase(Locale.ROOT));
+	// rough size of an entry without its body and headers
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final HttpRequestExecutor delegate;
+	private final Cache<String, Variants> cache;
+	private final Clock clock;
+
+	/**
+	 * @param maximumSize maximum number of bytes taken by the cached bodies and headers
+	 */
+	public CachingHttpRequestExecutor(final HttpRequestExecutor delegate, final long maximumSize)
+	{
+		this(delegate, maximumSize, Clock.systemUTC());
+	}
+
+	CachingHttpRequestExecutor(final HttpRequestExecutor delegate, final long maximumSize, final Clock clock)
+	{
+		this.delegate = delegate;
+		this.clock = clock;
+		this.cache = Caffeine.newBuilder()
+				.maximumWeight(maximumSize)
+				.weigher((String url, Variants variants) -> variants.weight())
+				.build();
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequest(final HttpRequestWrapper request)
+	{
+		final Lookup lookup = lookup(request);
+		if (lookup.hit != null)
+		{
+			return lookup.hit;
+		}
+		return complete(request, lookup, delegate.executeRequest(lookup.upstreamRequest));
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestAsync(final HttpRequestWrapper request)
+	{
+		final Lookup lookup = lookup(request);
+		if (lookup.hit != null)
+		{
+			return CompletableFuture.completedFuture(lookup.hit);
+		}
+
+		final CompletionStage<HttpResponseWrapper> response = delegate instanceof AsyncHttpRequestExecutor ?
+				((AsyncHttpRequestExecutor) delegate).executeRequestAsync(lookup.upstreamRequest) :
+				CompletableFuture.completedFuture(delegate.executeRequest(lookup.upstreamRequest));
+		return response.thenApply(upstreamResponse -> complete(request, lookup, upstreamResponse));
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequestStreaming(final HttpRequestWrapper request)
+	{
+		final HttpResponseWrapper hit = findFresh(request);
+		return hit != null ? hit : delegate.executeRequestStreaming(request);
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestStreamingAsync(final HttpRequestWrapper request)
+	{
+		final HttpResponseWrapper hit = findFresh(request);
+		if (hit != null)
+		{
+			return CompletableFuture.completedFuture(hit);
+		}
+		return delegate instanceof AsyncHttpRequestExecutor ?
+				((AsyncHttpRequestExecutor) delegate).executeRequestStreamingAsync(request) :
+				CompletableFuture.completedFuture(delegate.executeRequestStreaming(request));
+	}
+
+	private HttpResponseWrapper findFresh(final HttpRequestWrapper request)
+	{
+		if (!isCacheable(request))
+		{
+			return null;
+		}
+		final long now = clock.millis();
+		final CachedResponse cached = find(request);
+		return cached != null && cached.isFresh(CacheControl.of(request.getHeaders()), now) ? cached.toResponseWrapper(request, now) : null;
+	}
+
+	private Lookup lookup(final HttpRequestWrapper request)
+	{
+		if (!isCacheable(request))
+		{
+			return new Lookup(null, null, request);
+		}
+
+		final long now = clock.millis();
+		final CachedResponse cached = find(request);
+		if (cached == null)
+		{
+			log.debug("Cache miss for {}", request.getUrl());
+			return new Lookup(null, null, request);
+		}
+		if (cached.isFresh(CacheControl.of(request.getHeaders()), now))
+		{
+			log.debug("Cache hit for {}", request.getUrl());
+			return new Lookup(cached.toResponseWrapper(request, now), cached, request);
+		}
+		if (cached.hasValidators())
+		{
+			log.debug("Revalidating stale cache entry for {}", request.getUrl());
+			return new Lookup(null, cached, cached.conditionalRequest(request));
+		}
+		return new Lookup(null, null, request);
+	}
+
+	private HttpResponseWrapper complete(final HttpRequestWrapper request, final Lookup lookup, final HttpResponseWrapper response)
+	{
+		final long now = clock.millis();
+		if (lookup.stale != null && response.getHttpStatus() == HttpStatus.NOT_MODIFIED)
+		{
+			log.debug("Cache entry of {} is still valid", request.getUrl());
+			final CachedResponse revalidated = lookup.stale.revalidate(response.getHeaders(), now);
+			store(request, revalidated);
+			return revalidated.toResponseWrapper(request, now);
+		}
+
+		if (isCacheable(request))
+		{
+			final CachedResponse cachedResponse = CachedResponse.of(request, response, now);
+			if (cachedResponse != null)
+			{
+				store(request, cachedResponse);
+			}
+		}
+		else if (isUnsafe(request.getMethod()) && response.getHttpStatus() != null && !response.getHttpStatus().isError())
+		{
+			cache.invalidate(request.getUrl());
+		}
+		return response;
+	}
+
+	private CachedResponse find(final HttpRequestWrapper request)
+	{
+		final Variants variants = cache.getIfPresent(request.getUrl());
+		return variants != null ? variants.find(request.getHeaders()) : null;
+	}
+
+	private void store(final HttpRequestWrapper request, final CachedResponse cachedResponse)
+	{
+		cache.asMap().compute(request.getUrl(), (url, variants) -> variants == null ? new Variants(List.of(cachedResponse)) : variants.with(cachedResponse));
+	}
+
+	private static boolean isCacheable(final HttpRequestWrapper request)
+	{
+		if (!HttpMethod.GET.matches(request.getMethod()) || request.getUrl() == null || request.getBody() != null)
+		{
+			return false;
+		}
+		final HttpHeaders headers = request.getHeaders();
+		for (final String conditionalHeader : CONDITIONAL_REQUEST_HEADERS)
+		{
+			if (headers.containsKey(conditionalHeader))
+			{
+				return false;
+			}
+		}
+		return !CacheControl.of(headers).noStore;
+	}
+
+	private static boolean isUnsafe(final String method)
+	{
+		return !HttpMethod.GET.matches(method) && !HttpMethod.HEAD.matches(method) && !HttpMethod.OPTIONS.matches(method) && !HttpMethod.TRACE.matches(method);
+	}
+
+	private static class Lookup
+	{
+		private final HttpResponseWrapper hit;
+		private final CachedResponse stale;
+		private final HttpRequestWrapper upstreamRequest;
+
+		Lookup(final HttpResponseWrapper hit, final CachedResponse stale, final HttpRequestWrapper upstreamRequest)
+		{
+			this.hit = hit;
+			this.stale = stale;
+			this.upstreamRequest = upstreamRequest;
+		}
+	}
+
+	/**
+	 * the responses stored for a url, one per combination of the request headers listed in Vary. Immutable so it can be weighed once
+	 */
+	private static class Variants
+	{
+		private final List<CachedResponse> responses;
+
+		Variants(final List<CachedResponse> responses)
+		{
+			this.responses = responses;
+		}
+
+		CachedResponse find(final HttpHeaders requestHeaders)
+		{
+			for (final CachedResponse response : responses)
+			{
+				if (response.matches(requestHeaders))
+				{
+					return response;
+				}
+			}
+			return null;
+		}
+
+		Variants with(final CachedResponse added)
+		{
+			final List<CachedResponse> updated = new ArrayList<>(responses.size() + 1);
+			updated.add(added);
+			for (final CachedResponse response : responses)
+			{
+				if (!response.sameVariant(added))
+				{
+					updated.add(response);
+				}
+			}
+			return new Variants(List.copyOf(updated));
+		}
+
+		int weight()
+		{
+			long weight = 0;
+			for (final CachedResponse response : responses)
+			{
+				weight += response.weight;
+			}
+			return (int) Math.min(Integer.MAX_VALUE, weight);
+		}
+	}
+
+	private static class CachedResponse
+	{
+		private final HttpStatus status;
+		private final HttpHeaders headers;
+		private final RawBody body;
+		private final Map<String, List<String>> varyingRequestHeaders;
+		private final long responseTime;
+		private final long initialAge;
+		private final long freshnessLifetime;
+		private final boolean noCache;
+		private final int weight;
+
+		private CachedResponse(final HttpStatus status, final HttpHeaders headers, final RawBody body, final Map<String, List<String>> varyingRequestHeaders,
+				final long responseTime)
+		{
+			this.status = status;
+			this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+			this.body = body;
+			this.varyingRequestHeaders = varyingRequestHeaders;
+			this.responseTime = responseTime;
+
+			final CacheControl cacheControl = CacheControl.of(headers);
+			this.noCache = cacheControl.noCache;
+			this.initialAge = ageOf(headers);
+			this.freshnessLifetime = freshnessLifetimeOf(headers, cacheControl, responseTime);
+			this.weight = ENTRY_OVERHEAD + (body != null ? body.length() : 0) + headers.toString().length();
+		}
+
+		/**
+		 * @return the entry to store for the upstream response or null if it can't be stored
+		 */
+		static CachedResponse of(final HttpRequestWrapper request, final HttpResponseWrapper response, final long now)
+		{
+			if (response.getHttpStatus() == null || !CACHEABLE_STATUSES.contains(response.getHttpStatus().value()) || response.getRawBody() == null && response.getOriginalResponse() == null
+					|| response.getBodyStream() != null)
+			{
+				return null;
+			}
+
+			final HttpHeaders headers = response.getHeaders();
+			final CacheControl cacheControl = CacheControl.of(headers);
+			final boolean authorized = request.getHeaders().containsKey(HttpHeaders.AUTHORIZATION);
+			if (cacheControl.noStore || cacheControl.isPrivate || headers.getVary().contains("*") || headers.containsKey(HttpHeaders.SET_COOKIE)
+					|| authorized && !cacheControl.isPublic && cacheControl.sMaxAge < 0 && !cacheControl.mustRevalidate)
+			{
+				return null;
+			}
+
+			final Map<String, List<String>> varyingRequestHeaders = new HashMap<>();
+			for (final String varyingHeader : headers.getVary())
+			{
+				varyingRequestHeaders.put(varyingHeader, request.getHeaders().getOrEmpty(varyingHeader));
+			}
+
+			// raw bodies are immutable, they are shared by the cache and every response served from it
+			final RawBody body = response.getRawBody() != null ? response.getRawBody() : rawBodyOf(response.getOriginalResponse().getBody());
+			final CachedResponse cachedResponse = new CachedResponse(response.getHttpStatus(), CopyOnWriteHeaders.copyOf(headers), body,
+					varyingRequestHeaders, now);
+			return cachedResponse.freshnessLifetime > 0 || cachedResponse.hasValidators() ? cachedResponse : null;
+		}
+
+		private static RawBody rawBodyOf(final String body)
+		{
+			return body != null ? RawBody.of(body.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8) : null;
+		}
+
+		boolean matches(final HttpHeaders requestHeaders)
+		{
+			for (final Map.Entry<String, List<String>> varyingHeader : varyingRequestHeaders.entrySet())
+			{
+				if (!varyingHeader.getValue().equals(requestHeaders.getOrEmpty(varyingHeader.getKey())))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean sameVariant(final CachedResponse other)
+		{
+			return varyingRequestHeaders.equals(other.varyingRequestHeaders);
+		}
+
+		boolean hasValidators()
+		{
+			return headers.getETag() != null || headers.getLastModified() >= 0;
+		}
+
+		boolean isFresh(final CacheControl requestCacheControl, final long now)
+		{
+			if (noCache || requestCacheControl.noCache)
+			{
+				return false;
+			}
+			final long age = currentAge(now);
+			return age < freshnessLifetime && (requestCacheControl.maxAge < 0 || age <= requestCacheControl.maxAge * 1000);
+		}
+
+		HttpRequestWrapper conditionalRequest(final HttpRequestWrapper request)
+		{
+			final HttpHeaders conditionalHeaders = CopyOnWriteHeaders.copyOf(request.getHeaders());
+			if (headers.getETag() != null)
+			{
+				conditionalHeaders.set(HttpHeaders.IF_NONE_MATCH, headers.getETag());
+			}
+			if (headers.containsKey(HttpHeaders.LAST_MODIFIED))
+			{
+				conditionalHeaders.set(HttpHeaders.IF_MODIFIED_SINCE, headers.getFirst(HttpHeaders.LAST_MODIFIED));
+			}
+			return HttpRequestWrapper.builder()
+					.method(request.getMethod())
+					.url(request.getUrl())
+					.headers(conditionalHeaders)
+					.build();
+		}
+
+		CachedResponse revalidate(final HttpHeaders notModifiedHeaders, final long now)
+		{
+			final HttpHeaders updatedHeaders = CopyOnWriteHeaders.copyOf(headers);
+			notModifiedHeaders.forEach((name, values) -> {
+				if (!NOT_UPDATED_HEADERS.contains(name.toLowerCase(Locale.ROOT)))
+				{
+					updatedHeaders.put(name, values);
+				}
+			});
+			return new CachedResponse(status, updatedHeaders, body, varyingRequestHeaders, now);
+		}
+
+		HttpResponseWrapper toResponseWrapper(final HttpRequestWrapper request, final long now)
+		{
+			final HttpHeaders responseHeaders = CopyOnWriteHeaders.copyOf(headers);
+			responseHeaders.set(HttpHeaders.AGE, Long.toString(currentAge(now) / 1000));
+			final HttpResponseWrapper.HttpResponseWrapperBuilder response = HttpResponseWrapper.builder()
+					.headers(responseHeaders)
+					.httpStatus(status)
+					.originalRequest(request);
+
+			if (body == null)
+			{
+				return response.originalResponse(new ResponseEntity<>(null, HttpHeaders.readOnlyHttpHeaders(responseHeaders), status)).build();
+			}
+			return response.rawBody(body).build();
+		}
+
+		private long currentAge(final long now)
+		{
+			return initialAge + Math.max(0, now - responseTime);
+		}
+
+		private static long ageOf(final HttpHeaders headers)
+		{
+			try
+			{
+				final String age = headers.getFirst(HttpHeaders.AGE);
+				return age != null ? Math.max(0, Long.parseLong(age.trim())) * 1000 : 0;
+			}
+			catch (final NumberFormatException e)
+			{
+				return 0;
+			}
+		}
+
+		private static long freshnessLifetimeOf(final HttpHeaders headers, final CacheControl cacheControl, final long responseTime)
+		{
+			if (cacheControl.sMaxAge >= 0)
+			{
+				return cacheControl.sMaxAge * 1000;
+			}
+			if (cacheControl.maxAge >= 0)
+			{
+				return cacheControl.maxAge * 1000;
+			}
+
+			final long expires = headers.getExpires();
+			if (expires < 0)
+			{
+				return 0;
+			}
+			long date;
+			try
+			{
+				date = headers.getDate();
+			}
+			catch (final IllegalArgumentException e)
+			{
+				date = -1;
+			}
+			return Math.max(0, expires - (date >= 0 ? date : responseTime));
+		}
+	}
+
+	/**
+	 * directives of the Cache-Control header (and Pragma: no-cache) relevant to the cache. Negative ages are missing ones
+	 */
+	static class CacheControl
+	{
+		private boolean noStore;
+		private boolean noCache;
+		private boolean isPrivate;
+		private boolean isPublic;
+		private boolean mustRevalidate;
+		private long maxAge = -1;
+		private long sMaxAge = -1;
+
+		static CacheControl of(final HttpHeaders headers)
+		{
+			final CacheControl cacheControl = new CacheControl();
+			for (final String header : headers.getOrEmpty(HttpHeaders.CACHE_CONTROL))
+			{
+				Arrays.stream(header.split(",")).map(String::trim).forEach(cacheControl::parseDirective);
+			}
+			if (!headers.containsKey(HttpHeaders.CACHE_CONTROL) && headers.getOrEmpty(HttpHeaders.PRAGMA).contains("no-cache"))
+			{
+				cacheControl.noCache = true;
+			}
+			return cacheControl;
+		}
+
+		/**
+		 * @return true if the response is marked no-store or private: it is meant for the client who requested it only
+		 */
+		boolean isPersonal()
+		{
+			return noStore || isPrivate;
+		}
+
+		private void parseDirective(final String directive)
+		{
+			final int separator = directive.indexOf('=');
+			final String name = (separator < 0 ? directive : directive.substring(0, separator)).trim().toLowerCase(Locale.ROOT);
+			final String value = separator < 0 ? null : directive.substring(separator + 1).trim().replace("\"", "");
+
+			switch (name)
+			{
+				case "no-store":
+					noStore = true;
+					break;
+				case "no-cache":
+					noCache = true;
+					break;
+				case "private":
+					isPrivate = true;
+					break;
+				case "public":
+					isPublic = true;
+					break;
+				case "must-revalidate":
+				case "proxy-revalidate":
+					mustRevalidate = true;
+					break;
+				case "max-age":
+					maxAge = seconds(value);
+					break;
+				case "s-maxage":
+					sMaxAge = seconds(value);
+					break;
+				default:
+					break;
+			}
+		}
+
+		private static long seconds(final String value)
+		{
+			try
+			{
+				return value != null ? Math.max(0, Long.parseLong(value)) : -1;
+			}
+			catch (final NumberFormatException e)
+			{
+				// an invalid age makes the response stale
+				return 0;
+			}
+		}
+	}
+}
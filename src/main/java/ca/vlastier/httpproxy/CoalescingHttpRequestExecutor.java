@@ -0,0 +1,298 @@
+package ca.vlastier.httpproxy;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one upstream call between identical concurrent requests (single-flight), so a popular page expiring does not send hundreds of identical
+ * requests to the upstream server at once.
+ * <ul>
+ *     <li>only GET and HEAD requests without a body are coalesced. They are identical when their method, url and key headers match. The key headers
+ *     default to the ones contents commonly vary on: Accept, Accept-Encoding, Accept-Language, Authorization and Cookie</li>
+ *     <li>a request waiting for the call of another one checks the request headers listed in the Vary header of the response. When they differ, or
+ *     when the response varies on *, it executes its own request</li>
+ *     <li>every caller gets its own {@link HttpResponseWrapper}, with copied headers, so the response rules of {@link HttpProxyService} applied
+ *     to one response do not change the others. Raw bodies are immutable and shared</li>
+ *     <li>a failed call fails all the requests waiting for it. Responses whose body is streamed, which set cookies or are marked no-store or private
+ *     are not shared: the waiting requests execute their own request</li>
+ * </ul>
+ * Streamed requests are forwarded without coalescing. Requests are coalesced only while a call is in flight: nothing is kept afterwards, see
+ * {@link CachingHttpRequestExecutor} for that. When combined with it, this executor wraps the caching one so concurrent misses are coalesced too.
+ * When combined with {@link ContentEncodingHttpRequestExecutor}, this executor has to be wrapped by it.
+ */
+@Slf4j
+public class CoalescingHttpRequestExecutor implements AsyncHttpRequestExecutor
+{
+	private static final List<String> DEFAULT_KEY_HEADERS = List.of(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING, HttpHeaders.ACCEPT_LANGUAGE,
+			HttpHeaders.AUTHORIZATION, HttpHeaders.COOKIE);
+
+	private final HttpRequestExecutor delegate;
+	private final List<String> keyHeaders;
+	private final Map<Key, CompletableFuture<SharedResponse>> inFlightCalls = new ConcurrentHashMap<>();
+
+	public CoalescingHttpRequestExecutor(@NonNull final HttpRequestExecutor delegate)
+	{
+		this(delegate, DEFAULT_KEY_HEADERS);
+	}
+
+	/**
+	 * @param keyHeaders request headers which have to match, besides method and url, for requests to share a call
+	 */
+	public CoalescingHttpRequestExecutor(@NonNull final HttpRequestExecutor delegate, @NonNull final Collection<String> keyHeaders)
+	{
+		this.delegate = delegate;
+		this.keyHeaders = List.copyOf(keyHeaders);
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequest(final HttpRequestWrapper request)
+	{
+		final Key key = keyOf(request);
+		if (key == null)
+		{
+			return delegate.executeRequest(request);
+		}
+
+		final CompletableFuture<SharedResponse> call = new CompletableFuture<>();
+		final CompletableFuture<SharedResponse> inFlightCall = inFlightCalls.putIfAbsent(key, call);
+		if (inFlightCall != null)
+		{
+			final SharedResponse sharedResponse;
+			try
+			{
+				sharedResponse = inFlightCall.join();
+			}
+			catch (final CompletionException e)
+			{
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+			return sharedResponse != null && sharedResponse.matches(request) ?
+					sharedResponse.toResponseWrapper(request) :
+					delegate.executeRequest(request);
+		}
+
+		try
+		{
+			final HttpResponseWrapper response = delegate.executeRequest(request);
+			share(key, call, request, response);
+			return response;
+		}
+		catch (final RuntimeException | Error e)
+		{
+			inFlightCalls.remove(key, call);
+			call.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			if (!call.isDone())
+			{
+				// thrown without being declared: the waiting requests execute their own request rather than waiting forever
+				inFlightCalls.remove(key, call);
+				call.complete(null);
+			}
+		}
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestAsync(final HttpRequestWrapper request)
+	{
+		final Key key = keyOf(request);
+		if (key == null)
+		{
+			return executeDelegateAsync(request);
+		}
+
+		final CompletableFuture<SharedResponse> call = new CompletableFuture<>();
+		final CompletableFuture<SharedResponse> inFlightCall = inFlightCalls.putIfAbsent(key, call);
+		if (inFlightCall != null)
+		{
+			return inFlightCall.thenCompose(sharedResponse -> sharedResponse != null && sharedResponse.matches(request) ?
+					CompletableFuture.completedFuture(sharedResponse.toResponseWrapper(request)) :
+					executeDelegateAsync(request));
+		}
+
+		final CompletionStage<HttpResponseWrapper> response;
+		try
+		{
+			response = executeDelegateAsync(request);
+		}
+		catch (final RuntimeException | Error e)
+		{
+			inFlightCalls.remove(key, call);
+			call.completeExceptionally(e);
+			throw e;
+		}
+		// runs before the caller's stages, so the response is shared before any rule changes it
+		return response.whenComplete((upstreamResponse, error) -> {
+			if (error != null)
+			{
+				inFlightCalls.remove(key, call);
+				call.completeExceptionally(error);
+			}
+			else
+			{
+				share(key, call, request, upstreamResponse);
+			}
+		});
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequestStreaming(final HttpRequestWrapper request)
+	{
+		return delegate.executeRequestStreaming(request);
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestStreamingAsync(final HttpRequestWrapper request)
+	{
+		return delegate instanceof AsyncHttpRequestExecutor ?
+				((AsyncHttpRequestExecutor) delegate).executeRequestStreamingAsync(request) :
+				CompletableFuture.completedFuture(delegate.executeRequestStreaming(request));
+	}
+
+	private CompletionStage<HttpResponseWrapper> executeDelegateAsync(final HttpRequestWrapper request)
+	{
+		return delegate instanceof AsyncHttpRequestExecutor ?
+				((AsyncHttpRequestExecutor) delegate).executeRequestAsync(request) :
+				CompletableFuture.completedFuture(delegate.executeRequest(request));
+	}
+
+	private void share(final Key key, final CompletableFuture<SharedResponse> call, final HttpRequestWrapper request, final HttpResponseWrapper response)
+	{
+		// removed first: requests arriving from now on start a new call instead of getting this response
+		inFlightCalls.remove(key, call);
+		SharedResponse sharedResponse = null;
+		try
+		{
+			sharedResponse = SharedResponse.of(request, response);
+		}
+		catch (final RuntimeException e)
+		{
+			log.warn("Response of {} can't be shared", request.getUrl(), e);
+		}
+		finally
+		{
+			// null when the response can't be shared: the waiting requests execute their own request
+			call.complete(sharedResponse);
+		}
+	}
+
+	/**
+	 * @return the key of the request or null if it can't be coalesced
+	 */
+	private Key keyOf(final HttpRequestWrapper request)
+	{
+		if (!HttpMethod.GET.matches(request.getMethod()) && !HttpMethod.HEAD.matches(request.getMethod()) || request.getUrl() == null
+				|| request.getBody() != null)
+		{
+			return null;
+		}
+
+		final List<List<String>> keyHeaderValues = new ArrayList<>(keyHeaders.size());
+		for (final String keyHeader : keyHeaders)
+		{
+			keyHeaderValues.add(request.getHeaders().getOrEmpty(keyHeader));
+		}
+		return new Key(request.getMethod(), request.getUrl(), keyHeaderValues);
+	}
+
+	@Value
+	private static class Key
+	{
+		String method;
+		String url;
+		List<List<String>> keyHeaderValues;
+	}
+
+	/**
+	 * snapshot of an upstream response, taken before the rules of the caller who executed it change it
+	 */
+	private static class SharedResponse
+	{
+		private final HttpStatus status;
+		private final HttpHeaders headers;
+		private final RawBody rawBody;
+		private final String body;
+		private final boolean hasBody;
+		private final Map<String, List<String>> varyingRequestHeaders;
+
+		private SharedResponse(final HttpStatus status, final HttpHeaders headers, final RawBody rawBody, final String body, final boolean hasBody,
+				final Map<String, List<String>> varyingRequestHeaders)
+		{
+			this.status = status;
+			this.headers = headers;
+			this.rawBody = rawBody;
+			this.body = body;
+			this.hasBody = hasBody;
+			this.varyingRequestHeaders = varyingRequestHeaders;
+		}
+
+		/**
+		 * @return the snapshot of the response or null if it can't be shared
+		 */
+		static SharedResponse of(final HttpRequestWrapper request, final HttpResponseWrapper response)
+		{
+			// a cookie or a private response issued to one client must not reach the others
+			final HttpHeaders headers = response.getHeaders();
+			if (response.getBodyStream() != null || headers.getVary().contains("*") || headers.containsKey(HttpHeaders.SET_COOKIE)
+					|| CachingHttpRequestExecutor.CacheControl.of(headers).isPersonal())
+			{
+				return null;
+			}
+
+			final Map<String, List<String>> varyingRequestHeaders = new HashMap<>();
+			for (final String varyingHeader : headers.getVary())
+			{
+				varyingRequestHeaders.put(varyingHeader, request.getHeaders().getOrEmpty(varyingHeader));
+			}
+
+			final RawBody rawBody = response.getRawBody();
+			final ResponseEntity<String> originalResponse = rawBody == null ? response.getOriginalResponse() : null;
+			return new SharedResponse(response.getHttpStatus(), CopyOnWriteHeaders.copyOf(headers), rawBody,
+					originalResponse != null ? originalResponse.getBody() : null, originalResponse != null, varyingRequestHeaders);
+		}
+
+		boolean matches(final HttpRequestWrapper request)
+		{
+			for (final Map.Entry<String, List<String>> varyingHeader : varyingRequestHeaders.entrySet())
+			{
+				if (!varyingHeader.getValue().equals(request.getHeaders().getOrEmpty(varyingHeader.getKey())))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		HttpResponseWrapper toResponseWrapper(final HttpRequestWrapper request)
+		{
+			final HttpHeaders responseHeaders = CopyOnWriteHeaders.copyOf(headers);
+			final HttpResponseWrapper.HttpResponseWrapperBuilder response = HttpResponseWrapper.builder()
+					.headers(responseHeaders)
+					.httpStatus(status)
+					.originalRequest(request)
+					.rawBody(rawBody);
+			if (hasBody)
+			{
+				response.originalResponse(new ResponseEntity<>(body, HttpHeaders.readOnlyHttpHeaders(responseHeaders), status));
+			}
+			return response.build();
+		}
+	}
+}
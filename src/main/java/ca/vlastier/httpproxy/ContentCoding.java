@@ -0,0 +1,134 @@
+package ca.vlastier.httpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content codings of the Content-Encoding header which can be decoded and encoded again by the proxy, see {@link ContentEncodingHttpRequestExecutor}.
+ */
+public enum ContentCoding
+{
+	GZIP("gzip")
+	{
+		@Override
+		InputStream decoding(final InputStream encoded) throws IOException
+		{
+			return new GZIPInputStream(encoded);
+		}
+
+		@Override
+		OutputStream encoding(final OutputStream decoded, final int level) throws IOException
+		{
+			return new GZIPOutputStream(decoded)
+			{
+				{
+					def.setLevel(level);
+				}
+			};
+		}
+	},
+	/**
+	 * zlib format, as specified by RFC 7230 for the deflate coding
+	 */
+	DEFLATE("deflate")
+	{
+		@Override
+		InputStream decoding(final InputStream encoded)
+		{
+			return new InflaterInputStream(encoded);
+		}
+
+		@Override
+		OutputStream encoding(final OutputStream decoded, final int level)
+		{
+			final Deflater deflater = new Deflater(level);
+			return new DeflaterOutputStream(decoded, deflater)
+			{
+				@Override
+				public void close() throws IOException
+				{
+					try
+					{
+						super.close();
+					}
+					finally
+					{
+						// the deflater is ours, DeflaterOutputStream only ends its default one
+						deflater.end();
+					}
+				}
+			};
+		}
+	};
+
+	private final String token;
+
+	ContentCoding(final String token)
+	{
+		this.token = token;
+	}
+
+	public String getToken()
+	{
+		return token;
+	}
+
+	/**
+	 * @return the coding of the Content-Encoding header value, or null if it is absent, identity, a list of several codings or a coding the proxy
+	 * can't decode, e.g. br
+	 */
+	public static ContentCoding of(final String contentEncoding)
+	{
+		if (contentEncoding == null)
+		{
+			return null;
+		}
+		final String coding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+		if ("gzip".equals(coding) || "x-gzip".equals(coding))
+		{
+			return GZIP;
+		}
+		return "deflate".equals(coding) ? DEFLATE : null;
+	}
+
+	abstract InputStream decoding(InputStream encoded) throws IOException;
+
+	abstract OutputStream encoding(OutputStream decoded, int level) throws IOException;
+
+	byte[] decode(final byte[] encoded)
+	{
+		try (final InputStream decoded = decoding(new ByteArrayInputStream(encoded)))
+		{
+			return decoded.readAllBytes();
+		}
+		catch (final IOException e)
+		{
+			throw new UncheckedIOException("body is not valid " + token + " content: " + e.getMessage(), e);
+		}
+	}
+
+	byte[] encode(final byte[] decoded, final int level)
+	{
+		final ByteArrayOutputStream encoded = new ByteArrayOutputStream(decoded.length / 4 + 64);
+		try (final OutputStream out = encoding(encoded, level))
+		{
+			out.write(decoded);
+		}
+		catch (final IOException e)
+		{
+			// writing into memory
+			throw new UncheckedIOException(e);
+		}
+		return encoded.toByteArray();
+	}
+}
@@ -0,0 +1,148 @@
+package ca.vlastier.httpproxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.zip.Deflater;
+
+/**
+ * Lets response rules transform compressed upstream bodies, without forcing {@code Accept-Encoding: identity} on the upstream server.
+ * <ul>
+ *     <li>buffered requests, those whose response may be transformed, only accept the codings the proxy can decode ({@link ContentCoding}), among
+ *     the ones accepted by the client. Streamed requests, whose response can't be transformed, are forwarded unchanged</li>
+ *     <li>a compressed response body is kept compressed. It is decompressed only if a rule reads it, while it is parsed</li>
+ *     <li>a transformed body is compressed again, with the configured level, when the response is built. A body no rule touched is written as
+ *     received, without being compressed again</li>
+ * </ul>
+ * When combined with {@link CachingHttpRequestExecutor}, this executor has to wrap the caching one, so cache hits go through it as well.
+ */
+@Slf4j
+public class ContentEncodingHttpRequestExecutor implements AsyncHttpRequestExecutor
+{
+	private static final String IDENTITY = "identity";
+
+	private final HttpRequestExecutor delegate;
+	private final int compressionLevel;
+
+	public ContentEncodingHttpRequestExecutor(final HttpRequestExecutor delegate)
+	{
+		this(delegate, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param compressionLevel level used to compress transformed bodies again, from 0 (no compression) to 9 (best compression),
+	 *                         or -1 for the default level of zlib
+	 */
+	public ContentEncodingHttpRequestExecutor(final HttpRequestExecutor delegate, final int compressionLevel)
+	{
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+		{
+			throw new IllegalArgumentException("compression level must be between -1 and 9: " + compressionLevel);
+		}
+		this.delegate = delegate;
+		this.compressionLevel = compressionLevel;
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequest(final HttpRequestWrapper request)
+	{
+		return prepareCompressedBody(delegate.executeRequest(acceptingDecodableCodings(request)));
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestAsync(final HttpRequestWrapper request)
+	{
+		final HttpRequestWrapper upstreamRequest = acceptingDecodableCodings(request);
+		final CompletionStage<HttpResponseWrapper> response = delegate instanceof AsyncHttpRequestExecutor ?
+				((AsyncHttpRequestExecutor) delegate).executeRequestAsync(upstreamRequest) :
+				CompletableFuture.completedFuture(delegate.executeRequest(upstreamRequest));
+		return response.thenApply(this::prepareCompressedBody);
+	}
+
+	@Override
+	public HttpResponseWrapper executeRequestStreaming(final HttpRequestWrapper request)
+	{
+		return delegate.executeRequestStreaming(request);
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestStreamingAsync(final HttpRequestWrapper request)
+	{
+		return delegate instanceof AsyncHttpRequestExecutor ?
+				((AsyncHttpRequestExecutor) delegate).executeRequestStreamingAsync(request) :
+				CompletableFuture.completedFuture(delegate.executeRequestStreaming(request));
+	}
+
+	/**
+	 * @return the request with the codings the proxy can't decode, e.g. br, removed from its Accept-Encoding header
+	 */
+	static HttpRequestWrapper acceptingDecodableCodings(final HttpRequestWrapper request)
+	{
+		final List<String> acceptEncoding = request.getHeaders().get(HttpHeaders.ACCEPT_ENCODING);
+		if (acceptEncoding == null)
+		{
+			return request;
+		}
+
+		final List<String> decodableCodings = new ArrayList<>();
+		boolean removed = false;
+		for (final String value : acceptEncoding)
+		{
+			for (final String coding : value.split(","))
+			{
+				final String name = coding.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+				if (ContentCoding.of(name) != null || IDENTITY.equals(name))
+				{
+					decodableCodings.add(coding.trim());
+				}
+				else if (!name.isEmpty())
+				{
+					// * included: it would let the server pick any coding
+					removed = true;
+				}
+			}
+		}
+		if (!removed)
+		{
+			return request;
+		}
+
+		final HttpHeaders headers = new HttpHeaders();
+		headers.putAll(request.getHeaders());
+		headers.set(HttpHeaders.ACCEPT_ENCODING, decodableCodings.isEmpty() ? IDENTITY : String.join(", ", decodableCodings));
+		return HttpRequestWrapper.builder()
+				.method(request.getMethod())
+				.url(request.getUrl())
+				.headers(headers)
+				.body(request.getBody())
+				.build();
+	}
+
+	private HttpResponseWrapper prepareCompressedBody(final HttpResponseWrapper response)
+	{
+		final RawBody rawBody = response.getRawBody();
+		final List<String> contentEncoding = response.getHeaders().get(HttpHeaders.CONTENT_ENCODING);
+		if (rawBody == null || contentEncoding == null || contentEncoding.size() != 1)
+		{
+			return response;
+		}
+
+		final ContentCoding coding = ContentCoding.of(contentEncoding.get(0));
+		if (coding == null)
+		{
+			log.debug("body encoded with {} can't be transformed", contentEncoding);
+			return response;
+		}
+		if (rawBody.getContentCoding() == null)
+		{
+			response.setRawBody(rawBody.withContentCoding(coding));
+		}
+		response.compressTransformedBodyWith(coding, compressionLevel);
+		return response;
+	}
+}
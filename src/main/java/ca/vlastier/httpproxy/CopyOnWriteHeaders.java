@@ -0,0 +1,414 @@
+package ca.vlastier.httpproxy;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.LinkedCaseInsensitiveMap;
+import org.springframework.util.MultiValueMap;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Headers reading through the upstream ones until they are changed, see {@link #wrap(HttpHeaders)}. Replaces the copy of every upstream header
+ * into new {@link HttpHeaders}: most responses are forwarded with the headers they came with, or with a few of them changed after they were read.
+ * <p>
+ * The first change copies the upstream headers, value lists included, so neither the upstream headers nor their lists are ever modified. Views
+ * returned by {@link #keySet()}, {@link #values()} and {@link #entrySet()} are read-through as well, and copy the headers before a removal or
+ * an {@link Map.Entry#setValue(Object)} goes through them.
+ */
+final class CopyOnWriteHeaders implements MultiValueMap<String, String>
+{
+	private MultiValueMap<String, String> upstream;
+	// null until the first change
+	private MultiValueMap<String, String> copy;
+
+	private CopyOnWriteHeaders(final MultiValueMap<String, String> upstream)
+	{
+		this.upstream = upstream;
+	}
+
+	/**
+	 * @return modifiable headers holding the upstream ones, which may be read-only, without copying them until they are changed
+	 */
+	static HttpHeaders wrap(final HttpHeaders upstream)
+	{
+		return new HttpHeaders(new CopyOnWriteHeaders(upstream));
+	}
+
+	/**
+	 * @return modifiable headers holding a copy of the given ones, value lists included, so that neither is changed through the other
+	 */
+	static HttpHeaders copyOf(final HttpHeaders headers)
+	{
+		return new HttpHeaders(copyOf((MultiValueMap<String, String>) headers));
+	}
+
+	private static MultiValueMap<String, String> copyOf(final MultiValueMap<String, String> headers)
+	{
+		final MultiValueMap<String, String> copy = newHeaderMap(headers.size());
+		headers.forEach((name, values) -> copy.put(name, new ArrayList<>(values)));
+		return copy;
+	}
+
+	private MultiValueMap<String, String> target()
+	{
+		return copy != null ? copy : upstream;
+	}
+
+	private MultiValueMap<String, String> writable()
+	{
+		if (copy == null)
+		{
+			copy = copyOf(upstream);
+			upstream = null;
+		}
+		return copy;
+	}
+
+	/**
+	 * same map as the one created by {@link HttpHeaders#HttpHeaders()}
+	 */
+	private static MultiValueMap<String, String> newHeaderMap(final int size)
+	{
+		return CollectionUtils.toMultiValueMap(new LinkedCaseInsensitiveMap<>(Math.max(size, 8), Locale.ENGLISH));
+	}
+
+	@Override
+	public String getFirst(final String name)
+	{
+		return target().getFirst(name);
+	}
+
+	@Override
+	public void add(final String name, final String value)
+	{
+		writable().add(name, value);
+	}
+
+	@Override
+	public void addAll(final String name, final List<? extends String> values)
+	{
+		writable().addAll(name, values);
+	}
+
+	@Override
+	public void addAll(final MultiValueMap<String, String> values)
+	{
+		writable().addAll(values);
+	}
+
+	@Override
+	public void set(final String name, final String value)
+	{
+		writable().set(name, value);
+	}
+
+	@Override
+	public void setAll(final Map<String, String> values)
+	{
+		writable().setAll(values);
+	}
+
+	@Override
+	public Map<String, String> toSingleValueMap()
+	{
+		return target().toSingleValueMap();
+	}
+
+	@Override
+	public int size()
+	{
+		return target().size();
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return target().isEmpty();
+	}
+
+	@Override
+	public boolean containsKey(final Object name)
+	{
+		return target().containsKey(name);
+	}
+
+	@Override
+	public boolean containsValue(final Object values)
+	{
+		return target().containsValue(values);
+	}
+
+	@Override
+	public List<String> get(final Object name)
+	{
+		return target().get(name);
+	}
+
+	@Override
+	public List<String> put(final String name, final List<String> values)
+	{
+		return writable().put(name, values);
+	}
+
+	@Override
+	public List<String> remove(final Object name)
+	{
+		if (copy == null && !upstream.containsKey(name))
+		{
+			return null;
+		}
+		return writable().remove(name);
+	}
+
+	@Override
+	public void putAll(final Map<? extends String, ? extends List<String>> values)
+	{
+		writable().putAll(values);
+	}
+
+	@Override
+	public void clear()
+	{
+		// nothing to copy
+		copy = newHeaderMap(0);
+		upstream = null;
+	}
+
+	@Override
+	public void forEach(final BiConsumer<? super String, ? super List<String>> action)
+	{
+		target().forEach(action);
+	}
+
+	@Override
+	public Set<String> keySet()
+	{
+		return new AbstractSet<>()
+		{
+			@Override
+			public Iterator<String> iterator()
+			{
+				return new ReadThroughIterator<>(Map.Entry::getKey, Map::keySet);
+			}
+
+			@Override
+			public int size()
+			{
+				return CopyOnWriteHeaders.this.size();
+			}
+
+			@Override
+			public boolean contains(final Object name)
+			{
+				return containsKey(name);
+			}
+
+			@Override
+			public boolean remove(final Object name)
+			{
+				return containsKey(name) && writable().keySet().remove(name);
+			}
+		};
+	}
+
+	@Override
+	public Collection<List<String>> values()
+	{
+		return new AbstractCollection<>()
+		{
+			@Override
+			public Iterator<List<String>> iterator()
+			{
+				return new ReadThroughIterator<>(Map.Entry::getValue, Map::values);
+			}
+
+			@Override
+			public int size()
+			{
+				return CopyOnWriteHeaders.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<String, List<String>>> entrySet()
+	{
+		return new AbstractSet<>()
+		{
+			@Override
+			public Iterator<Map.Entry<String, List<String>>> iterator()
+			{
+				return new ReadThroughIterator<>(ReadThroughEntry::new, Map::entrySet);
+			}
+
+			@Override
+			public int size()
+			{
+				return CopyOnWriteHeaders.this.size();
+			}
+		};
+	}
+
+	/**
+	 * compares the headers as {@link java.util.AbstractMap#equals(Object)} does: the upstream headers may be {@link HttpHeaders}, which are only
+	 * equal to other {@link HttpHeaders}
+	 */
+	@Override
+	public boolean equals(final Object other)
+	{
+		if (this == other)
+		{
+			return true;
+		}
+		if (!(other instanceof Map) || ((Map<?, ?>) other).size() != size())
+		{
+			return false;
+		}
+		final Map<?, ?> map = (Map<?, ?>) other;
+		for (final Map.Entry<String, List<String>> entry : target().entrySet())
+		{
+			final Object values = map.get(entry.getKey());
+			if (!Objects.equals(entry.getValue(), values) || values == null && !map.containsKey(entry.getKey()))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return target().hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return target().toString();
+	}
+
+	/**
+	 * Iterates the upstream headers until they are copied, then the copy. A removal copies the headers first: the iteration goes on over the
+	 * upstream headers, which don't change, while the header is removed from the copy.
+	 */
+	private final class ReadThroughIterator<E> implements Iterator<E>
+	{
+		private final Function<Map.Entry<String, List<String>>, E> element;
+		private final Iterator<Map.Entry<String, List<String>>> upstreamEntries;
+		private final Iterator<E> copied;
+		private String last;
+
+		ReadThroughIterator(final Function<Map.Entry<String, List<String>>, E> element,
+				final Function<MultiValueMap<String, String>, Collection<E>> view)
+		{
+			this.element = element;
+			this.upstreamEntries = copy == null ? upstream.entrySet().iterator() : null;
+			this.copied = copy != null ? view.apply(copy).iterator() : null;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return copied != null ? copied.hasNext() : upstreamEntries.hasNext();
+		}
+
+		@Override
+		public E next()
+		{
+			if (copied != null)
+			{
+				return copied.next();
+			}
+			final Map.Entry<String, List<String>> entry = upstreamEntries.next();
+			last = entry.getKey();
+			return element.apply(entry);
+		}
+
+		@Override
+		public void remove()
+		{
+			if (copied != null)
+			{
+				copied.remove();
+				return;
+			}
+			if (last == null)
+			{
+				throw new IllegalStateException("no header to remove");
+			}
+			writable().remove(last);
+			last = null;
+		}
+	}
+
+	/**
+	 * upstream entry, whose new value is put in the copy
+	 */
+	private final class ReadThroughEntry implements Map.Entry<String, List<String>>
+	{
+		private final String name;
+		private List<String> values;
+
+		ReadThroughEntry(final Map.Entry<String, List<String>> upstreamEntry)
+		{
+			this.name = upstreamEntry.getKey();
+			this.values = upstreamEntry.getValue();
+		}
+
+		@Override
+		public String getKey()
+		{
+			return name;
+		}
+
+		@Override
+		public List<String> getValue()
+		{
+			return values;
+		}
+
+		@Override
+		public List<String> setValue(final List<String> newValues)
+		{
+			final List<String> previous = values;
+			writable().put(name, newValues);
+			values = newValues;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(final Object other)
+		{
+			if (!(other instanceof Map.Entry))
+			{
+				return false;
+			}
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return name.equals(entry.getKey()) && Objects.equals(values, entry.getValue());
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return name.hashCode() ^ Objects.hashCode(values);
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + "=" + values;
+		}
+	}
+}
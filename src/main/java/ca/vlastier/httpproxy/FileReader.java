@@ -3,16 +3,20 @@ package ca.vlastier.httpproxy;
 import lombok.NonNull;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+/**
+ * @deprecated reads and formats the file on every call, use {@link TemplateStore} and its {@code %name%} placeholders
+ */
+@Deprecated
 public class FileReader
 {
 	public String readFileAsString(@NonNull Charset charset, @NonNull final String path, String... substituteArguments)
 	{
-		//TODO make substitution parametrized (ie %username% -> username). Or look for libraries
 		try
 		{
 			final String readString = Files.readString(Path.of(path), charset);
@@ -29,8 +33,7 @@ public class FileReader
 		}
 		catch (IOException e)
 		{
-			//TODO good exception
-			throw new RuntimeException(e.getMessage());
+			throw new UncheckedIOException("file can't be read from " + path, e);
 		}
 	}
 
@@ -0,0 +1,169 @@
+package ca.vlastier.httpproxy;
+
+import org.springframework.http.HttpHeaders;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Header values fetched by the predicates of the rules while {@link HttpProxyService} evaluates them, so each header is looked up once per
+ * request or response, whatever the number of rules testing it.
+ * <p>
+ * Every header name tested by the conditions of a configurator gets a slot of its {@link Slots}, see {@link Slots#slotOf(String)}. Slots belong
+ * to the rules configured together, so they are released with them when the rules of the service are replaced. The service attaches a lookup
+ * to the wrapper before evaluating the predicates and detaches it afterwards, since transformations may change the headers. A detached lookup
+ * can be attached again, so a thread surfing request after request reuses the same one.
+ * <p>
+ * A lookup keeps the values for the slots of one configurator at a time, the one of the first predicate fetching a header: when the service
+ * mixes rules of several configurators, the predicates of the others read the headers from the wrapper.
+ * <p>
+ * A lookup is confined to the thread evaluating the predicates, its values are not shared safely between threads. The service does not attach
+ * one when response predicates are evaluated in parallel, see
+ * {@link ca.vlastier.httpproxy.configuration.Builder#parallelResponsePredicates(java.util.concurrent.ForkJoinPool, int)}: those predicates read the
+ * headers from the wrapper.
+ */
+final class HeaderLookup
+{
+	private static final Object MISSING = new Object();
+	private static final Object PRESENT_WITHOUT_VALUES = new Object();
+
+	private static final Object[] NO_VALUES = new Object[0];
+
+	private HttpHeaders headers;
+	// slots the values are kept for, null until a predicate fetches a header
+	private Slots slots;
+	private Object[] values = NO_VALUES;
+	// values set since the lookup was attached, values may be longer when the lookup is reused
+	private int used;
+
+	/**
+	 * Attaches a lookup to the wrapper, unless it is null
+	 */
+	static void attach(final HttpWrapper wrapper)
+	{
+		attach(wrapper, new HeaderLookup());
+	}
+
+	/**
+	 * Same as {@link #attach(HttpWrapper)} with a lookup which is not attached to another wrapper
+	 */
+	static void attach(final HttpWrapper wrapper, final HeaderLookup lookup)
+	{
+		if (wrapper != null)
+		{
+			lookup.headers = wrapper.getHeaders();
+			wrapper.setHeaderLookup(lookup);
+		}
+	}
+
+	/**
+	 * Detaches the lookup of the wrapper, and forgets the headers it fetched so it can be attached again
+	 */
+	static void detach(final HttpWrapper wrapper)
+	{
+		if (wrapper != null && wrapper.getHeaderLookup() != null)
+		{
+			final HeaderLookup lookup = wrapper.getHeaderLookup();
+			wrapper.setHeaderLookup(null);
+			Arrays.fill(lookup.values, 0, lookup.used, null);
+			lookup.headers = null;
+			lookup.slots = null;
+			lookup.used = 0;
+		}
+	}
+
+	/**
+	 * @return the values of the header, as {@link HttpHeaders#get(Object)} returns them: null when the header is absent
+	 */
+	@SuppressWarnings("unchecked")
+	static List<String> values(final HttpWrapper wrapper, final Slot slot)
+	{
+		final HeaderLookup lookup = wrapper.getHeaderLookup();
+		// the lookup is skipped if the headers were replaced or it keeps the values of another configurator
+		if (lookup == null || lookup.headers != wrapper.getHeaders() || !lookup.keeps(slot))
+		{
+			return wrapper.getHeaders().get(slot.header);
+		}
+
+		final Object values = lookup.fetch(slot);
+		return values instanceof List ? (List<String>) values : null;
+	}
+
+	/**
+	 * @return true if the header is present, as {@link HttpHeaders#containsKey(Object)} tells, even without values
+	 */
+	static boolean contains(final HttpWrapper wrapper, final Slot slot)
+	{
+		final HeaderLookup lookup = wrapper.getHeaderLookup();
+		if (lookup == null || lookup.headers != wrapper.getHeaders() || !lookup.keeps(slot))
+		{
+			return wrapper.getHeaders().containsKey(slot.header);
+		}
+
+		return lookup.fetch(slot) != MISSING;
+	}
+
+	private boolean keeps(final Slot slot)
+	{
+		if (slots == null)
+		{
+			slots = slot.slots;
+		}
+		return slots == slot.slots;
+	}
+
+	private Object fetch(final Slot slot)
+	{
+		if (slot.index >= values.length)
+		{
+			values = Arrays.copyOf(values, Math.max(slots.count(), slot.index + 1));
+		}
+		Object fetched = values[slot.index];
+		if (fetched == null)
+		{
+			final List<String> headerValues = headers.get(slot.header);
+			fetched = headerValues != null ? headerValues : headers.containsKey(slot.header) ? PRESENT_WITHOUT_VALUES : MISSING;
+			values[slot.index] = fetched;
+			used = Math.max(used, slot.index + 1);
+		}
+		return fetched;
+	}
+
+	/**
+	 * Slots of the header names tested by the conditions of one configurator
+	 */
+	static final class Slots
+	{
+		private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+		/**
+		 * @return the slot of the header, the same for every spelling of its name
+		 */
+		Slot slotOf(final String header)
+		{
+			return slots.computeIfAbsent(header.toLowerCase(Locale.ROOT), name -> new Slot(this, slots.size(), header));
+		}
+
+		int count()
+		{
+			return slots.size();
+		}
+	}
+
+	static final class Slot
+	{
+		private final Slots slots;
+		private final int index;
+		private final String header;
+
+		private Slot(final Slots slots, final int index, final String header)
+		{
+			this.slots = slots;
+			this.index = index;
+			this.header = header;
+		}
+	}
+}
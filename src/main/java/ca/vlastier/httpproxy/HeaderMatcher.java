@@ -0,0 +1,157 @@
+package ca.vlastier.httpproxy;
+
+import lombok.NonNull;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Case insensitive test of header values, compiled once when the rule is configured. Exact, prefix and contains modes compare the characters in
+ * place, without converting the values to upper or lower case, so matching a value does not allocate.
+ */
+public abstract class HeaderMatcher
+{
+	private final String description;
+
+	private HeaderMatcher(final String description)
+	{
+		this.description = description;
+	}
+
+	/**
+	 * Matches values equal to the expected one, ignoring case
+	 */
+	public static HeaderMatcher exact(@NonNull final String expected)
+	{
+		return new HeaderMatcher("equals " + expected)
+		{
+			@Override
+			public boolean matches(final String value)
+			{
+				return expected.equalsIgnoreCase(value);
+			}
+		};
+	}
+
+	/**
+	 * Matches values starting with the prefix, ignoring case
+	 */
+	public static HeaderMatcher prefix(@NonNull final String prefix)
+	{
+		return new HeaderMatcher("starts with " + prefix)
+		{
+			@Override
+			public boolean matches(final String value)
+			{
+				return value != null && value.regionMatches(true, 0, prefix, 0, prefix.length());
+			}
+		};
+	}
+
+	/**
+	 * Matches values containing the expected text, ignoring case
+	 */
+	public static HeaderMatcher contains(@NonNull final String expected)
+	{
+		final int length = expected.length();
+		if (length == 0)
+		{
+			return new HeaderMatcher("contains \"\"")
+			{
+				@Override
+				public boolean matches(final String value)
+				{
+					return value != null;
+				}
+			};
+		}
+
+		final char first = expected.charAt(0);
+		return new HeaderMatcher("contains " + expected)
+		{
+			@Override
+			public boolean matches(final String value)
+			{
+				if (value == null)
+				{
+					return false;
+				}
+				for (int i = 0, last = value.length() - length; i <= last; i++)
+				{
+					// cheap check of the first character before comparing the whole region
+					if (equalsIgnoreCase(value.charAt(i), first) && value.regionMatches(true, i + 1, expected, 1, length - 1))
+					{
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Matches values in which the case insensitive regular expression is found
+	 */
+	public static HeaderMatcher regex(@NonNull final String regex)
+	{
+		return regex(Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+	}
+
+	/**
+	 * Matches values in which the pattern is found, with the flags it was compiled with. Each thread reuses its own {@link Matcher}.
+	 */
+	public static HeaderMatcher regex(@NonNull final Pattern pattern)
+	{
+		final ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+		return new HeaderMatcher("matches " + pattern.pattern())
+		{
+			@Override
+			public boolean matches(final String value)
+			{
+				return value != null && matchers.get().reset(value).find();
+			}
+		};
+	}
+
+	/**
+	 * same comparison as {@link String#regionMatches(boolean, int, String, int, int)}
+	 */
+	private static boolean equalsIgnoreCase(final char c1, final char c2)
+	{
+		if (c1 == c2)
+		{
+			return true;
+		}
+		final char u1 = Character.toUpperCase(c1);
+		final char u2 = Character.toUpperCase(c2);
+		return u1 == u2 || Character.toLowerCase(u1) == Character.toLowerCase(u2);
+	}
+
+	public abstract boolean matches(String value);
+
+	/**
+	 * @return true if one of the values matches. False when there is no value
+	 */
+	public boolean matchesAny(final List<String> values)
+	{
+		if (values == null)
+		{
+			return false;
+		}
+		for (int i = 0; i < values.size(); i++)
+		{
+			if (matches(values.get(i)))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+}
@@ -0,0 +1,145 @@
+package ca.vlastier.httpproxy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.Value;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsed html fragments appended to response bodies, so the same fragment is not read and parsed again for every response.
+ * <p>
+ * Fragments are parsed in the context of the element they are appended to, the way {@link Element#html(String)} does, and kept by source: their
+ * html, or the file they are read from. A file is checked for changes, by its modification time and size, at most once per second.
+ * <p>
+ * The cached nodes are templates: they are never attached to a document, only deep-cloned, see {@link #instantiate(List)}.
+ */
+class HtmlFragmentCache
+{
+	private static final int MAXIMUM_PARSED_SOURCES = 256;
+	private static final long FILE_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final Cache<Source, List<Node>> parsedSources = Caffeine.newBuilder().maximumSize(MAXIMUM_PARSED_SOURCES).build();
+	private final Map<Source, FileFragment> files = new ConcurrentHashMap<>();
+	private final long fileCheckInterval;
+
+	HtmlFragmentCache()
+	{
+		this(FILE_CHECK_INTERVAL);
+	}
+
+	/**
+	 * @param fileCheckInterval minimum time, in nanoseconds, between two checks of a file for changes
+	 */
+	HtmlFragmentCache(final long fileCheckInterval)
+	{
+		this.fileCheckInterval = fileCheckInterval;
+	}
+
+	/**
+	 * @return the nodes of the html parsed as the content of a {@code tagName} element
+	 */
+	List<Node> fragment(final String tagName, final String html)
+	{
+		return parsedSources.get(new Source(tagName, html), source -> parse(tagName, html));
+	}
+
+	/**
+	 * @return the nodes of the file parsed as the content of a {@code tagName} element, parsed again when the file changed
+	 * @throws UncheckedIOException if the file can't be read
+	 */
+	List<Node> fragment(final String tagName, final Path file, final Charset charset)
+	{
+		final Source source = new Source(tagName, file.toAbsolutePath().normalize() + "\u0000" + charset.name());
+		final long now = System.nanoTime();
+		final FileFragment cached = files.get(source);
+		if (cached != null && now - cached.checkedAt < fileCheckInterval)
+		{
+			return cached.nodes;
+		}
+
+		final BasicFileAttributes attributes;
+		try
+		{
+			attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		}
+		catch (final IOException e)
+		{
+			files.remove(source);
+			throw new UncheckedIOException("html fragment can't be read from " + file, e);
+		}
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+		if (cached != null && cached.lastModified == lastModified && cached.size == attributes.size())
+		{
+			files.put(source, new FileFragment(cached.nodes, lastModified, cached.size, now));
+			return cached.nodes;
+		}
+
+		final String html;
+		try
+		{
+			html = Files.readString(file, charset);
+		}
+		catch (final IOException e)
+		{
+			files.remove(source);
+			throw new UncheckedIOException("html fragment can't be read from " + file, e);
+		}
+		final List<Node> nodes = parse(tagName, html);
+		files.put(source, new FileFragment(nodes, lastModified, attributes.size(), now));
+		return nodes;
+	}
+
+	static List<Node> parse(final String tagName, final String html)
+	{
+		return List.copyOf(Parser.parseFragment(html, new Element(tagName), ""));
+	}
+
+	/**
+	 * @return deep copies of the template nodes, which can be attached to a document
+	 */
+	static Node[] instantiate(final List<Node> template)
+	{
+		final Node[] nodes = new Node[template.size()];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			nodes[i] = template.get(i).clone();
+		}
+		return nodes;
+	}
+
+	@Value
+	private static class Source
+	{
+		String tagName;
+		String source;
+	}
+
+	private static class FileFragment
+	{
+		private final List<Node> nodes;
+		private final long lastModified;
+		private final long size;
+		private final long checkedAt;
+
+		FileFragment(final List<Node> nodes, final long lastModified, final long size, final long checkedAt)
+		{
+			this.nodes = nodes;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.checkedAt = checkedAt;
+		}
+	}
+}
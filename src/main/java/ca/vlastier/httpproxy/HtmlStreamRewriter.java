@@ -0,0 +1,1075 @@
+package ca.vlastier.httpproxy;
+
+import org.jsoup.nodes.Attributes;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.ParseSettings;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.jsoup.select.QueryParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Applies html transformations while the document flows from input to output, without building the DOM of the whole page.
+ * Markup is copied as is until a start tag matching one of the transformations is found. Only that element (with its content) is buffered,
+ * parsed as a fragment and handed to the transformations; appended elements are inserted right before the closing body tag.
+ * <p>
+ * Only plain tag name selectors of element changes asked to be streamed can be handled this way, see {@link #isStreamable(String)} and
+ * {@link ChangeElements}. Anything else needs the whole document,
+ * in which case the pending operations are replayed on it by {@link #applyTo(Document)} to keep the declared order. Consecutive element changes
+ * are then looked up together, in a single walk over the document, see {@link #changeElements(Document, List, int[], OperationListener)}.
+ */
+class HtmlStreamRewriter
+{
+	private static final Logger log = LoggerFactory.getLogger(HttpProxyService.class);
+
+	private static final Pattern TAG_NAME_SELECTOR = Pattern.compile("[a-zA-Z][a-zA-Z0-9-]*");
+	// elements with optional end tags or defining the document structure. Where they end is known only to a full parser
+	private static final Set<String> DOM_ONLY_ELEMENTS = Set.of("html", "head", "body", "frameset", "frame", "p", "li", "dt", "dd", "option",
+			"optgroup", "rb", "rt", "rtc", "rp", "tr", "td", "th", "thead", "tbody", "tfoot", "caption", "colgroup", "col");
+	private static final Set<String> VOID_ELEMENTS = Set.of("area", "base", "basefont", "bgsound", "br", "embed", "hr", "img", "input", "keygen",
+			"link", "meta", "param", "source", "track", "wbr");
+	private static final Set<String> RAW_TEXT_ELEMENTS = Set.of("script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes");
+
+	private final String baseUri;
+	private final List<Operation> operations = new ArrayList<>();
+	// position of the rule which added each operation, -1 if unknown
+	private int[] owners = new int[4];
+
+	HtmlStreamRewriter(final String baseUri)
+	{
+		this.baseUri = baseUri;
+	}
+
+	/**
+	 * @return true if elements selected by the css query can be found without parsing the whole document
+	 */
+	static boolean isStreamable(final String cssQuery)
+	{
+		return TAG_NAME_SELECTOR.matcher(cssQuery).matches() && !DOM_ONLY_ELEMENTS.contains(cssQuery.toLowerCase(Locale.ROOT));
+	}
+
+	void add(final Operation operation)
+	{
+		add(operation, -1);
+	}
+
+	/**
+	 * @param owner position of the rule adding the operation, given back to the {@link OperationListener} when the operation is applied to a
+	 *              parsed document
+	 */
+	void add(final Operation operation, final int owner)
+	{
+		if (operations.size() == owners.length)
+		{
+			owners = Arrays.copyOf(owners, owners.length * 2);
+		}
+		owners[operations.size()] = owner;
+		operations.add(operation);
+	}
+
+	/**
+	 * @return true if none of the pending operations needs the whole document
+	 */
+	boolean isStreamable()
+	{
+		for (final Operation operation : operations)
+		{
+			if (!operation.isStreamable())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies pending operations to a fully parsed document, in the order they were added.
+	 */
+	void applyTo(final Document document)
+	{
+		applyTo(document, null);
+	}
+
+	/**
+	 * Applies pending operations to a fully parsed document, in the order they were added, and tells the listener, if any, about the time spent
+	 * on each one and about the one which failed. A failure stops the application and is thrown.
+	 */
+	void applyTo(final Document document, final OperationListener listener)
+	{
+		int i = 0;
+		while (i < operations.size())
+		{
+			if (!(operations.get(i) instanceof ChangeElements))
+			{
+				final long start = System.nanoTime();
+				try
+				{
+					operations.get(i).applyTo(document);
+				}
+				catch (final RuntimeException e)
+				{
+					notifyFailure(listener, owners[i], e);
+					throw e;
+				}
+				finally
+				{
+					notifyApplied(listener, owners[i], System.nanoTime() - start);
+				}
+				i++;
+				continue;
+			}
+
+			final int first = i;
+			while (i < operations.size() && operations.get(i) instanceof ChangeElements)
+			{
+				i++;
+			}
+			final List<ChangeElements> batch = new ArrayList<>(i - first);
+			operations.subList(first, i).forEach(operation -> batch.add((ChangeElements) operation));
+			changeElements(document, batch, Arrays.copyOfRange(owners, first, i), listener);
+		}
+	}
+
+	/**
+	 * Applies several element changes with a single walk over the document instead of one per selector. The elements matched by each selector
+	 * are collected during the walk, then the changes are applied in their declared order.
+	 * <p>
+	 * The result is the one of separate selections as long as a change only touches the content of the parent of the changed elements:
+	 * <ul>
+	 * <li>an element is checked again right before it is changed, so elements detached or no longer matching because of a previous change are
+	 * skipped, and the filter is evaluated only then</li>
+	 * <li>after each change, the content of the parents of the changed elements is walked again. If it holds an element that the selector of a
+	 * next change now matches, that next change selects its elements from the whole document again</li>
+	 * </ul>
+	 * The listener is told about the time spent on each change: its filter, its action and an equal share of the walk.
+	 */
+	private static void changeElements(final Document document, final List<ChangeElements> batch, final int[] owners,
+			final OperationListener listener)
+	{
+		final long walkStart = System.nanoTime();
+		final List<List<Element>> matches = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++)
+		{
+			matches.add(new ArrayList<>());
+		}
+		forEachElement(document, element -> {
+			for (int i = 0; i < batch.size(); i++)
+			{
+				if (batch.get(i).evaluator.matches(document, element))
+				{
+					matches.get(i).add(element);
+				}
+			}
+		});
+
+		final long walkShare = (System.nanoTime() - walkStart) / batch.size();
+
+		final BitSet reselected = new BitSet(batch.size());
+		boolean documentChanged = false;
+		for (int i = 0; i < batch.size(); i++)
+		{
+			final long start = System.nanoTime();
+			try
+			{
+				documentChanged |= changeElementsAt(i, document, batch, documentChanged, matches, reselected);
+			}
+			catch (final RuntimeException e)
+			{
+				notifyFailure(listener, owners[i], e);
+				throw e;
+			}
+			finally
+			{
+				notifyApplied(listener, owners[i], walkShare + System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * applies the change at the index of the batch to the elements collected during the walk
+	 *
+	 * @return true if elements were changed
+	 */
+	private static boolean changeElementsAt(final int i, final Document document, final List<ChangeElements> batch,
+			final boolean documentChanged, final List<List<Element>> matches, final BitSet reselected)
+	{
+		final ChangeElements changeElements = batch.get(i);
+		final List<Element> foundHtmlElements;
+		if (reselected.get(i))
+		{
+			foundHtmlElements = changeElements.select(document);
+		}
+		else
+		{
+			foundHtmlElements = new ArrayList<>();
+			for (final Element element : matches.get(i))
+			{
+				if ((!documentChanged || isStillMatching(document, element, changeElements.evaluator)) && changeElements.filter.test(element))
+				{
+					foundHtmlElements.add(element);
+				}
+			}
+		}
+
+		final List<Element> elementsToChange = changeElements.elementsToChange(foundHtmlElements);
+		if (elementsToChange.isEmpty())
+		{
+			return false;
+		}
+		final List<Element> changedParts = parentsOf(elementsToChange);
+		elementsToChange.forEach(changeElements.action);
+		if (i + 1 < batch.size())
+		{
+			markNewMatches(document, changedParts, batch, i + 1, matches, reselected);
+		}
+		return true;
+	}
+
+	private static void notifyApplied(final OperationListener listener, final int owner, final long durationNanos)
+	{
+		if (listener != null)
+		{
+			listener.applied(owner, durationNanos);
+		}
+	}
+
+	private static void notifyFailure(final OperationListener listener, final int owner, final RuntimeException e)
+	{
+		if (listener != null)
+		{
+			listener.failed(owner, e);
+		}
+	}
+
+	/**
+	 * @return the parents of the elements, without those nested in another one of the list
+	 */
+	private static List<Element> parentsOf(final List<Element> elements)
+	{
+		final Set<Element> parents = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (final Element element : elements)
+		{
+			parents.add(element.parent() != null ? element.parent() : element);
+		}
+		final List<Element> outermostParents = new ArrayList<>(parents.size());
+		for (final Element parent : parents)
+		{
+			Element ancestor = parent.parent();
+			while (ancestor != null && !parents.contains(ancestor))
+			{
+				ancestor = ancestor.parent();
+			}
+			if (ancestor == null)
+			{
+				outermostParents.add(parent);
+			}
+		}
+		return outermostParents;
+	}
+
+	/**
+	 * marks the next changes whose selector matches an element of the changed parts it didn't match during the walk
+	 */
+	private static void markNewMatches(final Document document, final List<Element> changedParts, final List<ChangeElements> batch,
+			final int from, final List<List<Element>> matches, final BitSet reselected)
+	{
+		final List<Set<Element>> matchSets = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++)
+		{
+			matchSets.add(null);
+		}
+		for (final Element changedPart : changedParts)
+		{
+			if (changedPart.root() != document)
+			{
+				continue;
+			}
+			forEachElement(changedPart, element -> {
+				for (int i = from; i < batch.size(); i++)
+				{
+					if (reselected.get(i) || !batch.get(i).evaluator.matches(document, element))
+					{
+						continue;
+					}
+					if (matchSets.get(i) == null)
+					{
+						final Set<Element> matchSet = Collections.newSetFromMap(new IdentityHashMap<>());
+						matchSet.addAll(matches.get(i));
+						matchSets.set(i, matchSet);
+					}
+					if (!matchSets.get(i).contains(element))
+					{
+						reselected.set(i);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * visits the root and its descendant elements in document order, the order of {@link Element#select(String)}
+	 */
+	private static void forEachElement(final Element root, final Consumer<Element> visitor)
+	{
+		NodeTraversor.traverse(new NodeVisitor()
+		{
+			@Override
+			public void head(final Node node, final int depth)
+			{
+				if (node instanceof Element)
+				{
+					visitor.accept((Element) node);
+				}
+			}
+
+			@Override
+			public void tail(final Node node, final int depth)
+			{
+			}
+		}, root);
+	}
+
+	private static boolean isStillMatching(final Document document, final Element element, final Evaluator evaluator)
+	{
+		return element.root() == document && evaluator.matches(document, element);
+	}
+
+	String rewrite(final String html)
+	{
+		final StringWriter out = new StringWriter(html.length() + 256);
+		try
+		{
+			rewrite(new StringReader(html), out);
+		}
+		catch (final IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	void rewrite(final Reader in, final Writer out) throws IOException
+	{
+		new Pass(in, out).run();
+		out.flush();
+	}
+
+	/**
+	 * Told about the operations applied to a parsed document, on behalf of the rules which added them, see {@link #add(Operation, int)}
+	 */
+	interface OperationListener
+	{
+		/**
+		 * @param owner position of the rule which added the operation, -1 if unknown
+		 * @param durationNanos time spent on the operation, even if it failed
+		 */
+		void applied(int owner, long durationNanos);
+
+		/**
+		 * called before {@link #applied(int, long)} when the operation threw the exception, which is then thrown again
+		 */
+		void failed(int owner, RuntimeException e);
+	}
+
+	interface Operation
+	{
+		void applyTo(Document document);
+
+		/**
+		 * @return true if the operation can be applied while the document is streamed
+		 */
+		boolean isStreamable();
+	}
+
+	/**
+	 * Changes the elements selected by a css query. The query is compiled once, when the operation is created, and an invalid query is rejected
+	 * then.
+	 * <p>
+	 * The change is streamed only if asked for and if its query is streamable. The filter and the action of a streamed change get the element
+	 * parsed as a fragment, out of the document: its content is there, but not its parent, siblings or owner document. Other changes are applied
+	 * to the whole document.
+	 */
+	static class ChangeElements implements Operation
+	{
+		private final String tagName;
+		private final Evaluator evaluator;
+		private final boolean streamable;
+		private final Predicate<Element> filter;
+		private final Consumer<Element> action;
+		private final boolean firstOnly;
+
+		ChangeElements(final String cssQuery, final Predicate<Element> filter, final Consumer<Element> action, final boolean firstOnly,
+				final boolean streamed)
+		{
+			this.tagName = cssQuery.toLowerCase(Locale.ROOT);
+			this.evaluator = QueryParser.parse(cssQuery);
+			this.streamable = streamed && HtmlStreamRewriter.isStreamable(cssQuery);
+			this.filter = filter;
+			this.action = action;
+			this.firstOnly = firstOnly;
+		}
+
+		/**
+		 * change applied to the whole document, of the elements matched by an already compiled query
+		 */
+		ChangeElements(final Evaluator evaluator, final Predicate<Element> filter, final Consumer<Element> action, final boolean firstOnly)
+		{
+			this.tagName = null;
+			this.evaluator = evaluator;
+			this.streamable = false;
+			this.filter = filter;
+			this.action = action;
+			this.firstOnly = firstOnly;
+		}
+
+		@Override
+		public boolean isStreamable()
+		{
+			return streamable;
+		}
+
+		@Override
+		public void applyTo(final Document document)
+		{
+			elementsToChange(select(document)).forEach(action);
+		}
+
+		private List<Element> select(final Document document)
+		{
+			final List<Element> foundHtmlElements = new ArrayList<>();
+			forEachElement(document, element -> {
+				if (evaluator.matches(document, element) && filter.test(element))
+				{
+					foundHtmlElements.add(element);
+				}
+			});
+			return foundHtmlElements;
+		}
+
+		private List<Element> elementsToChange(final List<Element> foundHtmlElements)
+		{
+			if (foundHtmlElements.isEmpty())
+			{
+				log.debug("html elements for this filter not found");
+			}
+			else if (firstOnly)
+			{
+				if (foundHtmlElements.size() > 1)
+				{
+					//TODO better request identifier
+					log.warn("found more than one element. Applying transformations to the first one");
+				}
+				return foundHtmlElements.subList(0, 1);
+			}
+			return foundHtmlElements;
+		}
+	}
+
+	/**
+	 * Appends an element to the body, filled with copies of parsed template nodes, see {@link HtmlFragmentCache}.
+	 */
+	static class AppendToBody implements Operation
+	{
+		private final String tagName;
+		private final List<Node> template;
+
+		AppendToBody(final String tagName, final String innerHtml)
+		{
+			this(tagName, HtmlFragmentCache.parse(tagName, innerHtml));
+		}
+
+		AppendToBody(final String tagName, final List<Node> template)
+		{
+			this.tagName = tagName;
+			this.template = template;
+		}
+
+		@Override
+		public void applyTo(final Document document)
+		{
+			append(document.body());
+		}
+
+		@Override
+		public boolean isStreamable()
+		{
+			return true;
+		}
+
+		private void append(final Element body)
+		{
+			try
+			{
+				//TODO exception when tagName is wrong
+				final Element element = new Element(tagName);
+				element.insertChildren(0, HtmlFragmentCache.instantiate(template));
+				body.appendChild(element);
+			}
+			catch (final RuntimeException e)
+			{
+				log.warn("an error occurred when appending html element: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Single run of the rewriter over the input. Keeps the state of the tokenizer and of the operations which must be applied only once.
+	 */
+	private class Pass
+	{
+		private final CharSource in;
+		private final Writer out;
+		private final BitSet completedOperations = new BitSet();
+		private final Document shell;
+
+		private StringBuilder capture;
+		private String captureTagName;
+		private int captureStartTagLength;
+		private int captureDepth;
+		private boolean appendedToBody;
+
+		Pass(final Reader in, final Writer out)
+		{
+			this.in = new CharSource(in);
+			this.out = out;
+			this.shell = Document.createShell(baseUri);
+			this.shell.outputSettings().prettyPrint(false);
+		}
+
+		void run() throws IOException
+		{
+			while (in.peek() >= 0)
+			{
+				if (in.peek() == '<')
+				{
+					in.read();
+					markup();
+				}
+				else
+				{
+					in.copyUntil('<', this::emit);
+				}
+			}
+
+			if (capture != null)
+			{
+				// unclosed element. The fragment parser closes it the same way the document parser would
+				flushCapture();
+			}
+			if (!appendedToBody)
+			{
+				appendToBody();
+			}
+		}
+
+		private void markup() throws IOException
+		{
+			final int next = in.peek();
+			if (next == '!' || next == '?')
+			{
+				declarationOrComment();
+			}
+			else if (next == '/')
+			{
+				in.read();
+				endTag(readTag("</"));
+			}
+			else if (next >= 0 && Character.isLetter(next))
+			{
+				startTag(readTag("<"));
+			}
+			else
+			{
+				emit("<");
+			}
+		}
+
+		private void declarationOrComment() throws IOException
+		{
+			final StringBuilder token = new StringBuilder("<");
+			token.append((char) in.read());
+			if (in.peek() == '-')
+			{
+				token.append((char) in.read());
+				if (in.peek() == '-')
+				{
+					token.append((char) in.read());
+					in.copyUntilSequence("-->", token);
+					emit(token);
+					return;
+				}
+			}
+			in.copyUntilSequence(">", token);
+			emit(token);
+		}
+
+		private void startTag(final String token) throws IOException
+		{
+			final String name = tagName(token, 1);
+			final boolean selfClosing = token.endsWith("/>");
+
+			if (capture != null)
+			{
+				capture.append(token);
+				if (RAW_TEXT_ELEMENTS.contains(name))
+				{
+					copyRawText(name);
+				}
+				else if (name.equals(captureTagName) && !selfClosing && !VOID_ELEMENTS.contains(name))
+				{
+					captureDepth++;
+				}
+				return;
+			}
+
+			if (isHandled(name))
+			{
+				capture = new StringBuilder(token);
+				captureTagName = name;
+				captureStartTagLength = token.length();
+				captureDepth = 1;
+				if (RAW_TEXT_ELEMENTS.contains(name))
+				{
+					copyRawText(name);
+					flushCapture();
+				}
+				else if (selfClosing || VOID_ELEMENTS.contains(name))
+				{
+					flushCapture();
+				}
+				return;
+			}
+
+			out.write(token);
+			if (RAW_TEXT_ELEMENTS.contains(name))
+			{
+				copyRawText(name);
+			}
+		}
+
+		private void endTag(final String token) throws IOException
+		{
+			final String name = tagName(token, 2);
+
+			if (capture != null)
+			{
+				capture.append(token);
+				if (name.equals(captureTagName) && --captureDepth == 0)
+				{
+					flushCapture();
+				}
+				return;
+			}
+
+			if (!appendedToBody && name.equals("body"))
+			{
+				appendToBody();
+			}
+			out.write(token);
+		}
+
+		/**
+		 * copies content of script, style and alike up to and including their end tag. Such content is not markup
+		 */
+		private void copyRawText(final String name) throws IOException
+		{
+			while (in.peek() >= 0)
+			{
+				in.copyUntil('<', this::emit);
+				if (in.peek() < 0)
+				{
+					return;
+				}
+				in.read();
+				if (in.peek() == '/')
+				{
+					in.read();
+					final StringBuilder candidate = new StringBuilder("</");
+					while (in.peek() >= 0 && isTagNameCharacter(in.peek()) && candidate.length() < name.length() + 2)
+					{
+						candidate.append((char) in.read());
+					}
+					if (candidate.substring(2).equalsIgnoreCase(name) && !isTagNameCharacter(in.peek()))
+					{
+						in.copyUntilSequence(">", candidate);
+						emit(candidate);
+						return;
+					}
+					emit(candidate);
+				}
+				else
+				{
+					emit("<");
+				}
+			}
+		}
+
+		private String readTag(final String opening) throws IOException
+		{
+			final StringBuilder token = new StringBuilder(opening);
+			char quote = 0;
+			int c;
+			while ((c = in.read()) >= 0)
+			{
+				token.append((char) c);
+				if (quote != 0)
+				{
+					quote = c == quote ? 0 : quote;
+				}
+				else if (c == '"' || c == '\'')
+				{
+					quote = (char) c;
+				}
+				else if (c == '>')
+				{
+					break;
+				}
+			}
+			return token.toString();
+		}
+
+		private boolean isHandled(final String name)
+		{
+			for (int i = 0; i < operations.size(); i++)
+			{
+				final Operation operation = operations.get(i);
+				if (operation instanceof ChangeElements && !completedOperations.get(i) && ((ChangeElements) operation).tagName.equals(name))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void flushCapture() throws IOException
+		{
+			final String html = capture.toString();
+			final String name = captureTagName;
+			capture = null;
+			captureTagName = null;
+
+			final Element context = createFragmentContext();
+			if (!buildTextOnlyElement(html, name, context))
+			{
+				context.insertChildren(0, Parser.parseFragment(html, context, baseUri));
+			}
+			// untouched elements are copied as they were, not as the parser would print them
+			out.write(changeElements(context, 0) ? context.html() : html);
+		}
+
+		private void appendToBody() throws IOException
+		{
+			appendedToBody = true;
+			for (int i = 0; i < operations.size(); i++)
+			{
+				if (operations.get(i) instanceof AppendToBody)
+				{
+					final Element context = createFragmentContext();
+					((AppendToBody) operations.get(i)).append(context);
+					// operations declared after the append see the appended element, same as with the whole document
+					changeElements(context, i + 1);
+					out.write(context.html());
+				}
+			}
+		}
+
+		/**
+		 * @return true if any element of the fragment was passed to an action
+		 */
+		private boolean changeElements(final Element context, final int fromOperation)
+		{
+			boolean changed = false;
+			for (int i = fromOperation; i < operations.size(); i++)
+			{
+				final Operation operation = operations.get(i);
+				if (!(operation instanceof ChangeElements) || completedOperations.get(i))
+				{
+					continue;
+				}
+
+				final ChangeElements changeElements = (ChangeElements) operation;
+				for (final Element element : context.children().select(changeElements.tagName))
+				{
+					if (changeElements.filter.test(element))
+					{
+						changeElements.action.accept(element);
+						changed = true;
+						if (changeElements.firstOnly)
+						{
+							completedOperations.set(i);
+							break;
+						}
+					}
+				}
+			}
+			return changed;
+		}
+
+		/**
+		 * Most matched elements contain only text. Such elements are built directly, as the fragment parser is expensive to set up for every element.
+		 *
+		 * @return false if the element has nested markup and must be parsed
+		 */
+		private boolean buildTextOnlyElement(final String html, final String name, final Element context)
+		{
+			if (RAW_TEXT_ELEMENTS.contains(name))
+			{
+				return false;
+			}
+
+			final String startTag = html.substring(0, captureStartTagLength);
+			String text = "";
+			if (html.length() > captureStartTagLength)
+			{
+				final int endTagStart = html.lastIndexOf("</");
+				if (endTagStart < captureStartTagLength || html.indexOf('<', captureStartTagLength) != endTagStart)
+				{
+					return false;
+				}
+				text = html.substring(captureStartTagLength, endTagStart);
+			}
+
+			final Attributes attributes = parseAttributes(startTag, name.length() + 1);
+			if (attributes == null)
+			{
+				return false;
+			}
+
+			final Element element = new Element(Tag.valueOf(name, ParseSettings.htmlDefault), baseUri, attributes);
+			if (!text.isEmpty())
+			{
+				element.appendChild(new TextNode(unescapeEntities(text, false)));
+			}
+			context.appendChild(element);
+			return true;
+		}
+
+		private Element createFragmentContext()
+		{
+			final Element body = shell.body();
+			body.empty();
+			return body;
+		}
+
+		private void emit(final CharSequence chars) throws IOException
+		{
+			if (capture != null)
+			{
+				capture.append(chars);
+			}
+			else
+			{
+				out.append(chars);
+			}
+		}
+	}
+
+	/**
+	 * Parses attributes of a start tag the way the html parser does: names are lower cased, the first of duplicated attributes wins.
+	 *
+	 * @return null if the tag is not well formed
+	 */
+	private static Attributes parseAttributes(final String startTag, final int from)
+	{
+		final Attributes attributes = new Attributes();
+		final int end = startTag.endsWith(">") ? startTag.length() - 1 : startTag.length();
+		int i = from;
+		while (i < end)
+		{
+			final char c = startTag.charAt(i);
+			if (Character.isWhitespace(c) || c == '/')
+			{
+				i++;
+				continue;
+			}
+
+			final int nameStart = i;
+			while (i < end && !Character.isWhitespace(startTag.charAt(i)) && "=/>\"'".indexOf(startTag.charAt(i)) < 0)
+			{
+				i++;
+			}
+			if (i == nameStart)
+			{
+				return null;
+			}
+			final String name = startTag.substring(nameStart, i).toLowerCase(Locale.ROOT);
+
+			while (i < end && Character.isWhitespace(startTag.charAt(i)))
+			{
+				i++;
+			}
+			// no value, as the parser keeps it for attributes written without one
+			String value = null;
+			if (i < end && startTag.charAt(i) == '=')
+			{
+				i++;
+				while (i < end && Character.isWhitespace(startTag.charAt(i)))
+				{
+					i++;
+				}
+				if (i < end && (startTag.charAt(i) == '"' || startTag.charAt(i) == '\''))
+				{
+					final int valueEnd = startTag.indexOf(startTag.charAt(i), i + 1);
+					if (valueEnd < 0 || valueEnd > end)
+					{
+						return null;
+					}
+					value = startTag.substring(i + 1, valueEnd);
+					i = valueEnd + 1;
+				}
+				else
+				{
+					final int valueStart = i;
+					while (i < end && !Character.isWhitespace(startTag.charAt(i)))
+					{
+						i++;
+					}
+					value = startTag.substring(valueStart, i);
+				}
+			}
+
+			if (!attributes.hasKey(name))
+			{
+				attributes.put(name, value != null ? unescapeEntities(value, true) : null);
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * the parser sets up a whole tokenizer for every call, so it is called only when there is something to unescape
+	 */
+	private static String unescapeEntities(final String text, final boolean inAttribute)
+	{
+		return text.indexOf('&') < 0 ? text : Parser.unescapeEntities(text, inAttribute);
+	}
+
+	private static String tagName(final String token, final int from)
+	{
+		int end = from;
+		while (end < token.length() && isTagNameCharacter(token.charAt(end)))
+		{
+			end++;
+		}
+		return token.substring(from, end).toLowerCase(Locale.ROOT);
+	}
+
+	private static boolean isTagNameCharacter(final int c)
+	{
+		return c >= 0 && (Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_');
+	}
+
+	/**
+	 * Buffered reader with one character look ahead and bulk copying of text runs.
+	 */
+	private static class CharSource
+	{
+		private final Reader reader;
+		private final char[] buffer = new char[8192];
+		private int position;
+		private int limit;
+
+		CharSource(final Reader reader)
+		{
+			this.reader = reader;
+		}
+
+		int peek() throws IOException
+		{
+			if (position == limit && !fill())
+			{
+				return -1;
+			}
+			return buffer[position];
+		}
+
+		int read() throws IOException
+		{
+			final int c = peek();
+			if (c >= 0)
+			{
+				position++;
+			}
+			return c;
+		}
+
+		void copyUntil(final char stop, final CharSink sink) throws IOException
+		{
+			while (peek() >= 0)
+			{
+				int end = position;
+				while (end < limit && buffer[end] != stop)
+				{
+					end++;
+				}
+				sink.accept(CharBuffer.wrap(buffer, position, end - position));
+				position = end;
+				if (end < limit)
+				{
+					return;
+				}
+			}
+		}
+
+		/**
+		 * copies characters into the builder until the sequence is copied or input ends
+		 */
+		void copyUntilSequence(final String sequence, final StringBuilder target) throws IOException
+		{
+			int c;
+			while ((c = read()) >= 0)
+			{
+				target.append((char) c);
+				if (c == sequence.charAt(sequence.length() - 1) && target.length() >= sequence.length()
+						&& target.lastIndexOf(sequence) == target.length() - sequence.length())
+				{
+					return;
+				}
+			}
+		}
+
+		private boolean fill() throws IOException
+		{
+			final int read = reader.read(buffer);
+			if (read <= 0)
+			{
+				return false;
+			}
+			position = 0;
+			limit = read;
+			return true;
+		}
+	}
+
+	@FunctionalInterface
+	private interface CharSink
+	{
+		void accept(CharSequence chars) throws IOException;
+	}
+}
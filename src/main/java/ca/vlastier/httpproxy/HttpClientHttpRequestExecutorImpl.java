@@ -0,0 +1,392 @@
+package ca.vlastier.httpproxy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Non-blocking executor based on {@link HttpClient}. Either wraps a client configured by the caller or, through {@link #builder()}, creates one tuned
+ * for proxying: HTTP/2 with multiplexing when the upstream supports it (HTTP/1.1 otherwise), connect and request timeouts, no redirect following and
+ * an optional limit of concurrent requests per upstream host.
+ * <p>
+ * Textual bodies are buffered as {@link HttpResponseWrapper#getRawBody() raw bodies}, decoded with the charset of their Content-Type only if a rule
+ * needs them as text. Other bodies, e.g. images, are exposed as {@link HttpResponseWrapper#getBodyStream()}.
+ * <p>
+ * Connections are pooled and kept alive by {@link HttpClient} itself. The idle timeout and the size of the pool are JVM wide settings of the JDK:
+ * the {@code jdk.httpclient.keepalive.timeout} and {@code jdk.httpclient.connectionPoolSize} system properties.
+ */
+@Slf4j
+public class HttpClientHttpRequestExecutorImpl implements AsyncHttpRequestExecutor
+{
+	// headers managed by HttpClient itself. It refuses requests having them set explicitly
+	private static final Set<String> RESTRICTED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+	private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+	static
+	{
+		RESTRICTED_HEADERS.addAll(Set.of(HttpHeaders.CONNECTION, HttpHeaders.CONTENT_LENGTH, HttpHeaders.EXPECT, HttpHeaders.HOST, HttpHeaders.UPGRADE));
+	}
+
+	private final HttpClient httpClient;
+	private final ObjectMapper objectMapper;
+	private final Duration requestTimeout;
+	private final int maxConcurrentRequestsPerHost;
+	private final Map<String, HostLimiter> hostLimiters = new ConcurrentHashMap<>();
+
+	public HttpClientHttpRequestExecutorImpl(final HttpClient httpClient)
+	{
+		this(httpClient, null, 0);
+	}
+
+	/**
+	 * @param version                      preferred protocol version, HTTP/2 by default
+	 * @param connectTimeout               maximum time to establish a connection, 10 seconds by default
+	 * @param requestTimeout               maximum time to receive the response headers, unlimited by default
+	 * @param maxConcurrentRequestsPerHost maximum number of requests sent to the same host at the same time, 0 (the default) for no limit.
+	 *                                     Further requests wait, without blocking a thread, until a previous response is received
+	 * @param executor                     executor of the client's asynchronous tasks, a default one of {@link HttpClient} if not set
+	 */
+	@lombok.Builder
+	private HttpClientHttpRequestExecutorImpl(final HttpClient.Version version, final Duration connectTimeout, final Duration requestTimeout,
+			final int maxConcurrentRequestsPerHost, final Executor executor)
+	{
+		this(createHttpClient(version, connectTimeout, executor), requestTimeout, maxConcurrentRequestsPerHost);
+	}
+
+	private HttpClientHttpRequestExecutorImpl(final HttpClient httpClient, final Duration requestTimeout, final int maxConcurrentRequestsPerHost)
+	{
+		if (maxConcurrentRequestsPerHost < 0)
+		{
+			throw new IllegalArgumentException("maximum number of concurrent requests per host can't be negative: " + maxConcurrentRequestsPerHost);
+		}
+		this.httpClient = httpClient;
+		this.objectMapper = new ObjectMapper();
+		this.requestTimeout = requestTimeout;
+		this.maxConcurrentRequestsPerHost = maxConcurrentRequestsPerHost;
+	}
+
+	private static HttpClient createHttpClient(final HttpClient.Version version, final Duration connectTimeout, final Executor executor)
+	{
+		final HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(version != null ? version : HttpClient.Version.HTTP_2)
+				.connectTimeout(connectTimeout != null ? connectTimeout : DEFAULT_CONNECT_TIMEOUT)
+				// redirects are answered to the client, which follows them through the proxy
+				.followRedirects(HttpClient.Redirect.NEVER);
+		if (executor != null)
+		{
+			builder.executor(executor);
+		}
+		return builder.build();
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestAsync(final HttpRequestWrapper request)
+	{
+		log.info("forwarded {} request to {}.", request.getMethod(), request.getUrl());
+
+		return send(request, this::textOrStreamBodyHandler, response -> {
+			log.info("Got response {}", response.statusCode());
+
+			final HttpHeaders responseHeaders = toHttpHeaders(response);
+			final HttpStatus status = HttpStatus.valueOf(response.statusCode());
+			final HttpResponseWrapper.HttpResponseWrapperBuilder responseWrapper = HttpResponseWrapper.builder()
+					.headers(responseHeaders)
+					.httpStatus(status)
+					.originalRequest(request);
+
+			if (response.body() instanceof InputStream)
+			{
+				return responseWrapper.bodyStream((InputStream) response.body()).build();
+			}
+			final RawBody body = RawBody.of((byte[]) response.body(), responseHeaders);
+			if (log.isTraceEnabled())
+			{
+				log.trace("response body is {}", body.asString());
+			}
+			return responseWrapper.rawBody(body).build();
+		});
+	}
+
+	@Override
+	public CompletionStage<HttpResponseWrapper> executeRequestStreamingAsync(final HttpRequestWrapper request)
+	{
+		log.info("forwarded {} request to {}. Streaming the response", request.getMethod(), request.getUrl());
+
+		return send(request, HttpResponse.BodyHandlers.ofInputStream(), response -> {
+			log.info("Got response {}", response.statusCode());
+
+			return HttpResponseWrapper.builder()
+					.headers(toHttpHeaders(response))
+					.httpStatus(HttpStatus.valueOf(response.statusCode()))
+					.bodyStream(response.body())
+					.originalRequest(request)
+					.build();
+		});
+	}
+
+	/**
+	 * sends the request once the host limit allows it. The permit is released when the response is received or, for streamed bodies, when the
+	 * stream is closed
+	 */
+	private <T> CompletionStage<HttpResponseWrapper> send(final HttpRequestWrapper request, final HttpResponse.BodyHandler<T> bodyHandler,
+			final Function<HttpResponse<T>, HttpResponseWrapper> toResponseWrapper)
+	{
+		final HttpRequest httpRequest = toHttpRequest(request);
+		if (maxConcurrentRequestsPerHost == 0)
+		{
+			return httpClient.sendAsync(httpRequest, bodyHandler).thenApply(toResponseWrapper);
+		}
+
+		final String host = String.valueOf(httpRequest.uri().getAuthority());
+		HostLimiter limiter;
+		CompletableFuture<Void> acquired;
+		do
+		{
+			limiter = hostLimiters.computeIfAbsent(host, key -> new HostLimiter(maxConcurrentRequestsPerHost));
+			// null if the limiter was removed meanwhile, a new one is then created
+			acquired = limiter.acquire();
+		}
+		while (acquired == null);
+
+		final HostLimiter hostLimiter = limiter;
+		final Runnable release = () -> release(host, hostLimiter);
+		return acquired
+				.thenCompose(permit -> httpClient.sendAsync(httpRequest, bodyHandler))
+				.thenApply(toResponseWrapper)
+				.whenComplete((responseWrapper, error) -> {
+					if (responseWrapper != null && responseWrapper.getBodyStream() != null)
+					{
+						responseWrapper.setBodyStream(new ReleasingInputStream(responseWrapper.getBodyStream(), release));
+					}
+					else
+					{
+						release.run();
+					}
+				});
+	}
+
+	/**
+	 * releases the permit, and removes the limiter of the host once it has no more requests, so that hosts seen once are not kept
+	 */
+	private void release(final String host, final HostLimiter hostLimiter)
+	{
+		hostLimiter.release();
+		hostLimiters.computeIfPresent(host, (key, limiter) -> limiter.retireIfIdle() ? null : limiter);
+	}
+
+	/**
+	 * @return the number of hosts with requests in progress or waiting
+	 */
+	int limitedHosts()
+	{
+		return hostLimiters.size();
+	}
+
+	/**
+	 * textual bodies are buffered, to be decoded if a rule needs them as text. Others are streamed, so they are not copied
+	 */
+	private HttpResponse.BodySubscriber<Object> textOrStreamBodyHandler(final HttpResponse.ResponseInfo responseInfo)
+	{
+		final MediaType contentType = responseInfo.headers()
+				.firstValue(HttpHeaders.CONTENT_TYPE)
+				.map(HttpClientHttpRequestExecutorImpl::parseMediaType)
+				.orElse(null);
+
+		if (contentType != null && !isText(contentType))
+		{
+			return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), body -> body);
+		}
+		return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), body -> body);
+	}
+
+	private static MediaType parseMediaType(final String contentType)
+	{
+		try
+		{
+			return MediaType.parseMediaType(contentType);
+		}
+		catch (final InvalidMediaTypeException e)
+		{
+			return null;
+		}
+	}
+
+	private static boolean isText(final MediaType contentType)
+	{
+		final String subtype = contentType.getSubtype();
+		return "text".equals(contentType.getType()) || subtype.equals("json") || subtype.endsWith("+json") || subtype.equals("xml")
+				|| subtype.endsWith("+xml") || subtype.equals("javascript") || subtype.equals("x-www-form-urlencoded");
+	}
+
+	private HttpHeaders toHttpHeaders(final HttpResponse<?> response)
+	{
+		final HttpHeaders responseHeaders = new HttpHeaders();
+		response.headers().map().forEach((name, values) -> {
+			// HTTP/2 pseudo headers such as :status are not real headers
+			if (!name.startsWith(":"))
+			{
+				responseHeaders.put(name, values);
+			}
+		});
+		return responseHeaders;
+	}
+
+	private HttpRequest toHttpRequest(final HttpRequestWrapper request)
+	{
+		final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUrl()))
+				.method(request.getMethod(), toBodyPublisher(request.getBody()));
+		if (requestTimeout != null)
+		{
+			builder.timeout(requestTimeout);
+		}
+
+		request.getHeaders().forEach((name, values) -> {
+			if (!RESTRICTED_HEADERS.contains(name) && values != null)
+			{
+				values.forEach(value -> builder.header(name, value));
+			}
+		});
+
+		return builder.build();
+	}
+
+	private HttpRequest.BodyPublisher toBodyPublisher(final Object body)
+	{
+		if (body == null)
+		{
+			return HttpRequest.BodyPublishers.noBody();
+		}
+		else if (body instanceof byte[])
+		{
+			return HttpRequest.BodyPublishers.ofByteArray((byte[]) body);
+		}
+		else if (body instanceof String)
+		{
+			return HttpRequest.BodyPublishers.ofString((String) body, StandardCharsets.UTF_8);
+		}
+
+		try
+		{
+			return HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body));
+		}
+		catch (final JsonProcessingException e)
+		{
+			throw new IllegalArgumentException("request body can't be serialized: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Counts the requests in progress to one host. Requests over the limit get a permit when a previous one is released, in arrival order.
+	 * A limiter retired once idle gives no more permits.
+	 */
+	private static class HostLimiter
+	{
+		private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+		private final int maxConcurrentRequests;
+		private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+		private int inProgress;
+		private boolean retired;
+
+		HostLimiter(final int maxConcurrentRequests)
+		{
+			this.maxConcurrentRequests = maxConcurrentRequests;
+		}
+
+		/**
+		 * @return the permit, completed once the request may be sent, or null if the limiter is retired
+		 */
+		synchronized CompletableFuture<Void> acquire()
+		{
+			if (retired)
+			{
+				return null;
+			}
+			if (inProgress < maxConcurrentRequests)
+			{
+				inProgress++;
+				return GRANTED;
+			}
+			final CompletableFuture<Void> permit = new CompletableFuture<>();
+			waiting.add(permit);
+			return permit;
+		}
+
+		void release()
+		{
+			final CompletableFuture<Void> next;
+			synchronized (this)
+			{
+				next = waiting.poll();
+				if (next == null)
+				{
+					inProgress--;
+				}
+			}
+			if (next != null)
+			{
+				// the permit is handed over, completed outside the lock as it runs the next request
+				next.complete(null);
+			}
+		}
+
+		synchronized boolean retireIfIdle()
+		{
+			retired = inProgress == 0 && waiting.isEmpty();
+			return retired;
+		}
+	}
+
+	private static class ReleasingInputStream extends FilterInputStream
+	{
+		private final Runnable release;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		ReleasingInputStream(final InputStream body, final Runnable release)
+		{
+			super(body);
+			this.release = release;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				if (released.compareAndSet(false, true))
+				{
+					release.run();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ca.vlastier.httpproxy;
+
+/**
+ * Receives measurements taken by {@link HttpProxyService} while it surfs. Rules are identified by {@link WebSurferRule#getName()}.
+ * Methods are called on the hot path, once per evaluated rule, so implementations must be thread safe and cheap. All methods do nothing by default.
+ * See {@link MicrometerHttpProxyMetrics} for an implementation publishing to a Micrometer registry.
+ */
+public interface HttpProxyMetrics
+{
+	HttpProxyMetrics NOOP = new HttpProxyMetrics()
+	{
+	};
+
+	/**
+	 * the request predicate of the rule has been tested. Called only for rules the index can't exclude
+	 */
+	default void requestPredicateEvaluated(final String ruleName, final boolean passed)
+	{
+	}
+
+	/**
+	 * the response predicate of the rule has been tested. Called only for rules whose request predicate passed
+	 */
+	default void responsePredicateEvaluated(final String ruleName, final boolean passed)
+	{
+	}
+
+	default void requestTransformationExecuted(final String ruleName, final long durationNanos)
+	{
+	}
+
+	/**
+	 * the response transformation of the rule has been applied, including its html element changes applied to the document once all the rules
+	 * were applied. Streamed body transformations are made later, while the body is written, and their time is not included
+	 */
+	default void responseTransformationExecuted(final String ruleName, final long durationNanos)
+	{
+	}
+
+	/**
+	 * the upstream call made by {@link HttpRequestExecutor} has completed. For streamed responses the duration ends when the headers are received
+	 */
+	default void upstreamRequestExecuted(final HttpRequestWrapper request, final long durationNanos, final boolean failed)
+	{
+	}
+}
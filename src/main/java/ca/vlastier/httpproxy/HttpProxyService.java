@@ -3,20 +3,44 @@ package ca.vlastier.httpproxy;
 import ca.vlastier.httpproxy.configuration.*;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class HttpProxyService
 {
 	private final HttpRequestExecutor httpRequestExecutor;
-	private final List<WebSurferRule> rules;
+	// immutable, replaced as a whole when rules change. Each surf call works with the snapshot it read first
+	private final AtomicReference<RuleSnapshot> ruleSnapshot;
+	private final HttpProxyServiceSettings settings;
+	private final TransformedResponseCache transformedResponseCache;
+	private final Semaphore concurrencyLimiter;
+	private final ThreadLocal<SurfScratch> surfScratch = ThreadLocal.withInitial(SurfScratch::new);
 
 	HttpProxyService(final HttpRequestExecutor httpRequestExecutor, final List<WebSurferRule> rules)
+	{
+		this(httpRequestExecutor, rules, HttpProxyServiceSettings.DEFAULT);
+	}
+
+	HttpProxyService(final HttpRequestExecutor httpRequestExecutor, final List<WebSurferRule> rules, final HttpProxyServiceSettings settings)
 	{
 		this.httpRequestExecutor = httpRequestExecutor;
-		this.rules = rules;
+		this.ruleSnapshot = new AtomicReference<>(new RuleSnapshot(rules));
+		this.settings = settings;
+		this.transformedResponseCache = settings.getTransformedResponseCacheSize() > 0 ?
+				new TransformedResponseCache(settings.getTransformedResponseCacheSize()) : null;
+		this.concurrencyLimiter = settings.getMaxConcurrentRequests() > 0 ? new Semaphore(settings.getMaxConcurrentRequests()) : null;
 	}
 
 	public static WebSurferConfigurator configure(@NonNull final HttpRequestExecutor httpRequestExecutor)
@@ -24,41 +48,528 @@ public class HttpProxyService
 		return new HttpProxyServiceConfiguratorImpl(httpRequestExecutor);
 	}
 
+	/**
+	 * @return the rules currently applied, in their declared order
+	 */
+	public List<WebSurferRule> getRules()
+	{
+		return ruleSnapshot.get().rules;
+	}
+
+	/**
+	 * Replaces all the rules, e.g. by the ones created with {@link Builder#buildRules()}. Requests being processed keep using the previous rules;
+	 * requests started after the call use the new ones.
+	 */
+	public void replaceRules(@NonNull final List<WebSurferRule> rules)
+	{
+		ruleSnapshot.set(new RuleSnapshot(rules));
+	}
+
+	/**
+	 * Changes the rules atomically. The update receives the current, unmodifiable rules and returns the new ones. It may be called several times
+	 * if other updates happen concurrently, so it must not have side effects. Requests being processed keep using the previous rules.
+	 */
+	public void updateRules(@NonNull final UnaryOperator<List<WebSurferRule>> update)
+	{
+		ruleSnapshot.updateAndGet(snapshot -> new RuleSnapshot(update.apply(snapshot.rules)));
+	}
+
+	/**
+	 * adds the rules after the existing ones
+	 */
+	public void addRules(@NonNull final List<WebSurferRule> rules)
+	{
+		updateRules(current -> {
+			final List<WebSurferRule> updated = new ArrayList<>(current);
+			updated.addAll(rules);
+			return updated;
+		});
+	}
+
+	/**
+	 * removes all the rules having the given name
+	 */
+	public void removeRules(@NonNull final String name)
+	{
+		updateRules(current -> current.stream().filter(rule -> !name.equals(rule.getName())).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Applies the rules to the request, executes it and applies the rules to the response. When a concurrency limit is configured, the call waits
+	 * for a free slot first.
+	 */
 	public HttpResponseWrapper surf(@NonNull final HttpRequestWrapper requestWrapper)
 	{
-		final List<WebSurferRule> triggeredRulesByRequest = rules.stream()
-				.filter(rule -> {
-					final boolean result = rule.getRequestPredicate().test(requestWrapper);
-					log.debug("Request testing rule \"{}\"... Passed: {}", rule.getName(), result);
-					return result;
-				})
-				.collect(Collectors.toList());
+		if (concurrencyLimiter == null)
+		{
+			return surfWithinLimit(requestWrapper);
+		}
+
+		try
+		{
+			concurrencyLimiter.acquire();
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting to surf " + requestWrapper.getUrl(), e);
+		}
+		try
+		{
+			return surfWithinLimit(requestWrapper);
+		}
+		finally
+		{
+			concurrencyLimiter.release();
+		}
+	}
+
+	private HttpResponseWrapper surfWithinLimit(final HttpRequestWrapper requestWrapper)
+	{
+		final RuleSnapshot snapshot = ruleSnapshot.get();
+		final SurfScratch scratch = acquireScratch();
+		try
+		{
+			final BitSet triggeredRulesByRequest = applyRequestRules(snapshot, requestWrapper, scratch);
+
+			final HttpResponseWrapper responseWrapper = executeRequest(requestWrapper, isPassthrough(snapshot, triggeredRulesByRequest));
+
+			return applyResponseRules(snapshot, triggeredRulesByRequest, responseWrapper, scratch);
+		}
+		finally
+		{
+			scratch.inUse = false;
+		}
+	}
+
+	/**
+	 * @return the scratch state of the thread, or a new one if the thread is already surfing, e.g. from a transformation calling the service
+	 */
+	private SurfScratch acquireScratch()
+	{
+		final SurfScratch scratch = surfScratch.get();
+		if (scratch.inUse)
+		{
+			return new SurfScratch();
+		}
+		scratch.inUse = true;
+		return scratch;
+	}
+
+	/**
+	 * Asynchronous version of {@link #surf(HttpRequestWrapper)}.
+	 * <p>
+	 * When the service has a surf executor, e.g. virtual threads (see {@link Builder#virtualThreads(int)}), the whole {@link #surf(HttpRequestWrapper)}
+	 * call runs on it, including the blocking upstream exchange.
+	 * <p>
+	 * Otherwise request rules are applied on the calling thread, then the request is executed without blocking and response rules are applied on
+	 * the thread completing the upstream call. The call is non-blocking only if the service is configured with an {@link AsyncHttpRequestExecutor};
+	 * otherwise the request is executed synchronously and an already completed stage is returned. The concurrency limit does not apply in this case.
+	 */
+	public CompletionStage<HttpResponseWrapper> surfAsync(@NonNull final HttpRequestWrapper requestWrapper)
+	{
+		if (settings.getSurfExecutor() != null)
+		{
+			return CompletableFuture.supplyAsync(() -> surf(requestWrapper), settings.getSurfExecutor());
+		}
 
-		triggeredRulesByRequest.stream()
-				.filter(rule -> rule.getRequestTransformation() != null)
-				.peek(rule -> log.info("Rule \"{}\". Applying request transformations.", rule.getName()))
-				.map(WebSurferRule::getRequestTransformation)
-				.forEach(transformations -> transformations.accept(requestWrapper));
+		// response rules may be applied on another thread, so the call has its own scratch state
+		final RuleSnapshot snapshot = ruleSnapshot.get();
+		final SurfScratch scratch = new SurfScratch();
+		final BitSet triggeredRulesByRequest = applyRequestRules(snapshot, requestWrapper, scratch);
 
-		final HttpResponseWrapper responseWrapper = httpRequestExecutor.executeRequest(requestWrapper);
+		final boolean passthrough = isPassthrough(snapshot, triggeredRulesByRequest);
+		final CompletionStage<HttpResponseWrapper> response;
+		if (httpRequestExecutor instanceof AsyncHttpRequestExecutor)
+		{
+			final AsyncHttpRequestExecutor asyncHttpRequestExecutor = (AsyncHttpRequestExecutor) httpRequestExecutor;
+			final long start = System.nanoTime();
+			response = (passthrough ?
+					asyncHttpRequestExecutor.executeRequestStreamingAsync(requestWrapper) :
+					asyncHttpRequestExecutor.executeRequestAsync(requestWrapper))
+					.whenComplete((responseWrapper, error) ->
+							settings.getMetrics().upstreamRequestExecuted(requestWrapper, System.nanoTime() - start, error != null));
+		}
+		else
+		{
+			response = CompletableFuture.completedFuture(executeRequest(requestWrapper, passthrough));
+		}
+
+		return response.thenApply(responseWrapper -> applyResponseRules(snapshot, triggeredRulesByRequest, responseWrapper, scratch));
+	}
+
+	private HttpResponseWrapper executeRequest(final HttpRequestWrapper requestWrapper, final boolean passthrough)
+	{
+		final long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			final HttpResponseWrapper responseWrapper = passthrough ?
+					httpRequestExecutor.executeRequestStreaming(requestWrapper) :
+					httpRequestExecutor.executeRequest(requestWrapper);
+			failed = false;
+			return responseWrapper;
+		}
+		finally
+		{
+			settings.getMetrics().upstreamRequestExecuted(requestWrapper, System.nanoTime() - start, failed);
+		}
+	}
+
+	private BitSet applyRequestRules(final RuleSnapshot snapshot, final HttpRequestWrapper requestWrapper, final SurfScratch scratch)
+	{
+		final BitSet triggeredRulesByRequest = findRulesTriggeredByRequest(snapshot, requestWrapper, scratch);
+
+		for (int position = triggeredRulesByRequest.nextSetBit(0); position >= 0; position = triggeredRulesByRequest.nextSetBit(position + 1))
+		{
+			final WebSurferRule rule = snapshot.rulesByPosition[position];
+			if (rule.getRequestTransformation() != null)
+			{
+				log.info("Rule \"{}\". Applying request transformations.", rule.getName());
+				final long start = System.nanoTime();
+				try
+				{
+					rule.getRequestTransformation().accept(requestWrapper);
+				}
+				finally
+				{
+					settings.getMetrics().requestTransformationExecuted(rule.getName(), System.nanoTime() - start);
+				}
+			}
+		}
+
+		return triggeredRulesByRequest;
+	}
 
+	/**
+	 * the response body may be streamed only if none of the rules can transform the response
+	 */
+	private boolean isPassthrough(final RuleSnapshot snapshot, final BitSet triggeredRulesByRequest)
+	{
+		return settings.isPassthroughUntransformedResponses() && !triggeredRulesByRequest.intersects(snapshot.responseTransformingRules);
+	}
+
+	private HttpResponseWrapper applyResponseRules(final RuleSnapshot snapshot, final BitSet triggeredRulesByRequest,
+			final HttpResponseWrapper responseWrapper, final SurfScratch scratch)
+	{
 		// find and apply response rules. Search amongst request rules as they are stored in the same collection.
 		// Solely response rules have null requestTransformation and must have requestPredicate always true in order to end up in this collection. Read docs for more info
-		final List<WebSurferRule> triggeredRulesByResponse = triggeredRulesByRequest.stream()
-				.filter(rule -> {
-					boolean result = rule.getResponsePredicate().test(responseWrapper);
-					log.debug("Response testing rule \"{}\"... Passed: {}", rule.getName(), result);
-					return result;
-				})
-				.collect(Collectors.toList());
-
-		triggeredRulesByResponse.stream()
-				.filter(rule -> rule.getResponseTransformation() != null)
-				.peek(rule -> log.info("Rule \"{}\". Applying response transformations.", rule.getName()))
-				.map(WebSurferRule::getResponseTransformation)
-				.forEach(transformations -> transformations.accept(responseWrapper));
+		final BitSet transformingRules = findRulesTriggeredByResponse(snapshot, triggeredRulesByRequest, responseWrapper, scratch);
+		transformingRules.and(snapshot.responseTransformingRules);
+		if (transformedResponseCache == null || transformingRules.isEmpty())
+		{
+			applyResponseTransformations(snapshot, transformingRules, responseWrapper, scratch);
+			return responseWrapper;
+		}
 
+		final TransformedResponseCache.Key key = transformedResponseCache.keyOf(responseWrapper, snapshot.rulesAt(transformingRules));
+		if (key == null)
+		{
+			applyResponseTransformations(snapshot, transformingRules, responseWrapper, scratch);
+		}
+		else if (transformedResponseCache.applyCached(key, responseWrapper))
+		{
+			log.debug("Response transformations of {} rules served from cache", transformingRules.cardinality());
+		}
+		else
+		{
+			final HttpHeaders upstreamHeaders = CopyOnWriteHeaders.copyOf(responseWrapper.getHeaders());
+			applyResponseTransformations(snapshot, transformingRules, responseWrapper, scratch);
+			transformedResponseCache.store(key, upstreamHeaders, responseWrapper);
+		}
 		return responseWrapper;
 	}
 
+	/**
+	 * Html element changes are postponed by the rules and looked up with a single walk over the document, see
+	 * {@link HttpResponseWrapper#applyDomOnlyHtmlTransformations()}: the time spent on each change within that walk is counted in the time of
+	 * the rule which added it, instead of the rule asking for the document.
+	 */
+	private void applyResponseTransformations(final RuleSnapshot snapshot, final BitSet transformingRules, final HttpResponseWrapper responseWrapper,
+			final SurfScratch scratch)
+	{
+		if (transformingRules.isEmpty())
+		{
+			return;
+		}
+		final RuleTimes ruleTimes = scratch.ruleTimes.reset(snapshot);
+		int lastApplied = -1;
+		try
+		{
+			for (int position = transformingRules.nextSetBit(0); position >= 0; position = transformingRules.nextSetBit(position + 1))
+			{
+				final WebSurferRule rule = snapshot.rulesByPosition[position];
+				log.info("Rule \"{}\". Applying response transformations.", rule.getName());
+				lastApplied = position;
+				responseWrapper.transformedBy(position, ruleTimes);
+				final long deferred = ruleTimes.deferred;
+				final long start = System.nanoTime();
+				try
+				{
+					rule.getResponseTransformation().accept(responseWrapper);
+				}
+				finally
+				{
+					ruleTimes.add(position, System.nanoTime() - start - (ruleTimes.deferred - deferred));
+				}
+			}
+			responseWrapper.transformedBy(-1, ruleTimes);
+			responseWrapper.applyDomOnlyHtmlTransformations();
+		}
+		finally
+		{
+			responseWrapper.transformedBy(-1, null);
+			for (int position = transformingRules.nextSetBit(0); position >= 0 && position <= lastApplied;
+					position = transformingRules.nextSetBit(position + 1))
+			{
+				settings.getMetrics().responseTransformationExecuted(snapshot.rulesByPosition[position].getName(), ruleTimes.nanos[position]);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the response predicates, the side effect free ones in parallel when there are enough of them, see
+	 * {@link Builder#parallelResponsePredicates(java.util.concurrent.ForkJoinPool, int)}. The other ones are evaluated on the calling thread in the
+	 * meantime, in their declared order.
+	 *
+	 * @return the positions of the triggered rules, in the scratch state
+	 */
+	private BitSet findRulesTriggeredByResponse(final RuleSnapshot snapshot, final BitSet rules, final HttpResponseWrapper responseWrapper,
+			final SurfScratch scratch)
+	{
+		final BitSet triggeredRules = scratch.triggeredByResponse;
+		triggeredRules.clear();
+		triggeredRules.or(rules);
+		if (isParallelEvaluated(snapshot, rules))
+		{
+			// without header lookup, which is confined to one thread: predicates evaluated in parallel read the headers themselves
+			testResponseInParallel(snapshot, triggeredRules, responseWrapper);
+			return triggeredRules;
+		}
+
+		HeaderLookup.attach(responseWrapper, scratch.headerLookup);
+		try
+		{
+			for (int position = rules.nextSetBit(0); position >= 0; position = rules.nextSetBit(position + 1))
+			{
+				if (!testResponse(snapshot.rulesByPosition[position], responseWrapper))
+				{
+					triggeredRules.clear(position);
+				}
+			}
+		}
+		finally
+		{
+			HeaderLookup.detach(responseWrapper);
+		}
+		return triggeredRules;
+	}
+
+	/**
+	 * clears the rules of the set whose response predicate fails
+	 */
+	private void testResponseInParallel(final RuleSnapshot snapshot, final BitSet triggeredRules, final HttpResponseWrapper responseWrapper)
+	{
+		final boolean[] results = new boolean[snapshot.rulesByPosition.length];
+		final ForkJoinTask<?>[] parallelEvaluations = new ForkJoinTask<?>[snapshot.rulesByPosition.length];
+		for (int position = triggeredRules.nextSetBit(0); position >= 0; position = triggeredRules.nextSetBit(position + 1))
+		{
+			final WebSurferRule rule = snapshot.rulesByPosition[position];
+			if (rule.isSideEffectFreeResponsePredicate())
+			{
+				final int resultPosition = position;
+				parallelEvaluations[position] = settings.getResponsePredicatePool()
+						.submit(() -> results[resultPosition] = testResponse(rule, responseWrapper));
+			}
+		}
+
+		try
+		{
+			for (int position = triggeredRules.nextSetBit(0); position >= 0; position = triggeredRules.nextSetBit(position + 1))
+			{
+				if (parallelEvaluations[position] == null)
+				{
+					results[position] = testResponse(snapshot.rulesByPosition[position], responseWrapper);
+				}
+			}
+		}
+		finally
+		{
+			// the pool is done with the response before transformations change it, even when a predicate failed
+			for (final ForkJoinTask<?> evaluation : parallelEvaluations)
+			{
+				if (evaluation != null)
+				{
+					evaluation.quietlyJoin();
+				}
+			}
+		}
+
+		for (int position = triggeredRules.nextSetBit(0); position >= 0; position = triggeredRules.nextSetBit(position + 1))
+		{
+			if (parallelEvaluations[position] != null)
+			{
+				// a failed predicate throws here, as it would have on the calling thread
+				parallelEvaluations[position].join();
+			}
+			if (!results[position])
+			{
+				triggeredRules.clear(position);
+			}
+		}
+	}
+
+	private boolean isParallelEvaluated(final RuleSnapshot snapshot, final BitSet rules)
+	{
+		if (settings.getResponsePredicatePool() == null || rules.cardinality() < settings.getParallelResponsePredicateThreshold())
+		{
+			return false;
+		}
+		int sideEffectFreeRules = 0;
+		for (int position = rules.nextSetBit(0); position >= 0; position = rules.nextSetBit(position + 1))
+		{
+			if (snapshot.rulesByPosition[position].isSideEffectFreeResponsePredicate())
+			{
+				sideEffectFreeRules++;
+			}
+		}
+		return sideEffectFreeRules >= settings.getParallelResponsePredicateThreshold();
+	}
+
+	private boolean testResponse(final WebSurferRule rule, final HttpResponseWrapper responseWrapper)
+	{
+		final boolean result = rule.getResponsePredicate().test(responseWrapper);
+		log.debug("Response testing rule \"{}\"... Passed: {}", rule.getName(), result);
+		settings.getMetrics().responsePredicateEvaluated(rule.getName(), result);
+		return result;
+	}
+
+	/**
+	 * @return the positions of the triggered rules, in the scratch state
+	 */
+	private BitSet findRulesTriggeredByRequest(final RuleSnapshot snapshot, final HttpRequestWrapper requestWrapper, final SurfScratch scratch)
+	{
+		// only the rules that may match according to the index are tested. Iterating the bit set keeps the declared order
+		final BitSet triggeredRules = scratch.triggeredByRequest;
+		snapshot.ruleIndex.candidates(requestWrapper, triggeredRules, scratch.prefiltered);
+		HeaderLookup.attach(requestWrapper, scratch.headerLookup);
+		try
+		{
+			for (int position = triggeredRules.nextSetBit(0); position >= 0; position = triggeredRules.nextSetBit(position + 1))
+			{
+				final WebSurferRule rule = snapshot.rulesByPosition[position];
+				final boolean result = rule.getRequestPredicate().test(requestWrapper);
+				log.debug("Request testing rule \"{}\"... Passed: {}", rule.getName(), result);
+				settings.getMetrics().requestPredicateEvaluated(rule.getName(), result);
+				if (!result)
+				{
+					triggeredRules.clear(position);
+				}
+			}
+		}
+		finally
+		{
+			HeaderLookup.detach(requestWrapper);
+		}
+		return triggeredRules;
+	}
+
+	/**
+	 * Sets of rule positions and header lookup of a surf call, reused by the next calls of the same thread so evaluating the rules allocates
+	 * nothing once the sets have grown to the number of rules.
+	 */
+	private static final class SurfScratch
+	{
+		private final BitSet triggeredByRequest = new BitSet();
+		private final BitSet triggeredByResponse = new BitSet();
+		private final BitSet prefiltered = new BitSet();
+		private final HeaderLookup headerLookup = new HeaderLookup();
+		private final RuleTimes ruleTimes = new RuleTimes();
+		private boolean inUse;
+	}
+
+	/**
+	 * time spent on the response transformations of each rule, including the postponed html transformations it added
+	 */
+	private static final class RuleTimes implements HtmlStreamRewriter.OperationListener
+	{
+		private long[] nanos = new long[0];
+		private WebSurferRule[] rules;
+		/**
+		 * time spent so far on postponed html transformations
+		 */
+		private long deferred;
+
+		RuleTimes reset(final RuleSnapshot snapshot)
+		{
+			rules = snapshot.rulesByPosition;
+			if (nanos.length < rules.length)
+			{
+				nanos = new long[rules.length];
+			}
+			else
+			{
+				Arrays.fill(nanos, 0, rules.length, 0);
+			}
+			deferred = 0;
+			return this;
+		}
+
+		void add(final int position, final long durationNanos)
+		{
+			nanos[position] += durationNanos;
+		}
+
+		@Override
+		public void applied(final int owner, final long durationNanos)
+		{
+			deferred += durationNanos;
+			if (owner >= 0)
+			{
+				add(owner, durationNanos);
+			}
+		}
+
+		@Override
+		public void failed(final int owner, final RuntimeException e)
+		{
+			if (owner >= 0)
+			{
+				log.warn("Rule \"{}\". Html transformation failed: {}", rules[owner].getName(), e.toString());
+			}
+		}
+	}
+
+	private static final class RuleSnapshot
+	{
+		private final List<WebSurferRule> rules;
+		// same rules, looked up by the positions of the bit sets
+		private final WebSurferRule[] rulesByPosition;
+		private final BitSet responseTransformingRules = new BitSet();
+		private final RuleIndex ruleIndex;
+
+		RuleSnapshot(final List<WebSurferRule> rules)
+		{
+			this.rules = List.copyOf(rules);
+			this.rulesByPosition = this.rules.toArray(new WebSurferRule[0]);
+			for (int position = 0; position < rulesByPosition.length; position++)
+			{
+				if (rulesByPosition[position].getResponseTransformation() != null)
+				{
+					responseTransformingRules.set(position);
+				}
+			}
+			this.ruleIndex = new RuleIndex(this.rules);
+		}
+
+		List<WebSurferRule> rulesAt(final BitSet positions)
+		{
+			final List<WebSurferRule> selected = new ArrayList<>(positions.cardinality());
+			for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position + 1))
+			{
+				selected.add(rulesByPosition[position]);
+			}
+			return selected;
+		}
+	}
 }
@@ -1,21 +1,28 @@
 package ca.vlastier.httpproxy;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.NonNull;
+import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.parser.Parser;
+import org.jsoup.nodes.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
 
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import ca.vlastier.httpproxy.configuration.RequestConditionConfigurator;
 
@@ -36,9 +43,25 @@ public class HttpProxyServiceConfiguratorImpl
 	private final HttpRequestExecutor httpRequestExecutor;
 
 	private final List<WebSurferRule> rules = new ArrayList<>();
+	private final HtmlFragmentCache htmlFragments = new HtmlFragmentCache();
+	// slots of the headers tested by the conditions of the configured rules, released with them
+	private final HeaderLookup.Slots headerSlots = new HeaderLookup.Slots();
+	private final HttpProxyServiceSettings.HttpProxyServiceSettingsBuilder settings = HttpProxyServiceSettings.builder();
 	private String ruleName;
+	/**
+	 * false once a transformation running code of the caller, such as a lambda, is added to the rule
+	 */
+	private boolean cacheable;
+	/**
+	 * declared with {@link #ruleCacheable()} or {@link #ruleNotCacheable()}, null if it isn't
+	 */
+	private Boolean cacheableRule;
+	private boolean sideEffectFree;
 
 	private Predicate<HttpRequestWrapper> requestPredicate;
+	private final List<String> criteriaMethods = new ArrayList<>();
+	private final List<String> criteriaUrlPatterns = new ArrayList<>();
+	private final List<RequestMatchCriteria.HeaderCondition> criteriaHeaderConditions = new ArrayList<>();
 	private Consumer<HttpRequestWrapper> requestTransformations;
 	private Predicate<HttpResponseWrapper> responsePredicate;
 	private Consumer<HttpResponseWrapper> responseTransformations;
@@ -52,7 +75,11 @@ public class HttpProxyServiceConfiguratorImpl
 	private void init()
 	{
 		ruleName = null;
+		cacheable = true;
+		cacheableRule = null;
+		sideEffectFree = false;
 		requestPredicate = req -> true;
+		clearRequestCriteria();
 		requestTransformations = null;
 		responsePredicate = res -> true;
 		responseTransformations = null;
@@ -65,9 +92,13 @@ public class HttpProxyServiceConfiguratorImpl
 			rules.add(WebSurferRule.builder()
 					.name(ofNullable(ruleName).orElseGet(this::generateDefaultRuleName))
 					.requestPredicate(requestPredicate)
+					.requestCriteria(new RequestMatchCriteria(List.copyOf(criteriaMethods), List.copyOf(criteriaUrlPatterns),
+							List.copyOf(criteriaHeaderConditions)))
 					.requestTransformation(requestTransformations)
 					.responsePredicate(responsePredicate)
 					.responseTransformation(responseTransformations)
+					.cacheableResponseTransformation(cacheableRule != null ? cacheableRule : cacheable)
+					.sideEffectFreeResponsePredicate(sideEffectFree)
 					.build());
 			init();
 		}
@@ -84,6 +115,13 @@ public class HttpProxyServiceConfiguratorImpl
 		requestPredicate = requestPredicate.and(predicate);
 	}
 
+	private void clearRequestCriteria()
+	{
+		criteriaMethods.clear();
+		criteriaUrlPatterns.clear();
+		criteriaHeaderConditions.clear();
+	}
+
 	private void saveResponsePredicate(final Predicate<HttpResponseWrapper> predicate)
 	{
 		responsePredicate = responsePredicate.and(predicate);
@@ -96,16 +134,18 @@ public class HttpProxyServiceConfiguratorImpl
 
 	private Predicate<HttpRequestWrapper> createPredicateForHttpMethod(final String method)
 	{
-		return requestWrapper -> ofNullable(requestWrapper).map(HttpRequestWrapper::getMethod)
-				.map(m -> method.equals(m))
-				.orElse(false);
+		criteriaMethods.add(method);
+		return requestWrapper -> requestWrapper != null && method.equals(requestWrapper.getMethod());
 	}
 
 	private Predicate<HttpRequestWrapper> createPredicateForUrlMatching(final String urlPattern)
 	{
 		//TODO make use of URL wildcards
 		final Pattern regexPattern = Pattern.compile(urlPattern);
-		return requestWrapper -> ofNullable(requestWrapper.getUrl()).map(url -> regexPattern.matcher(url).find()).orElse(false);
+		criteriaUrlPatterns.add(urlPattern);
+		// each thread reuses its own matcher
+		final ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() -> regexPattern.matcher(""));
+		return requestWrapper -> requestWrapper.getUrl() != null && matchers.get().reset(requestWrapper.getUrl()).find();
 	}
 
 	@Override
@@ -192,9 +232,9 @@ public class HttpProxyServiceConfiguratorImpl
 	public RequestConditionConfigurator requestHasHeader(@NonNull final String header)
 	{
 		flush();
-		Predicate<HttpRequestWrapper> head = requestWrapper -> ofNullable(requestWrapper).map(HttpRequestWrapper::getHeaders)
-				.map(h -> h.containsKey(header))
-				.orElse(false);
+		criteriaHeaderConditions.add(new RequestMatchCriteria.HeaderCondition(header, null, true));
+		final HeaderLookup.Slot slot = headerSlots.slotOf(header);
+		Predicate<HttpRequestWrapper> head = requestWrapper -> requestWrapper != null && HeaderLookup.contains(requestWrapper, slot);
 
 		saveRequestPredicate(head);
 
@@ -205,9 +245,9 @@ public class HttpProxyServiceConfiguratorImpl
 	public RequestConditionConfigurator requestHasNoHeader(@NonNull final String header)
 	{
 		flush();
-		Predicate<HttpRequestWrapper> head = requestWrapper -> ofNullable(requestWrapper).map(HttpRequestWrapper::getHeaders)
-				.map(h -> h.get(header) == null)
-				.orElse(true);
+		criteriaHeaderConditions.add(new RequestMatchCriteria.HeaderCondition(header, null, false));
+		final HeaderLookup.Slot slot = headerSlots.slotOf(header);
+		Predicate<HttpRequestWrapper> head = requestWrapper -> requestWrapper == null || HeaderLookup.values(requestWrapper, slot) == null;
 
 		saveRequestPredicate(head);
 
@@ -216,14 +256,23 @@ public class HttpProxyServiceConfiguratorImpl
 
 	@Override
 	public RequestConditionConfigurator requestHasHeaderWithValue(@NonNull final String header, @NonNull final String value)
+	{
+		return requestHasHeaderMatching(header, HeaderMatcher.contains(value), value);
+	}
+
+	@Override
+	public RequestConditionConfigurator requestHasHeaderMatching(@NonNull final String header, @NonNull final HeaderMatcher matcher)
+	{
+		return requestHasHeaderMatching(header, matcher, null);
+	}
+
+	private RequestConditionConfigurator requestHasHeaderMatching(final String header, final HeaderMatcher matcher, final String containedValue)
 	{
 		flush();
-		final String upperCaseValue = value.toUpperCase();
-		Predicate<HttpRequestWrapper> head = requestWrapper -> ofNullable(requestWrapper).map(HttpRequestWrapper::getHeaders)
-				.map(h -> h.get(header))
-				.filter(Objects::nonNull)
-				.map(headerValues -> headerValues.stream().filter(Objects::nonNull).anyMatch(val -> val.toUpperCase().contains(upperCaseValue)))
-				.orElse(false);
+		criteriaHeaderConditions.add(new RequestMatchCriteria.HeaderCondition(header, containedValue, true, matcher));
+		final HeaderLookup.Slot slot = headerSlots.slotOf(header);
+		Predicate<HttpRequestWrapper> head = requestWrapper -> requestWrapper != null && matcher.matchesAny(
+				HeaderLookup.values(requestWrapper, slot));
 
 		saveRequestPredicate(head);
 
@@ -235,6 +284,7 @@ public class HttpProxyServiceConfiguratorImpl
 	{
 		flush();
 		requestPredicate = req -> true;
+		clearRequestCriteria();
 
 		return this;
 	}
@@ -307,7 +357,8 @@ public class HttpProxyServiceConfiguratorImpl
 	public ResponseConditionConfigurator responseHasHeader(@NonNull final String header)
 	{
 		flush();
-		Predicate<HttpResponseWrapper> head = responseWrapper -> responseWrapper.getHeaders().containsKey(header);
+		final HeaderLookup.Slot slot = headerSlots.slotOf(header);
+		Predicate<HttpResponseWrapper> head = responseWrapper -> HeaderLookup.contains(responseWrapper, slot);
 		saveResponsePredicate(head);
 
 		return this;
@@ -315,15 +366,18 @@ public class HttpProxyServiceConfiguratorImpl
 
 	@Override
 	public ResponseConditionConfigurator responseHasHeaderWithValue(@NonNull final String header, @NonNull final String value)
+	{
+		return responseHasHeaderMatching(header, HeaderMatcher.contains(value));
+	}
+
+	@Override
+	public ResponseConditionConfigurator responseHasHeaderMatching(@NonNull final String header, @NonNull final HeaderMatcher matcher)
 	{
 		flush();
 
-		final String upperCaseValue = value.toUpperCase();
-		Predicate<HttpResponseWrapper> head = responseWrapper -> ofNullable(responseWrapper).map(HttpResponseWrapper::getHeaders)
-				.map(h -> h.get(header))
-				.filter(Objects::nonNull)
-				.map(headerValues -> headerValues.stream().filter(Objects::nonNull).anyMatch(val -> val.toUpperCase().contains(upperCaseValue)))
-				.orElse(false);
+		final HeaderLookup.Slot slot = headerSlots.slotOf(header);
+		Predicate<HttpResponseWrapper> head = responseWrapper -> responseWrapper != null && matcher.matchesAny(
+				HeaderLookup.values(responseWrapper, slot));
 
 		saveResponsePredicate(head);
 
@@ -334,9 +388,9 @@ public class HttpProxyServiceConfiguratorImpl
 	public ResponseConditionConfigurator responseHasNoHeader(@NonNull final String header)
 	{
 		flush();
-		final Predicate<HttpResponseWrapper> head = responseWrapper -> ofNullable(responseWrapper).map(HttpResponseWrapper::getHeaders)
-				.map(h -> h.get(header) == null)
-				.orElse(true);
+		final HeaderLookup.Slot slot = headerSlots.slotOf(header);
+		final Predicate<HttpResponseWrapper> head = responseWrapper -> responseWrapper == null
+				|| HeaderLookup.values(responseWrapper, slot) == null;
 
 		saveResponsePredicate(head);
 
@@ -353,36 +407,57 @@ public class HttpProxyServiceConfiguratorImpl
 		return this;
 	}
 
+	@Override
+	public ResponseConditionConfigurator jsonPathEquals(@NonNull final String path, final Object value)
+	{
+		flush();
+		final JsonStreamRewriter.Path jsonPath = JsonStreamRewriter.Path.parse(path);
+		final JsonNode expected = JsonStreamRewriter.toJsonNode(value);
+		final Predicate<HttpResponseWrapper> json = responseWrapper -> JsonStreamRewriter.anyValueMatches(responseWrapper, jsonPath,
+				jsonValue -> JsonStreamRewriter.jsonEquals(jsonValue, expected));
+		saveResponsePredicate(json);
+
+		return this;
+	}
+
+	@Override
+	public ResponseConditionConfigurator customResponseCondition(@NonNull final Predicate<HttpResponseWrapper> predicate)
+	{
+		flush();
+		saveResponsePredicate(predicate);
+
+		return this;
+	}
+
 	@Override
 	public ResponseTransformationConfigurator appendHtmlElementToBody(final String tagName, final Supplier<String> htmlContentSupplier)
+	{
+		cacheable = false;
+		return appendHtmlFragmentToBody(tagName, () -> htmlFragments.fragment(tagName, htmlContentSupplier.get()));
+	}
+
+	@Override
+	public ResponseTransformationConfigurator appendHtmlElementToBody(final String tagName, @NonNull final Path htmlFile)
+	{
+		return appendHtmlFragmentToBody(tagName, () -> htmlFragments.fragment(tagName, htmlFile, StandardCharsets.UTF_8));
+	}
+
+	private ResponseTransformationConfigurator appendHtmlFragmentToBody(final String tagName, final Supplier<List<Node>> fragmentSource)
 	{
 		final Consumer<HttpResponseWrapper> consumer = responseWrapper -> {
-			if (responseWrapper.getDomBody() == null)
+			final List<Node> template;
+			try
+			{
+				//TODO exception when supplier throws file not found
+				template = fragmentSource.get();
+			}
+			catch (final RuntimeException e)
 			{
-				if (responseWrapper.getOriginalResponse() != null && responseWrapper.getOriginalResponse().getBody() != null)
-				{
-					responseWrapper.setDomBody(Parser.parse(responseWrapper.getOriginalResponse().getBody(),
-							responseWrapper.getOriginalRequest().getUrl()));
-				}
-				else
-				{
-					log.warn("tried to alternate DOM in the response but it has no body");
-					return;
-				}
+				log.warn("an error occurred when appending html element: {}", e.getMessage());
+				return;
 			}
-			if (responseWrapper.getDomBody() != null)
-				try
-				{
-					final Element div = responseWrapper.getDomBody().createElement(tagName);
-					//TODO exception when supplier throws file not found. And when tagName is wrong
-					div.html(htmlContentSupplier.get());
-					responseWrapper.getDomBody().body().appendChild(div);
-
-				}
-				catch (final RuntimeException e)
-				{
-					log.warn("an error occurred when appending html element: {}", e.getMessage());
-				}
+
+			applyHtmlTransformation(responseWrapper, new HtmlStreamRewriter.AppendToBody(tagName, template));
 		};
 
 		saveResponseTransformations(consumer);
@@ -430,6 +505,7 @@ public class HttpProxyServiceConfiguratorImpl
 		};
 
 		saveResponseTransformations(consumer);
+		cacheable = false;
 
 		return this;
 	}
@@ -438,6 +514,7 @@ public class HttpProxyServiceConfiguratorImpl
 	public ResponseTransformationConfigurator customResponseTransformation(final Consumer<HttpResponseWrapper> consumer)
 	{
 		saveResponseTransformations(consumer);
+		cacheable = false;
 		return this;
 	}
 
@@ -445,72 +522,105 @@ public class HttpProxyServiceConfiguratorImpl
 	public ResponseTransformationConfigurator changeHtmlElement(final String tagName, final Predicate<Element> filter,
 			final Consumer<Element> action)
 	{
-		final Consumer<HttpResponseWrapper> consumer = responseWrapper -> {
-			if (responseWrapper.getDomBody() == null)
-			{
-				if (responseWrapper.getOriginalResponse() != null && responseWrapper.getOriginalResponse().getBody() != null)
-				{
-					responseWrapper.setDomBody(Parser.parse(responseWrapper.getOriginalResponse().getBody(),
-							responseWrapper.getOriginalRequest().getUrl()));
-				}
-				else
-				{
-					log.warn("tried to alternate DOM in the response but it has no body");
-					return;
-				}
-			}
-			final List<Element> foundHtmlElements = responseWrapper.getDomBody()
-					.select(tagName)
-					.stream()
-					.filter(filter)
-					.collect(Collectors.toList());
+		return changeHtmlElements(tagName, filter, action, true, false);
+	}
 
-			if (!foundHtmlElements.isEmpty())
-			{
-				if (foundHtmlElements.size() > 1)
-				{
-					//TODO better request identifier
-					log.warn("found more than one element. Applying transformations to the first one");
-				}
+	@Override
+	public ResponseTransformationConfigurator changeAllHtmlElements(final String tagName, final Predicate<Element> filter,
+			final Consumer<Element> action)
+	{
+		return changeHtmlElements(tagName, filter, action, false, false);
+	}
 
-				action.accept(foundHtmlElements.get(0));
-			}
-			else
-			{
-				log.debug("html elements for this filter not found");
-			}
-		};
+	@Override
+	public ResponseTransformationConfigurator changeHtmlElementStreamed(final String tagName, final Predicate<Element> filter,
+			final Consumer<Element> action)
+	{
+		return changeHtmlElements(tagName, filter, action, true, true);
+	}
+
+	@Override
+	public ResponseTransformationConfigurator changeAllHtmlElementsStreamed(final String tagName, final Predicate<Element> filter,
+			final Consumer<Element> action)
+	{
+		return changeHtmlElements(tagName, filter, action, false, true);
+	}
+
+	private ResponseTransformationConfigurator changeHtmlElements(final String tagName, final Predicate<Element> filter,
+			final Consumer<Element> action, final boolean firstOnly, final boolean streamed)
+	{
+		// the css query is compiled once, when the rule is configured
+		final HtmlStreamRewriter.ChangeElements operation = new HtmlStreamRewriter.ChangeElements(tagName, filter, action, firstOnly, streamed);
+		final Consumer<HttpResponseWrapper> consumer = responseWrapper -> applyHtmlTransformation(responseWrapper, operation);
 
 		saveResponseTransformations(consumer);
+		cacheable = false;
 		return this;
 	}
 
+	/**
+	 * Html transformations are postponed, even if the body is parsed already: consecutive element changes of the rules are looked up with a single
+	 * walk over the document, made when the document is asked for or once the rules are applied, see
+	 * {@link HttpResponseWrapper#applyDomOnlyHtmlTransformations()}. Streamable transformations of a body which hasn't been parsed yet are
+	 * applied without parsing it when it is written, see {@link HtmlStreamRewriter}
+	 */
+	private void applyHtmlTransformation(final HttpResponseWrapper responseWrapper, final HtmlStreamRewriter.Operation operation)
+	{
+		if (!responseWrapper.isDomBodyParsed() && !responseWrapper.hasTextBody())
+		{
+			log.warn("tried to alternate DOM in the response but it has no body");
+			return;
+		}
+		responseWrapper.postponeHtmlTransformation(operation);
+	}
+
 	@Override
-	public ResponseTransformationConfigurator changeAllHtmlElements(final String tagName, final Predicate<Element> filter,
-			final Consumer<Element> action)
+	public ResponseTransformationConfigurator setJsonField(@NonNull final String path, final Object value)
 	{
-		final Consumer<HttpResponseWrapper> consumer = responseWrapper -> {
-			if (responseWrapper.getDomBody() == null)
-			{
-				if (responseWrapper.getOriginalResponse() != null && responseWrapper.getOriginalResponse().getBody() != null)
-				{
-					responseWrapper.setDomBody(Parser.parse(responseWrapper.getOriginalResponse().getBody(),
-							responseWrapper.getOriginalRequest().getUrl()));
-				}
-				else
-				{
-					log.warn("tried to alternate DOM in the response but it has no body");
-					return;
-				}
-			}
+		final JsonStreamRewriter.Operation operation = new JsonStreamRewriter.SetValue(JsonStreamRewriter.Path.parse(path),
+				JsonStreamRewriter.toJsonNode(value));
+		saveResponseTransformations(responseWrapper -> applyJsonTransformation(responseWrapper, operation));
+		return this;
+	}
 
-			responseWrapper.getDomBody().select(tagName).stream().filter(filter).forEach(action::accept);
-		};
+	@Override
+	public ResponseTransformationConfigurator removeJsonField(@NonNull final String path)
+	{
+		final JsonStreamRewriter.Operation operation = new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse(path));
+		saveResponseTransformations(responseWrapper -> applyJsonTransformation(responseWrapper, operation));
+		return this;
+	}
 
-		saveResponseTransformations(consumer);
+	@Override
+	public ResponseTransformationConfigurator renameJsonField(@NonNull final String path, @NonNull final String newName)
+	{
+		final JsonStreamRewriter.Operation operation = new JsonStreamRewriter.RenameField(JsonStreamRewriter.Path.parse(path), newName);
+		saveResponseTransformations(responseWrapper -> applyJsonTransformation(responseWrapper, operation));
 		return this;
 	}
 
+	@Override
+	public ResponseTransformationConfigurator filterJsonArray(@NonNull final String path, @NonNull final Predicate<JsonNode> filter)
+	{
+		final JsonStreamRewriter.Operation operation = new JsonStreamRewriter.FilterArray(JsonStreamRewriter.Path.parse(path), filter);
+		saveResponseTransformations(responseWrapper -> applyJsonTransformation(responseWrapper, operation));
+		cacheable = false;
+		return this;
+	}
+
+	/**
+	 * Transformations of a body which hasn't been parsed yet are postponed until the body is written. Others are applied to the parsed body right away
+	 */
+	private void applyJsonTransformation(final HttpResponseWrapper responseWrapper, final JsonStreamRewriter.Operation operation)
+	{
+		if (!responseWrapper.isJsonBodyParsed() && !responseWrapper.hasTextBody())
+		{
+			log.warn("tried to alternate json in the response but it has no body");
+			return;
+		}
+		responseWrapper.postponeJsonTransformation(operation);
+	}
+
 	@Override
 	public WebSurferConfigurator ruleName(final String name)
 	{
@@ -519,9 +629,122 @@ public class HttpProxyServiceConfiguratorImpl
 		return this;
 	}
 
+	@Override
+	public WebSurferConfigurator ruleCacheable()
+	{
+		flush();
+		this.cacheableRule = true;
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator ruleNotCacheable()
+	{
+		flush();
+		this.cacheableRule = false;
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator ruleSideEffectFree()
+	{
+		flush();
+		this.sideEffectFree = true;
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator parallelResponsePredicates(@NonNull final ForkJoinPool pool, final int minimumRules)
+	{
+		if (minimumRules < 2)
+		{
+			throw new IllegalArgumentException("at least 2 rules are needed to evaluate their conditions in parallel: " + minimumRules);
+		}
+		flush();
+		settings.responsePredicatePool(pool).parallelResponsePredicateThreshold(minimumRules);
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator passthroughUntransformedResponses()
+	{
+		flush();
+		settings.passthroughUntransformedResponses(true);
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator metrics(@NonNull final HttpProxyMetrics metrics)
+	{
+		flush();
+		settings.metrics(metrics);
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator cacheTransformedResponses(final long maximumSize)
+	{
+		flush();
+		settings.transformedResponseCacheSize(maximumSize);
+		return this;
+	}
+
+	@Override
+	public WebSurferConfigurator virtualThreads(final int maxConcurrentRequests)
+	{
+		return surfExecutor(newVirtualThreadPerTaskExecutor(), maxConcurrentRequests);
+	}
+
+	@Override
+	public WebSurferConfigurator surfExecutor(@NonNull final ExecutorService executor, final int maxConcurrentRequests)
+	{
+		if (maxConcurrentRequests < 0)
+		{
+			throw new IllegalArgumentException("maximum number of concurrent requests can't be negative: " + maxConcurrentRequests);
+		}
+		flush();
+		settings.surfExecutor(executor).maxConcurrentRequests(maxConcurrentRequests);
+		return this;
+	}
+
+	/**
+	 * the project is compiled for Java 15, so virtual threads are reached by reflection
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (final NoSuchMethodException e)
+		{
+			throw new UnsupportedOperationException("virtual threads need Java 21 or newer, running on " + Runtime.version(), e);
+		}
+		catch (final InvocationTargetException e)
+		{
+			// preview builds throw UnsupportedOperationException when preview features are disabled
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		catch (final IllegalAccessException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
 	public HttpProxyService build()
 	{
 		flush();
-		return new HttpProxyService(httpRequestExecutor, rules);
+		return new HttpProxyService(httpRequestExecutor, rules, settings.build());
+	}
+
+	@Override
+	public List<WebSurferRule> buildRules()
+	{
+		flush();
+		return List.copyOf(rules);
 	}
 }
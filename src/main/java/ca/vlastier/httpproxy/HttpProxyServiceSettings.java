@@ -0,0 +1,49 @@
+package ca.vlastier.httpproxy;
+
+import lombok.Value;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Service wide settings collected by the configurator. Defaults keep the original fully buffered behaviour.
+ */
+@Value
+@lombok.Builder(toBuilder = true)
+class HttpProxyServiceSettings {
+    static final HttpProxyServiceSettings DEFAULT = HttpProxyServiceSettings.builder().build();
+
+    /**
+     * when no matched rule has a response transformation, stream the upstream body to the client instead of buffering it
+     */
+    boolean passthroughUntransformedResponses;
+
+    /**
+     * maximum size of the cache of transformed responses in bytes. 0 disables the cache
+     */
+    long transformedResponseCacheSize;
+
+    /**
+     * executor running whole surf calls made through {@link HttpProxyService#surfAsync(HttpRequestWrapper)}. null keeps them on the caller and
+     * executor threads
+     */
+    ExecutorService surfExecutor;
+
+    /**
+     * maximum number of requests surfed at the same time. 0 means no limit
+     */
+    int maxConcurrentRequests;
+
+    /**
+     * pool evaluating the response predicates of side effect free rules in parallel. null evaluates all of them on the calling thread
+     */
+    ForkJoinPool responsePredicatePool;
+
+    /**
+     * minimum number of side effect free rules triggered by a response for their predicates to be evaluated in parallel
+     */
+    int parallelResponsePredicateThreshold;
+
+    @lombok.Builder.Default
+    HttpProxyMetrics metrics = HttpProxyMetrics.NOOP;
+}
@@ -3,4 +3,14 @@ package ca.vlastier.httpproxy;
 public interface HttpRequestExecutor
 {
 	HttpResponseWrapper executeRequest(HttpRequestWrapper request);
+
+	/**
+	 * Executes the request without buffering the response body. The body is exposed as {@link HttpResponseWrapper#getBodyStream()} and has to be consumed
+	 * or closed by the caller. Used by {@link HttpProxyService} when no response transformation can be applied to the response.
+	 * Executors unable to stream fall back to {@link #executeRequest(HttpRequestWrapper)}.
+	 */
+	default HttpResponseWrapper executeRequestStreaming(final HttpRequestWrapper request)
+	{
+		return executeRequest(request);
+	}
 }
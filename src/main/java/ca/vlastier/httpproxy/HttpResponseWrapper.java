@@ -1,15 +1,36 @@
 package ca.vlastier.httpproxy;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.ToString;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Entities;
 import org.jsoup.parser.Parser;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
 @Data
 @NoArgsConstructor
 @EqualsAndHashCode(callSuper = true)
@@ -17,30 +38,397 @@ public class HttpResponseWrapper extends HttpWrapper {
     private JsonNode jsonBody;
     private Document domBody;
     private HttpStatus httpStatus;
+    /**
+     * upstream body decoded as text. When the response has a {@link #rawBody}, it is only decoded when first asked for
+     */
     private ResponseEntity<String> originalResponse;
+    /**
+     * upstream body as received, written back as is unless a transformation replaced it. See {@link RawBody}
+     */
+    private RawBody rawBody;
     private HttpRequestWrapper originalRequest;
+    /**
+     * unbuffered upstream body. Set instead of {@link #originalResponse} when the response is passed through without transformations
+     */
+    private InputStream bodyStream;
+    /**
+     * html transformations postponed so that the whole DOM is not built, when they are all streamed, or is walked once for consecutive element
+     * changes. See {@link HtmlStreamRewriter}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private HtmlStreamRewriter htmlRewriter;
+    /**
+     * position of the rule whose transformation is being applied and listener told about its postponed html transformations, see
+     * {@link #transformedBy(int, HtmlStreamRewriter.OperationListener)}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private int transformingRule = -1;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private HtmlStreamRewriter.OperationListener htmlTransformationListener;
+    /**
+     * json transformations postponed until the body is written, so that the tree of the whole document is not built. See {@link JsonStreamRewriter}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private JsonStreamRewriter jsonRewriter;
+    /**
+     * compression of the upstream body, applied again to a transformed body. See {@link ContentEncodingHttpRequestExecutor}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private ContentCoding bodyCoding;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private int compressionLevel;
 
     @lombok.Builder
     public HttpResponseWrapper(final HttpHeaders headers, final JsonNode jsonBody, final Document domBody, final HttpStatus httpStatus,
-                               final ResponseEntity<String> originalResponse, final HttpRequestWrapper originalRequest) {
+                               final ResponseEntity<String> originalResponse, final RawBody rawBody, final HttpRequestWrapper originalRequest,
+                               final InputStream bodyStream) {
         super(headers);
         this.jsonBody = jsonBody;
         this.domBody = domBody;
         this.httpStatus = httpStatus;
         this.originalResponse = originalResponse;
+        this.rawBody = originalResponse == null ? rawBody : null;
         this.originalRequest = originalRequest;
+        this.bodyStream = bodyStream;
+    }
+
+    /**
+     * Returns the upstream body as text, decoding the {@link #getRawBody() raw body} if it wasn't decoded yet.
+     */
+    public synchronized ResponseEntity<String> getOriginalResponse() {
+        if (originalResponse == null && rawBody != null) {
+            originalResponse = new ResponseEntity<>(rawBody.asString(), HttpHeaders.readOnlyHttpHeaders(getHeaders()), httpStatus);
+        }
+        return originalResponse;
+    }
+
+    /**
+     * Replaces the upstream body by the given one. The raw body is dropped, so the new body is the one written. The html transformations postponed
+     * until then which need the parsed document are applied to the previous body.
+     */
+    public void setOriginalResponse(final ResponseEntity<String> originalResponse) {
+        applyDomOnlyHtmlTransformations();
+        this.originalResponse = originalResponse;
+        this.rawBody = null;
+    }
+
+    /**
+     * Replaces the upstream body by the given bytes. The body decoded from the previous one is dropped.
+     */
+    public void setRawBody(final RawBody rawBody) {
+        applyDomOnlyHtmlTransformations();
+        this.rawBody = rawBody;
+        this.originalResponse = null;
+    }
+
+    /**
+     * Returns the parsed html body. If some html transformations were postponed, the body is parsed now and they are applied to it.
+     * The body is parsed once even if response predicates evaluated in parallel ask for it at the same time.
+     */
+    public synchronized Document getDomBody() {
+        if (htmlRewriter != null) {
+            if (domBody == null) {
+                domBody = Parser.parse(textBody(), getBaseUri());
+            }
+            final HtmlStreamRewriter rewriter = htmlRewriter;
+            htmlRewriter = null;
+            rewriter.applyTo(domBody, htmlTransformationListener);
+        }
+        return domBody;
+    }
+
+    /**
+     * Replaces the parsed html body. The html transformations postponed until then are applied to the previous one.
+     */
+    public synchronized void setDomBody(final Document domBody) {
+        applyDomOnlyHtmlTransformations();
+        this.domBody = domBody;
+    }
+
+    /**
+     * Returns the parsed json body. If some json transformations were postponed, the body is parsed now with the transformations applied.
+     */
+    public synchronized JsonNode getJsonBody() {
+        if (jsonBody == null && jsonRewriter != null) {
+            jsonBody = jsonRewriter.parse(this);
+            jsonRewriter = null;
+        }
+        return jsonBody;
+    }
+
+    boolean isJsonBodyParsed() {
+        return jsonBody != null;
+    }
+
+    boolean hasPendingJsonTransformations() {
+        return jsonRewriter != null;
+    }
+
+    void postponeJsonTransformation(final JsonStreamRewriter.Operation operation) {
+        if (jsonBody != null) {
+            final JsonStreamRewriter rewriter = new JsonStreamRewriter();
+            rewriter.add(operation);
+            jsonBody = rewriter.applyTo(jsonBody);
+            return;
+        }
+        if (jsonRewriter == null) {
+            jsonRewriter = new JsonStreamRewriter();
+        }
+        jsonRewriter.add(operation);
+    }
+
+    boolean isDomBodyParsed() {
+        return domBody != null;
+    }
+
+    boolean hasTextBody() {
+        return rawBody != null || originalResponse != null && originalResponse.getBody() != null;
+    }
+
+    /**
+     * @return the upstream body as text, without building the {@link #getOriginalResponse() original response} if it wasn't asked for
+     */
+    String textBody() {
+        if (originalResponse != null) {
+            return originalResponse.getBody();
+        }
+        return rawBody != null ? rawBody.asString() : null;
+    }
+
+    /**
+     * a transformed body will be compressed with the given coding, as long as the Content-Encoding header still declares it
+     */
+    void compressTransformedBodyWith(final ContentCoding coding, final int level) {
+        bodyCoding = coding;
+        compressionLevel = level;
+    }
+
+    /**
+     * Postpones the html transformation, even if the body is parsed already, so that consecutive element changes are looked up with a single walk
+     * over the document. See {@link #applyDomOnlyHtmlTransformations()}
+     */
+    synchronized void postponeHtmlTransformation(final HtmlStreamRewriter.Operation operation) {
+        if (htmlRewriter == null) {
+            htmlRewriter = new HtmlStreamRewriter(getBaseUri());
+        }
+        htmlRewriter.add(operation, transformingRule);
+    }
+
+    /**
+     * Html transformations postponed from now on are added by the rule at the position. When they are applied to the parsed document, the
+     * listener is told about the time spent on each one and about the one which failed, so both are attributed to the rule which added it.
+     *
+     * @param position position of the rule, -1 once the rules are applied
+     * @param listener listener of the postponed transformations, or null
+     */
+    void transformedBy(final int position, final HtmlStreamRewriter.OperationListener listener) {
+        transformingRule = position;
+        htmlTransformationListener = listener;
+    }
+
+    /**
+     * @return the body as it will be written by {@link #buildResponse()}, or null if it is streamed
+     */
+    String serializeBody() {
+        applyDomOnlyHtmlTransformations();
+        if (jsonBody != null) {
+            return jsonBody.toString();
+        } else if (domBody != null) {
+            return Parser.unescapeEntities(domBody.html(), true);
+        } else if (jsonRewriter != null) {
+            return jsonRewriter.rewrite(this);
+        } else if (htmlRewriter != null) {
+            return htmlRewriter.rewrite(textBody());
+        } else if (bodyStream == null) {
+            return textBody();
+        }
+        return null;
+    }
+
+    /**
+     * replaces the body by an already transformed one. Parsed bodies and postponed transformations are dropped
+     */
+    void replaceBody(final String body) {
+        jsonBody = null;
+        domBody = null;
+        htmlRewriter = null;
+        jsonRewriter = null;
+        rawBody = null;
+        originalResponse = new ResponseEntity<>(body, HttpHeaders.readOnlyHttpHeaders(getHeaders()), httpStatus);
+    }
+
+    /**
+     * Applies the postponed html transformations to the parsed document if it is parsed already or if some of them can't be applied while it is
+     * streamed. Consecutive element changes are looked up with a single walk over the document.
+     */
+    void applyDomOnlyHtmlTransformations() {
+        if (htmlRewriter != null && (domBody != null || !htmlRewriter.isStreamable())) {
+            getDomBody();
+        }
+    }
+
+    String getBaseUri() {
+        return originalRequest != null && originalRequest.getUrl() != null ? originalRequest.getUrl() : "";
     }
 
     public ResponseEntity<Object> buildResponse() {
 
+        applyDomOnlyHtmlTransformations();
+        final boolean transformed = isTransformed();
+        if (!transformed && bodyStream != null) {
+            return ResponseEntity.status(httpStatus).headers(getHeaders()).body(new InputStreamResource(bodyStream));
+        } else if (!transformed && rawBody != null) {
+            // untouched upstream bytes, written as received: neither decoded and encoded again nor decompressed and compressed again
+            return ResponseEntity.status(httpStatus).headers(getHeaders())
+                    .body(rawBody.isOnHeap() ? rawBody.bytes() : new InputStreamResource(rawBody.asInputStream()));
+        } else if (isCompressedAgain()) {
+            return buildCompressedResponse();
+        }
+
         final ResponseEntity.BodyBuilder response = ResponseEntity.status(httpStatus).headers(getHeaders());
 
         if (jsonBody != null) {
             return response.body(jsonBody);
         } else if (domBody != null) {
             return response.body(Parser.unescapeEntities(domBody.html(), true));
+        } else if (jsonRewriter != null) {
+            return response.body(jsonRewriter.rewrite(this));
+        } else if (htmlRewriter != null) {
+            return response.body(htmlRewriter.rewrite(textBody()));
+        } else {
+            return response.body(originalResponse != null ? originalResponse.getBody() : null);
+        }
+    }
+
+    /**
+     * Writes the body as {@link #buildResponse()} builds it, without building it as a string first: parsed html and json bodies are serialized
+     * straight into the stream, encoded with the charset of the Content-Type, and compressed again if the upstream body was.
+     * <p>
+     * The html is written as jsoup escapes it for that charset in xhtml mode, i.e. only {@code &}, {@code <}, {@code >} and quotes of attribute
+     * values are escaped, instead of being unescaped once serialized as {@link #buildResponse()} does.
+     * <p>
+     * The stream is flushed, not closed. A streamed body is consumed and closed.
+     */
+    public void writeTo(@NonNull final OutputStream outputStream) throws IOException {
+        applyDomOnlyHtmlTransformations();
+        final boolean transformed = isTransformed();
+        if (!transformed && bodyStream != null) {
+            try (InputStream in = bodyStream) {
+                in.transferTo(outputStream);
+            }
+        } else if (!transformed && rawBody != null) {
+            rawBody.writeTo(outputStream);
+        } else if (isCompressedAgain()) {
+            try (OutputStream compressed = bodyCoding.encoding(new UnclosedOutputStream(outputStream), compressionLevel)) {
+                writeBody(compressed);
+            }
+        } else {
+            writeBody(outputStream);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the body as {@link #writeTo(OutputStream)} does, in blocks of 8 KiB
+     */
+    public void writeTo(@NonNull final WritableByteChannel channel) throws IOException {
+        writeTo(new BufferedOutputStream(Channels.newOutputStream(channel), 8192));
+    }
+
+    private boolean isTransformed() {
+        return jsonBody != null || domBody != null || jsonRewriter != null || htmlRewriter != null;
+    }
+
+    private void writeBody(final OutputStream out) throws IOException {
+        final Charset charset = RawBody.charsetOf(getHeaders());
+        if (jsonBody != null) {
+            writeJsonBody(out, charset);
+        } else if (domBody != null) {
+            writeDomBody(out, charset);
+        } else if (jsonRewriter != null) {
+            jsonRewriter.rewrite(this, out, charset);
+        } else if (htmlRewriter != null) {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+            htmlRewriter.rewrite(new StringReader(textBody()), writer);
         } else {
-            return response.body(originalResponse.getBody());
+            final String body = serializeBody();
+            if (body != null) {
+                out.write(body.getBytes(charset));
+            }
+        }
+    }
+
+    private void writeJsonBody(final OutputStream out, final Charset charset) throws IOException {
+        try (JsonGenerator generator = JsonStreamRewriter.generatorOf(out, charset)) {
+            JsonStreamRewriter.OBJECT_MAPPER.writeTree(generator, jsonBody);
+        }
+    }
+
+    private void writeDomBody(final OutputStream out, final Charset charset) throws IOException {
+        final Document.OutputSettings outputSettings = domBody.outputSettings();
+        domBody.outputSettings(outputSettings.clone().charset(charset).escapeMode(Entities.EscapeMode.xhtml));
+        try {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+            domBody.html(writer);
+            writer.flush();
+        } finally {
+            domBody.outputSettings(outputSettings);
+        }
+    }
+
+    /**
+     * lets a compressing stream be closed, to write its trailer, without closing the stream it writes to
+     */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+
+        UnclosedOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
         }
     }
-}
+
+    /**
+     * the body was decompressed to be transformed, and the response still declares its compression
+     */
+    private boolean isCompressedAgain() {
+        return bodyCoding != null && bodyCoding == ContentCoding.of(getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    private ResponseEntity<Object> buildCompressedResponse() {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.putAll(getHeaders());
+        // the length of the upstream body
+        headers.remove(HttpHeaders.CONTENT_LENGTH);
+
+        final String body = serializeBody();
+        final byte[] compressedBody = body != null ? bodyCoding.encode(body.getBytes(RawBody.charsetOf(headers)), compressionLevel) : null;
+        return ResponseEntity.status(httpStatus).headers(headers).body(compressedBody);
+    }
+}
\ No newline at end of file
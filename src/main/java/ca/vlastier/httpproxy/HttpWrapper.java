@@ -1,6 +1,6 @@
 package ca.vlastier.httpproxy;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -8,12 +8,21 @@ import org.springframework.http.HttpHeaders;
 
 import java.util.List;
 
-@AllArgsConstructor
 @NoArgsConstructor
 @Getter
 @Setter
 public abstract class HttpWrapper {
     private HttpHeaders headers;
+    /**
+     * headers fetched by the predicates being evaluated, see {@link HeaderLookup}
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private transient HeaderLookup headerLookup;
+
+    public HttpWrapper(final HttpHeaders headers) {
+        this.headers = headers;
+    }
 
     public HttpWrapper addHeader(final String headerName, final List<String> headerValues) {
         getHeaders().put(headerName, headerValues);
@@ -0,0 +1,758 @@
+package ca.vlastier.httpproxy;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Applies json transformations while the document flows from a {@link JsonParser} to a {@link JsonGenerator}, without building the tree of the
+ * whole document. Values no transformation addresses are copied token by token; only replaced values and the elements of filtered arrays are read
+ * as trees, one at a time.
+ * <p>
+ * Transformations address values with paths such as {@code $.user.name}, {@code $.items[0]} or {@code $.items[*].price}, see {@link Path}.
+ * Paths refer to the upstream document: a field renamed by a transformation is still addressed by its former name. Transformations of the same
+ * value are applied in the order they were added.
+ */
+class JsonStreamRewriter
+{
+	private static final Logger log = LoggerFactory.getLogger(HttpProxyService.class);
+
+	static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	// numbers are equal whatever their representation, e.g. 1 and 1.0
+	private static final Comparator<JsonNode> NUMERIC_AWARE_COMPARATOR = (first, second) -> {
+		if (first.equals(second))
+		{
+			return 0;
+		}
+		return first.isNumber() && second.isNumber() ? first.decimalValue().compareTo(second.decimalValue()) : 1;
+	};
+
+	private final List<Operation> operations = new ArrayList<>();
+
+	void add(final Operation operation)
+	{
+		operations.add(operation);
+	}
+
+	/**
+	 * @return the body of the response with the pending operations applied, or the body unchanged if it is not valid json
+	 */
+	String rewrite(final HttpResponseWrapper response)
+	{
+		final StringWriter out = new StringWriter();
+		try (final JsonParser parser = parserOf(response); final JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(out))
+		{
+			rewrite(parser, generator);
+		}
+		catch (final IOException e)
+		{
+			log.warn("json transformations not applied, the body is not valid json: {}", e.getMessage());
+			return response.textBody();
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the tree of the body of the response with the pending operations applied, or null if it is not valid json
+	 */
+	JsonNode parse(final HttpResponseWrapper response)
+	{
+		try (final JsonParser parser = parserOf(response); final TokenBuffer buffer = new TokenBuffer(OBJECT_MAPPER, false))
+		{
+			rewrite(parser, buffer);
+			return OBJECT_MAPPER.readTree(buffer.asParser());
+		}
+		catch (final IOException e)
+		{
+			log.warn("json body can't be parsed: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Applies pending operations to an already parsed document.
+	 *
+	 * @return the transformed document. The given one is not modified
+	 */
+	JsonNode applyTo(final JsonNode document)
+	{
+		try (final JsonParser parser = document.traverse(OBJECT_MAPPER); final TokenBuffer buffer = new TokenBuffer(OBJECT_MAPPER, false))
+		{
+			rewrite(parser, buffer);
+			return OBJECT_MAPPER.readTree(buffer.asParser());
+		}
+		catch (final IOException e)
+		{
+			// a tree is always valid json
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	void rewrite(final JsonParser parser, final JsonGenerator generator) throws IOException
+	{
+		if (parser.nextToken() == null)
+		{
+			// empty body
+			return;
+		}
+		final List<Match> matches = new ArrayList<>(operations.size());
+		operations.forEach(operation -> matches.add(new Match(operation, 0)));
+		copyResolved(parser, generator, null, matches);
+		generator.flush();
+	}
+
+	/**
+	 * Tests the values of the response body found at the path, reading the body only until a value passes.
+	 *
+	 * @return true if at least one value at the path passes the predicate, false if none does or if the body is not valid json
+	 */
+	static boolean anyValueMatches(final HttpResponseWrapper response, final Path path, final Predicate<JsonNode> predicate)
+	{
+		// transformations of a previous surf step are seen by the condition
+		final JsonNode parsedBody = response.isJsonBodyParsed() || response.hasPendingJsonTransformations() ? response.getJsonBody() : null;
+		if (parsedBody == null && !response.hasTextBody())
+		{
+			return false;
+		}
+		try (final JsonParser parser = parsedBody != null ? parsedBody.traverse(OBJECT_MAPPER) : parserOf(response))
+		{
+			return parser.nextToken() != null && find(parser, path, 0, predicate);
+		}
+		catch (final IOException e)
+		{
+			log.debug("json condition not met, the body is not valid json: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	static boolean jsonEquals(final JsonNode value, final JsonNode expected)
+	{
+		return value.equals(NUMERIC_AWARE_COMPARATOR, expected);
+	}
+
+	static JsonNode toJsonNode(final Object value)
+	{
+		return value == null ? NullNode.getInstance() : OBJECT_MAPPER.valueToTree(value);
+	}
+
+	/**
+	 * Writes the transformed body of the response into the stream, encoded with the charset, without building it as a string first. A body which
+	 * turns out not to be valid json is written as is, as {@link #rewrite(HttpResponseWrapper)} does, if none of it was written yet; otherwise the
+	 * exception is thrown.
+	 */
+	void rewrite(final HttpResponseWrapper response, final OutputStream out, final Charset charset) throws IOException
+	{
+		final WatchedOutputStream target = new WatchedOutputStream(out);
+		// not closed when the body is not valid json, so that what the generator buffered is not written
+		final JsonGenerator generator = generatorOf(target, charset);
+		try (final JsonParser parser = parserOf(response))
+		{
+			rewrite(parser, generator);
+		}
+		catch (final JsonProcessingException e)
+		{
+			if (target.written)
+			{
+				throw e;
+			}
+			log.warn("json transformations not applied, the body is not valid json: {}", e.getMessage());
+			out.write(response.textBody().getBytes(charset));
+			return;
+		}
+		generator.close();
+	}
+
+	/**
+	 * @return a generator writing into the stream with the charset, which doesn't close the stream. Utf-8 is encoded by the generator itself
+	 */
+	static JsonGenerator generatorOf(final OutputStream out, final Charset charset) throws IOException
+	{
+		final JsonGenerator generator = StandardCharsets.UTF_8.equals(charset)
+				? OBJECT_MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8)
+				: OBJECT_MAPPER.getFactory().createGenerator(new BufferedWriter(new OutputStreamWriter(out, charset)));
+		return generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	}
+
+	/**
+	 * utf-8 bodies are parsed straight from their bytes, decompressed on the fly, without being decoded to a string first
+	 */
+	private static JsonParser parserOf(final HttpResponseWrapper response) throws IOException
+	{
+		final RawBody rawBody = response.getRawBody();
+		if (rawBody != null && (StandardCharsets.UTF_8.equals(rawBody.getCharset()) || StandardCharsets.US_ASCII.equals(rawBody.getCharset())))
+		{
+			return rawBody.getContentCoding() != null || !rawBody.isOnHeap() ?
+					OBJECT_MAPPER.getFactory().createParser(rawBody.decodedStream()) :
+					OBJECT_MAPPER.getFactory().createParser(rawBody.bytes());
+		}
+		return OBJECT_MAPPER.getFactory().createParser(response.textBody());
+	}
+
+	private static JsonNode readValue(final JsonParser parser) throws IOException
+	{
+		final JsonNode value = OBJECT_MAPPER.readTree(parser);
+		return value != null ? value : NullNode.getInstance();
+	}
+
+	/**
+	 * the value at the current token is consumed entirely, unless a passing value is found
+	 */
+	private static boolean find(final JsonParser parser, final Path path, final int depth, final Predicate<JsonNode> predicate) throws IOException
+	{
+		if (depth == path.segments.size())
+		{
+			return predicate.test(readValue(parser));
+		}
+
+		final Segment segment = path.segments.get(depth);
+		final JsonToken token = parser.currentToken();
+		if (token == JsonToken.START_OBJECT)
+		{
+			while (parser.nextToken() == JsonToken.FIELD_NAME)
+			{
+				final boolean onPath = segment.matchesField(parser.getCurrentName());
+				parser.nextToken();
+				if (onPath && find(parser, path, depth + 1, predicate))
+				{
+					return true;
+				}
+				parser.skipChildren();
+			}
+		}
+		else if (token == JsonToken.START_ARRAY)
+		{
+			int index = 0;
+			while (parser.nextToken() != JsonToken.END_ARRAY)
+			{
+				if (segment.matchesIndex(index++) && find(parser, path, depth + 1, predicate))
+				{
+					return true;
+				}
+				parser.skipChildren();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * copies the value at the current token, preceded by its field name if it is an object field, applying the operations whose path ends at it
+	 */
+	private static void copyResolved(final JsonParser parser, final JsonGenerator generator, final String fieldName, final List<Match> matches)
+			throws IOException
+	{
+		Resolution resolution = null;
+		for (final Match match : matches)
+		{
+			if (match.isComplete())
+			{
+				resolution = resolution == null ? new Resolution(fieldName, false) : resolution;
+				match.operation.resolve(resolution);
+			}
+		}
+
+		if (resolution == null)
+		{
+			if (fieldName != null)
+			{
+				generator.writeFieldName(fieldName);
+			}
+			copyValue(parser, generator, matches, Collections.emptyList());
+			return;
+		}
+
+		if (resolution.removed)
+		{
+			parser.skipChildren();
+			return;
+		}
+		if (resolution.name != null)
+		{
+			generator.writeFieldName(resolution.name);
+		}
+		if (resolution.replacement != null)
+		{
+			parser.skipChildren();
+			generator.writeTree(resolution.replacement);
+			return;
+		}
+		final List<Match> partialMatches = new ArrayList<>(matches.size());
+		for (final Match match : matches)
+		{
+			if (!match.isComplete())
+			{
+				partialMatches.add(match);
+			}
+		}
+		copyValue(parser, generator, partialMatches, resolution.filters);
+	}
+
+	private static void copyValue(final JsonParser parser, final JsonGenerator generator, final List<Match> partialMatches,
+			final List<Predicate<JsonNode>> filters) throws IOException
+	{
+		final JsonToken token = parser.currentToken();
+		if (partialMatches.isEmpty() && (filters.isEmpty() || token != JsonToken.START_ARRAY))
+		{
+			// nothing to transform inside: the value is copied without looking at it
+			generator.copyCurrentStructure(parser);
+		}
+		else if (token == JsonToken.START_OBJECT)
+		{
+			copyObject(parser, generator, partialMatches);
+		}
+		else if (token == JsonToken.START_ARRAY)
+		{
+			copyArray(parser, generator, partialMatches, filters);
+		}
+		else
+		{
+			generator.copyCurrentEvent(parser);
+		}
+	}
+
+	private static void copyObject(final JsonParser parser, final JsonGenerator generator, final List<Match> partialMatches) throws IOException
+	{
+		// fields set by operations but missing from the upstream object are added at its end
+		List<Match> missingFields = Collections.emptyList();
+		for (final Match match : partialMatches)
+		{
+			if (match.isParentOfTarget() && match.nextSegment().field != null && match.operation.createsMissingField())
+			{
+				missingFields = missingFields.isEmpty() ? new ArrayList<>() : missingFields;
+				missingFields.add(match);
+			}
+		}
+
+		generator.writeStartObject();
+		while (parser.nextToken() == JsonToken.FIELD_NAME)
+		{
+			final String name = parser.getCurrentName();
+			parser.nextToken();
+			if (!missingFields.isEmpty())
+			{
+				missingFields.removeIf(match -> match.nextSegment().field.equals(name));
+			}
+			copyResolved(parser, generator, name, advance(partialMatches, segment -> segment.matchesField(name)));
+		}
+		writeMissingFields(generator, missingFields);
+		generator.writeEndObject();
+	}
+
+	private static void writeMissingFields(final JsonGenerator generator, final List<Match> missingFields) throws IOException
+	{
+		final List<String> written = new ArrayList<>();
+		for (final Match match : missingFields)
+		{
+			final String name = match.nextSegment().field;
+			if (written.contains(name))
+			{
+				continue;
+			}
+			written.add(name);
+
+			// all the operations of the missing field are applied in order, e.g. a removal after the field was set
+			final Resolution resolution = new Resolution(name, true);
+			for (final Match fieldMatch : missingFields)
+			{
+				if (fieldMatch.nextSegment().field.equals(name))
+				{
+					fieldMatch.operation.resolve(resolution);
+				}
+			}
+			if (!resolution.removed && resolution.replacement != null)
+			{
+				generator.writeFieldName(resolution.name);
+				generator.writeTree(resolution.replacement);
+			}
+		}
+	}
+
+	private static void copyArray(final JsonParser parser, final JsonGenerator generator, final List<Match> partialMatches,
+			final List<Predicate<JsonNode>> filters) throws IOException
+	{
+		generator.writeStartArray();
+		int index = 0;
+		while (parser.nextToken() != JsonToken.END_ARRAY)
+		{
+			final int elementIndex = index++;
+			final List<Match> elementMatches = advance(partialMatches, segment -> segment.matchesIndex(elementIndex));
+			if (filters.isEmpty())
+			{
+				copyResolved(parser, generator, null, elementMatches);
+				continue;
+			}
+
+			// only the tested element is materialized
+			final JsonNode element = readValue(parser);
+			if (!filters.stream().allMatch(filter -> filter.test(element)))
+			{
+				continue;
+			}
+			if (elementMatches.isEmpty())
+			{
+				generator.writeTree(element);
+				continue;
+			}
+			try (final JsonParser elementParser = element.traverse(OBJECT_MAPPER))
+			{
+				elementParser.nextToken();
+				copyResolved(elementParser, generator, null, elementMatches);
+			}
+		}
+		generator.writeEndArray();
+	}
+
+	private static List<Match> advance(final List<Match> partialMatches, final Predicate<Segment> segmentMatcher)
+	{
+		List<Match> advanced = Collections.emptyList();
+		for (final Match match : partialMatches)
+		{
+			if (segmentMatcher.test(match.nextSegment()))
+			{
+				advanced = advanced.isEmpty() ? new ArrayList<>() : advanced;
+				advanced.add(new Match(match.operation, match.depth + 1));
+			}
+		}
+		return advanced;
+	}
+
+	/**
+	 * Location of values in a json document: {@code $} is the document, {@code .name} a field of an object, {@code [2]} an element of an array and
+	 * {@code [*]} any element of an array. The leading {@code $} may be omitted, e.g. {@code user.name} is {@code $.user.name}.
+	 */
+	static final class Path
+	{
+		private final String expression;
+		private final List<Segment> segments;
+
+		private Path(final String expression, final List<Segment> segments)
+		{
+			this.expression = expression;
+			this.segments = segments;
+		}
+
+		static Path parse(final String expression)
+		{
+			final List<Segment> segments = new ArrayList<>();
+			int i = expression.startsWith("$") ? 1 : 0;
+			if (i == 0 && !expression.isEmpty() && expression.charAt(0) != '[')
+			{
+				i = readField(expression, i, segments);
+			}
+			while (i < expression.length())
+			{
+				final char c = expression.charAt(i);
+				if (c == '.')
+				{
+					i = readField(expression, i + 1, segments);
+				}
+				else if (c == '[')
+				{
+					final int end = expression.indexOf(']', i);
+					if (end < 0)
+					{
+						throw new IllegalArgumentException("unclosed [ in json path " + expression);
+					}
+					final String index = expression.substring(i + 1, end).trim();
+					segments.add(new Segment(null, "*".equals(index) ? Segment.ANY_INDEX : parseIndex(expression, index)));
+					i = end + 1;
+				}
+				else
+				{
+					throw new IllegalArgumentException("unexpected character '" + c + "' at " + i + " in json path " + expression);
+				}
+			}
+			return new Path(expression, List.copyOf(segments));
+		}
+
+		private static int readField(final String expression, final int start, final List<Segment> segments)
+		{
+			int end = start;
+			while (end < expression.length() && expression.charAt(end) != '.' && expression.charAt(end) != '[')
+			{
+				end++;
+			}
+			if (end == start)
+			{
+				throw new IllegalArgumentException("empty field name at " + start + " in json path " + expression);
+			}
+			segments.add(new Segment(expression.substring(start, end), -1));
+			return end;
+		}
+
+		private static int parseIndex(final String expression, final String index)
+		{
+			try
+			{
+				final int value = Integer.parseInt(index);
+				if (value >= 0)
+				{
+					return value;
+				}
+			}
+			catch (final NumberFormatException e)
+			{
+				// reported below
+			}
+			throw new IllegalArgumentException("invalid array index '" + index + "' in json path " + expression);
+		}
+
+		boolean isDocument()
+		{
+			return segments.isEmpty();
+		}
+
+		boolean endsWithField()
+		{
+			return !segments.isEmpty() && segments.get(segments.size() - 1).field != null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return expression;
+		}
+	}
+
+	private static final class Segment
+	{
+		private static final int ANY_INDEX = -2;
+
+		// null for array elements
+		private final String field;
+		private final int index;
+
+		private Segment(final String field, final int index)
+		{
+			this.field = field;
+			this.index = index;
+		}
+
+		boolean matchesField(final String name)
+		{
+			return field != null && field.equals(name);
+		}
+
+		boolean matchesIndex(final int elementIndex)
+		{
+			return field == null && (index == ANY_INDEX || index == elementIndex);
+		}
+	}
+
+	/**
+	 * an operation whose path matches the location being copied up to the given depth
+	 */
+	private static final class Match
+	{
+		private final Operation operation;
+		private final int depth;
+
+		private Match(final Operation operation, final int depth)
+		{
+			this.operation = operation;
+			this.depth = depth;
+		}
+
+		boolean isComplete()
+		{
+			return depth == operation.path.segments.size();
+		}
+
+		boolean isParentOfTarget()
+		{
+			return depth == operation.path.segments.size() - 1;
+		}
+
+		Segment nextSegment()
+		{
+			return operation.path.segments.get(depth);
+		}
+	}
+
+	/**
+	 * what becomes of a value once the operations addressing it are applied in order
+	 */
+	private static final class Resolution
+	{
+		// null for array elements and the document
+		private String name;
+		private boolean removed;
+		// replaces the upstream value when not null
+		private JsonNode replacement;
+		private final List<Predicate<JsonNode>> filters = new ArrayList<>();
+
+		private Resolution(final String name, final boolean removed)
+		{
+			this.name = name;
+			this.removed = removed;
+		}
+	}
+
+	abstract static class Operation
+	{
+		private final Path path;
+
+		Operation(final Path path)
+		{
+			this.path = path;
+		}
+
+		abstract void resolve(Resolution resolution);
+
+		boolean createsMissingField()
+		{
+			return false;
+		}
+	}
+
+	static class SetValue extends Operation
+	{
+		private final JsonNode value;
+
+		SetValue(final Path path, final JsonNode value)
+		{
+			super(path);
+			this.value = value;
+		}
+
+		@Override
+		void resolve(final Resolution resolution)
+		{
+			resolution.removed = false;
+			resolution.replacement = value;
+			resolution.filters.clear();
+		}
+
+		@Override
+		boolean createsMissingField()
+		{
+			return true;
+		}
+	}
+
+	static class RemoveValue extends Operation
+	{
+		RemoveValue(final Path path)
+		{
+			super(path);
+			if (path.isDocument())
+			{
+				throw new IllegalArgumentException("the json document itself can't be removed");
+			}
+		}
+
+		@Override
+		void resolve(final Resolution resolution)
+		{
+			resolution.removed = true;
+			resolution.replacement = null;
+			resolution.filters.clear();
+		}
+	}
+
+	static class RenameField extends Operation
+	{
+		private final String newName;
+
+		RenameField(final Path path, final String newName)
+		{
+			super(path);
+			if (!path.endsWithField())
+			{
+				throw new IllegalArgumentException("json path " + path + " doesn't address an object field");
+			}
+			this.newName = newName;
+		}
+
+		@Override
+		void resolve(final Resolution resolution)
+		{
+			if (!resolution.removed)
+			{
+				resolution.name = newName;
+			}
+		}
+	}
+
+	static class FilterArray extends Operation
+	{
+		private final Predicate<JsonNode> filter;
+
+		FilterArray(final Path path, final Predicate<JsonNode> filter)
+		{
+			super(path);
+			this.filter = filter;
+		}
+
+		@Override
+		void resolve(final Resolution resolution)
+		{
+			if (resolution.replacement == null)
+			{
+				resolution.filters.add(filter);
+			}
+			else if (resolution.replacement.isArray())
+			{
+				final ArrayNode filtered = OBJECT_MAPPER.createArrayNode();
+				resolution.replacement.forEach(element -> {
+					if (filter.test(element))
+					{
+						filtered.add(element);
+					}
+				});
+				resolution.replacement = filtered;
+			}
+		}
+	}
+
+	/**
+	 * tells whether anything was written into the stream
+	 */
+	private static final class WatchedOutputStream extends FilterOutputStream
+	{
+		private boolean written;
+
+		WatchedOutputStream(final OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException
+		{
+			written = true;
+			out.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			written |= len > 0;
+			out.write(b, off, len);
+		}
+	}
+}
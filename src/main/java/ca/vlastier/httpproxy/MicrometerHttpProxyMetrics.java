@@ -0,0 +1,127 @@
+package ca.vlastier.httpproxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes {@link HttpProxyMetrics} to a Micrometer {@link MeterRegistry}:
+ * <ul>
+ *     <li>{@code httpproxy.rule.predicate.evaluations} and {@code httpproxy.rule.predicate.hits} counters, tagged with {@code rule} and {@code phase}
+ *     (request or response)</li>
+ *     <li>{@code httpproxy.rule.transformation} timer with percentile histogram, tagged with {@code rule} and {@code phase}</li>
+ *     <li>{@code httpproxy.upstream} timer with percentile histogram, tagged with {@code method} and {@code outcome} (success or error)</li>
+ * </ul>
+ * Meters are registered on first use and kept per rule, so recording does not look up the registry.
+ * Micrometer is an optional dependency of the library; this class can be used only when micrometer-core is on the classpath.
+ */
+public class MicrometerHttpProxyMetrics implements HttpProxyMetrics
+{
+	private static final String REQUEST_PHASE = "request";
+	private static final String RESPONSE_PHASE = "response";
+	private static final String UNNAMED_RULE = "unnamed";
+
+	private final MeterRegistry registry;
+	private final Map<String, RuleMeters> ruleMeters = new ConcurrentHashMap<>();
+	private final Map<String, Timer> upstreamTimers = new ConcurrentHashMap<>();
+
+	public MicrometerHttpProxyMetrics(final MeterRegistry registry)
+	{
+		this.registry = registry;
+	}
+
+	@Override
+	public void requestPredicateEvaluated(final String ruleName, final boolean passed)
+	{
+		final RuleMeters meters = meters(ruleName);
+		meters.requestEvaluations.increment();
+		if (passed)
+		{
+			meters.requestHits.increment();
+		}
+	}
+
+	@Override
+	public void responsePredicateEvaluated(final String ruleName, final boolean passed)
+	{
+		final RuleMeters meters = meters(ruleName);
+		meters.responseEvaluations.increment();
+		if (passed)
+		{
+			meters.responseHits.increment();
+		}
+	}
+
+	@Override
+	public void requestTransformationExecuted(final String ruleName, final long durationNanos)
+	{
+		meters(ruleName).requestTransformation.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void responseTransformationExecuted(final String ruleName, final long durationNanos)
+	{
+		meters(ruleName).responseTransformation.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void upstreamRequestExecuted(final HttpRequestWrapper request, final long durationNanos, final boolean failed)
+	{
+		final String method = String.valueOf(request.getMethod());
+		final String outcome = failed ? "error" : "success";
+		upstreamTimers.computeIfAbsent(method + ' ' + outcome, key -> Timer.builder("httpproxy.upstream")
+				.description("duration of the calls to the upstream server")
+				.tag("method", method)
+				.tag("outcome", outcome)
+				.publishPercentileHistogram()
+				.register(registry))
+				.record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private RuleMeters meters(final String ruleName)
+	{
+		// rules built without the configurator may have no name
+		final String name = ruleName != null ? ruleName : UNNAMED_RULE;
+		final RuleMeters meters = ruleMeters.get(name);
+		return meters != null ? meters : ruleMeters.computeIfAbsent(name, RuleMeters::new);
+	}
+
+	private class RuleMeters
+	{
+		private final Counter requestEvaluations;
+		private final Counter requestHits;
+		private final Counter responseEvaluations;
+		private final Counter responseHits;
+		private final Timer requestTransformation;
+		private final Timer responseTransformation;
+
+		RuleMeters(final String ruleName)
+		{
+			requestEvaluations = counter("httpproxy.rule.predicate.evaluations", ruleName, REQUEST_PHASE);
+			requestHits = counter("httpproxy.rule.predicate.hits", ruleName, REQUEST_PHASE);
+			responseEvaluations = counter("httpproxy.rule.predicate.evaluations", ruleName, RESPONSE_PHASE);
+			responseHits = counter("httpproxy.rule.predicate.hits", ruleName, RESPONSE_PHASE);
+			requestTransformation = timer(ruleName, REQUEST_PHASE);
+			responseTransformation = timer(ruleName, RESPONSE_PHASE);
+		}
+
+		private Counter counter(final String name, final String ruleName, final String phase)
+		{
+			return Counter.builder(name).tag("rule", ruleName).tag("phase", phase).register(registry);
+		}
+
+		private Timer timer(final String ruleName, final String phase)
+		{
+			return Timer.builder("httpproxy.rule.transformation")
+					.description("duration of the rule transformations")
+					.tag("rule", ruleName)
+					.tag("phase", phase)
+					.publishPercentileHistogram()
+					.register(registry);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package ca.vlastier.httpproxy;
+
+import lombok.NonNull;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Upstream body kept as the bytes received. It is decoded to text, with the charset of its Content-Type, only the first time a rule asks for
+ * text, and written back as is when no rule changed it, so binary bodies are never corrupted by a decoding round trip.
+ * <p>
+ * The bytes may be compressed with a {@link ContentCoding}, see {@link ContentEncodingHttpRequestExecutor}. They are then decompressed only to be
+ * decoded as text; every other method gives the bytes as received.
+ * <p>
+ * The bytes are never modified: the same instance can be shared by several responses, e.g. by {@link CachingHttpRequestExecutor}.
+ * <p>
+ * Large bodies may be kept out of the heap, in a memory-mapped temporary file, see {@link BodyBufferLimits}. They are read from the mapping,
+ * which stays valid until the instance is garbage collected.
+ */
+public final class RawBody
+{
+	private static final int COPY_CHUNK_SIZE = 8192;
+
+	// the bytes are either on the heap or mapped, the other field is null
+	private final byte[] bytes;
+	private final ByteBuffer mapped;
+	private final Charset charset;
+	private final ContentCoding contentCoding;
+	// decoded on demand. Strings are immutable, so a concurrent decoding at worst decodes twice
+	private String text;
+
+	private RawBody(final byte[] bytes, final ByteBuffer mapped, final Charset charset, final ContentCoding contentCoding)
+	{
+		this.bytes = bytes;
+		this.mapped = mapped;
+		this.charset = charset;
+		this.contentCoding = contentCoding;
+	}
+
+	/**
+	 * @param bytes   the body, owned by the returned instance from now on: it is not copied, so the caller must not modify it
+	 * @param charset charset used to decode the body as text
+	 */
+	public static RawBody of(@NonNull final byte[] bytes, @NonNull final Charset charset)
+	{
+		return new RawBody(bytes, null, charset, null);
+	}
+
+	/**
+	 * @param bytes         the compressed body, owned by the returned instance from now on: it is not copied, so the caller must not modify it
+	 * @param charset       charset used to decode the decompressed body as text
+	 * @param contentCoding compression of the bytes, null if they are not compressed
+	 */
+	public static RawBody of(@NonNull final byte[] bytes, @NonNull final Charset charset, final ContentCoding contentCoding)
+	{
+		return new RawBody(bytes, null, charset, contentCoding);
+	}
+
+	/**
+	 * @param bytes   the body, owned by the returned instance from now on: it is not copied, so the caller must not modify it
+	 * @param headers headers of the response, giving the charset of the body. UTF-8 is used when they don't
+	 */
+	public static RawBody of(@NonNull final byte[] bytes, @NonNull final HttpHeaders headers)
+	{
+		return new RawBody(bytes, null, charsetOf(headers), null);
+	}
+
+	/**
+	 * @param mapped the body, mapped from a file. Read from its position to its limit, without being copied
+	 */
+	static RawBody ofMapped(final ByteBuffer mapped, final Charset charset)
+	{
+		return new RawBody(null, mapped.slice().asReadOnlyBuffer(), charset, null);
+	}
+
+	/**
+	 * @return the same bytes, compressed with the given coding
+	 */
+	RawBody withContentCoding(final ContentCoding contentCoding)
+	{
+		return new RawBody(bytes, mapped, charset, contentCoding);
+	}
+
+	/**
+	 * @return the charset of the Content-Type header, UTF-8 when it is absent, unparsable or unsupported
+	 */
+	public static Charset charsetOf(@NonNull final HttpHeaders headers)
+	{
+		try
+		{
+			final MediaType contentType = headers.getContentType();
+			return contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+		}
+		catch (final IllegalArgumentException e)
+		{
+			// unparsable content types (InvalidMediaTypeException) and unsupported charsets
+			return StandardCharsets.UTF_8;
+		}
+	}
+
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * @return the compression of the bytes, or null if they are not compressed
+	 */
+	public ContentCoding getContentCoding()
+	{
+		return contentCoding;
+	}
+
+	/**
+	 * @return the number of bytes received, compressed ones if the body is compressed
+	 */
+	public int length()
+	{
+		return bytes != null ? bytes.length : mapped.remaining();
+	}
+
+	/**
+	 * @return the body decompressed and decoded with its charset. It is decoded once, further calls return the same string
+	 */
+	public String asString()
+	{
+		if (text == null)
+		{
+			if (contentCoding != null)
+			{
+				text = new String(contentCoding.decode(toByteArray()), charset);
+			}
+			else
+			{
+				text = bytes != null ? new String(bytes, charset) : charset.decode(mapped.duplicate()).toString();
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * @return a read-only view of the bytes, without copying them
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : mapped.duplicate();
+	}
+
+	public InputStream asInputStream()
+	{
+		return bytes != null ? new ByteArrayInputStream(bytes) : new ByteBufferInputStream(mapped.duplicate());
+	}
+
+	public void writeTo(@NonNull final OutputStream outputStream) throws IOException
+	{
+		if (bytes != null)
+		{
+			outputStream.write(bytes);
+			return;
+		}
+
+		final ByteBuffer remaining = mapped.duplicate();
+		final byte[] chunk = new byte[Math.min(COPY_CHUNK_SIZE, remaining.remaining())];
+		while (remaining.hasRemaining())
+		{
+			final int length = Math.min(chunk.length, remaining.remaining());
+			remaining.get(chunk, 0, length);
+			outputStream.write(chunk, 0, length);
+		}
+	}
+
+	/**
+	 * @return a copy of the bytes
+	 */
+	public byte[] toByteArray()
+	{
+		if (bytes != null)
+		{
+			return Arrays.copyOf(bytes, bytes.length);
+		}
+		final byte[] copy = new byte[mapped.remaining()];
+		mapped.duplicate().get(copy);
+		return copy;
+	}
+
+	/**
+	 * @return true if the bytes are on the heap, so {@link #bytes()} can be called
+	 */
+	boolean isOnHeap()
+	{
+		return bytes != null;
+	}
+
+	/**
+	 * @return the decompressed bytes, decompressed while they are read
+	 */
+	InputStream decodedStream() throws IOException
+	{
+		final InputStream received = asInputStream();
+		return contentCoding != null ? contentCoding.decoding(received) : received;
+	}
+
+	/**
+	 * the bytes themselves, for the code of this package which only reads or writes them as they are. Only for bodies {@link #isOnHeap() on the heap}
+	 */
+	byte[] bytes()
+	{
+		if (bytes == null)
+		{
+			throw new IllegalStateException("the body is mapped from a file, its bytes are not on the heap");
+		}
+		return bytes;
+	}
+
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (!buffer.hasRemaining())
+			{
+				return -1;
+			}
+			final int read = Math.min(len, buffer.remaining());
+			buffer.get(b, off, read);
+			return read;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package ca.vlastier.httpproxy;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Structured description of the request conditions a {@link WebSurferRule} was configured with.
+ * It mirrors the opaque {@link WebSurferRule#getRequestPredicate()} so that {@link HttpProxyService} can skip rules that can't possibly match a request
+ * without invoking their predicates. The predicate remains the source of truth: criteria are only used to narrow down candidates.
+ * All conditions are AND-ed, same way as the predicate is built by the configurator. Empty lists mean "no restriction".
+ */
+@Value
+@AllArgsConstructor
+public class RequestMatchCriteria {
+    public static final RequestMatchCriteria ANY = new RequestMatchCriteria(List.of(), List.of(), List.of());
+
+    List<String> methods;
+    List<String> urlPatterns;
+    List<HeaderCondition> headerConditions;
+
+    @Value
+    @AllArgsConstructor
+    public static class HeaderCondition {
+        String name;
+        /**
+         * expected (case insensitive) substring of the header value. null when only presence or absence of the header is checked, or when the
+         * value is tested by another kind of matcher
+         */
+        String value;
+        boolean present;
+        /**
+         * test of the header value. null when only presence or absence of the header is checked
+         */
+        HeaderMatcher matcher;
+
+        public HeaderCondition(final String name, final String value, final boolean present) {
+            this(name, value, present, value != null ? HeaderMatcher.contains(value) : null);
+        }
+    }
+}
@@ -1,44 +1,199 @@
 package ca.vlastier.httpproxy;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+
 @Slf4j
 public class RestTemplateHttpRequestExecutorImpl implements HttpRequestExecutor
 {
 	private final RestTemplate restTemplate;
-	private final ObjectMapper objectMapper;
+	private final BodyBufferLimits bodyBufferLimits;
 
 	public RestTemplateHttpRequestExecutorImpl(final RestTemplate restTemplate)
+	{
+		this(restTemplate, null);
+	}
+
+	/**
+	 * @param bodyBufferLimits limits of the memory taken by response bodies, bodies are read on the heap whatever their size if null
+	 */
+	public RestTemplateHttpRequestExecutorImpl(final RestTemplate restTemplate, final BodyBufferLimits bodyBufferLimits)
 	{
 		this.restTemplate = restTemplate;
-		this.objectMapper = new ObjectMapper();
+		this.bodyBufferLimits = bodyBufferLimits;
 	}
 
 	@Override
 	public HttpResponseWrapper executeRequest(final HttpRequestWrapper request)
 	{
+		if (bodyBufferLimits != null)
+		{
+			return executeRequestWithinLimits(request);
+		}
+
 		log.info("forwarded {} request to {}.", request.getMethod(), request.getUrl());
 		//TODO handle exception
-		final ResponseEntity<String> responseEntity = restTemplate.exchange(request.getUrl(), HttpMethod.valueOf(request.getMethod()),
-				new HttpEntity<>(request.getBody(), request.getHeaders()), String.class);
+		// read as bytes: the body is only decoded if a rule needs it as text
+		final ResponseEntity<byte[]> responseEntity = restTemplate.exchange(request.getUrl(), HttpMethod.valueOf(request.getMethod()),
+				new HttpEntity<>(request.getBody(), request.getHeaders()), byte[].class);
 
 		log.info("Got response {}", responseEntity.getStatusCodeValue());
-		log.trace("response body is {}", responseEntity.getBody());
 
-		final HttpHeaders responseHeaders = new HttpHeaders();
-		responseHeaders.putAll(responseEntity.getHeaders()); //the ones inside the response are unmodifiable
+		// the ones inside the response are unmodifiable: they are copied only if a rule changes them
+		final HttpHeaders responseHeaders = CopyOnWriteHeaders.wrap(responseEntity.getHeaders());
 
-		return HttpResponseWrapper.builder()
+		final HttpResponseWrapper.HttpResponseWrapperBuilder response = HttpResponseWrapper.builder()
 				.headers(responseHeaders)
 				.httpStatus(responseEntity.getStatusCode())
-				.originalResponse(responseEntity)
-				.originalRequest(request)
-				.build();
+				.originalRequest(request);
+
+		if (responseEntity.getBody() == null)
+		{
+			return response.originalResponse(new ResponseEntity<>(null, responseEntity.getHeaders(), responseEntity.getStatusCode())).build();
+		}
+		final RawBody body = RawBody.of(responseEntity.getBody(), responseHeaders);
+		if (log.isTraceEnabled())
+		{
+			log.trace("response body is {}", body.asString());
+		}
+		return response.rawBody(body).build();
+	}
+
+	/**
+	 * Same exchange as {@link #executeRequestStreaming(HttpRequestWrapper)}, with the body then read within the {@link BodyBufferLimits}
+	 */
+	private HttpResponseWrapper executeRequestWithinLimits(final HttpRequestWrapper request)
+	{
+		log.info("forwarded {} request to {}.", request.getMethod(), request.getUrl());
+		final HttpResponseWrapper.HttpResponseWrapperBuilder response = HttpResponseWrapper.builder().originalRequest(request);
+		ClientHttpResponse clientResponse = null;
+		try
+		{
+			clientResponse = execute(request);
+			final HttpHeaders responseHeaders = CopyOnWriteHeaders.wrap(clientResponse.getHeaders());
+			response.headers(responseHeaders).httpStatus(clientResponse.getStatusCode());
+
+			if (bodyBufferLimits.buffer(new ResponseClosingInputStream(clientResponse), responseHeaders, response))
+			{
+				// same as a body read by the rest template, which gives null for an empty body
+				response.rawBody(null).originalResponse(new ResponseEntity<>(null, responseHeaders, clientResponse.getStatusCode()));
+			}
+			return response.build();
+		}
+		catch (final IOException e)
+		{
+			if (clientResponse != null)
+			{
+				clientResponse.close();
+			}
+			throw new ResourceAccessException("I/O error on " + request.getMethod() + " request for \"" + request.getUrl() + "\": " + e.getMessage(), e);
+		}
+		catch (final RuntimeException e)
+		{
+			if (clientResponse != null)
+			{
+				clientResponse.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Executes the request through the request factory of the rest template, so its interceptors and error handler still apply,
+	 * but the response is not read by message converters. The connection is released when the body stream is closed.
+	 */
+	@Override
+	public HttpResponseWrapper executeRequestStreaming(final HttpRequestWrapper request)
+	{
+		log.info("forwarded {} request to {}. Streaming the response", request.getMethod(), request.getUrl());
+		ClientHttpResponse clientResponse = null;
+		try
+		{
+			clientResponse = execute(request);
+
+			return HttpResponseWrapper.builder()
+					.headers(CopyOnWriteHeaders.wrap(clientResponse.getHeaders()))
+					.httpStatus(clientResponse.getStatusCode())
+					.bodyStream(new ResponseClosingInputStream(clientResponse))
+					.originalRequest(request)
+					.build();
+		}
+		catch (final IOException e)
+		{
+			if (clientResponse != null)
+			{
+				clientResponse.close();
+			}
+			throw new ResourceAccessException("I/O error on " + request.getMethod() + " request for \"" + request.getUrl() + "\": " + e.getMessage(), e);
+		}
+		catch (final RuntimeException e)
+		{
+			if (clientResponse != null)
+			{
+				clientResponse.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the response, which has to be closed by the caller
+	 */
+	private ClientHttpResponse execute(final HttpRequestWrapper request) throws IOException
+	{
+		final ClientHttpRequest clientRequest = restTemplate.getRequestFactory()
+				.createRequest(restTemplate.getUriTemplateHandler().expand(request.getUrl()), HttpMethod.valueOf(request.getMethod()));
+		restTemplate.httpEntityCallback(new HttpEntity<>(request.getBody(), request.getHeaders())).doWithRequest(clientRequest);
+
+		final ClientHttpResponse clientResponse = clientRequest.execute();
+		try
+		{
+			if (restTemplate.getErrorHandler().hasError(clientResponse))
+			{
+				restTemplate.getErrorHandler().handleError(clientResponse);
+			}
+		}
+		catch (final IOException | RuntimeException e)
+		{
+			clientResponse.close();
+			throw e;
+		}
+
+		log.info("Got response {}", clientResponse.getRawStatusCode());
+		return clientResponse;
+	}
+
+	private static class ResponseClosingInputStream extends FilterInputStream
+	{
+		private final ClientHttpResponse response;
+
+		ResponseClosingInputStream(final ClientHttpResponse response) throws IOException
+		{
+			super(response.getBody());
+			this.response = response;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				response.close();
+			}
+		}
 	}
 }
@@ -0,0 +1,388 @@
+package ca.vlastier.httpproxy;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Index of rules by http method, host and path prefix. It is used by {@link HttpProxyService} as a pre-filter: only rules returned by
+ * {@link #candidates(HttpRequestWrapper)} have their request predicates evaluated.
+ * <p>
+ * A rule is indexed by host and path only when its url pattern is anchored (starts with {@code ^}) and begins with a literal
+ * {@code scheme://host/} part, e.g. {@code ^https://example\.com/api}. Other patterns are indexed by a literal text they require, if any,
+ * which a {@link UrlPatternPrefilter} looks for in the url; patterns without such a literal make the rule a candidate for every host.
+ * Rules without {@link RequestMatchCriteria} are candidates for every request.
+ * <p>
+ * Candidates are returned as a {@link BitSet} of rule positions, so iterating it preserves the declared rule order.
+ */
+class RuleIndex
+{
+	private static final String SCHEME_DELIMITER = "://";
+	private static final String REGEX_META_CHARACTERS = "[](){}.*+?^$|";
+
+	private final BitSet alwaysCandidates = new BitSet();
+	private final HostIndex anyMethod = new HostIndex();
+	private final Map<String, HostIndex> byMethod = new HashMap<>();
+	private final UrlPatternPrefilter urlPrefilter;
+	// rules found by the url prefilter which can match a method. Rules without method condition are in every set
+	private final BitSet prefilteredAnyMethod = new BitSet();
+	private final Map<String, BitSet> prefilteredByMethod = new HashMap<>();
+
+	RuleIndex(final List<WebSurferRule> rules)
+	{
+		final UrlPatternPrefilter.Builder prefilterBuilder = new UrlPatternPrefilter.Builder();
+		for (int position = 0; position < rules.size(); position++)
+		{
+			final RequestMatchCriteria criteria = rules.get(position).getRequestCriteria();
+			if (criteria == null)
+			{
+				alwaysCandidates.set(position);
+				continue;
+			}
+
+			final HostIndex hostIndex = criteria.getMethods().isEmpty() ?
+					anyMethod :
+					byMethod.computeIfAbsent(criteria.getMethods().get(0), m -> new HostIndex());
+
+			final UrlLocation location = criteria.getUrlPatterns()
+					.stream()
+					.map(RuleIndex::literalPrefix)
+					.map(RuleIndex::locatePrefix)
+					.filter(l -> l.host != null)
+					.findFirst()
+					.orElse(UrlLocation.ANYWHERE);
+
+			final String requiredLiteral = location.host != null ? null : criteria.getUrlPatterns()
+					.stream()
+					.map(UrlPatternPrefilter::requiredLiteral)
+					.filter(Objects::nonNull)
+					.max(Comparator.comparingInt(String::length))
+					.orElse(null);
+
+			if (requiredLiteral == null)
+			{
+				hostIndex.add(location, position);
+			}
+			else
+			{
+				prefilterBuilder.add(requiredLiteral, position);
+				if (criteria.getMethods().isEmpty())
+				{
+					prefilteredAnyMethod.set(position);
+				}
+				else
+				{
+					prefilteredByMethod.computeIfAbsent(criteria.getMethods().get(0), m -> new BitSet()).set(position);
+				}
+			}
+		}
+
+		urlPrefilter = prefilterBuilder.isEmpty() ? null : prefilterBuilder.build();
+		prefilteredByMethod.values().forEach(methodRules -> methodRules.or(prefilteredAnyMethod));
+	}
+
+	BitSet candidates(final HttpRequestWrapper request)
+	{
+		final BitSet result = new BitSet();
+		candidates(request, result, new BitSet());
+		return result;
+	}
+
+	/**
+	 * Same as {@link #candidates(HttpRequestWrapper)}, into sets reused from one request to the next: both are cleared first.
+	 *
+	 * @param result      set receiving the candidates
+	 * @param prefiltered work set of the url prefilter
+	 */
+	void candidates(final HttpRequestWrapper request, final BitSet result, final BitSet prefiltered)
+	{
+		result.clear();
+		result.or(alwaysCandidates);
+		final UrlLocation location = locate(request.getUrl());
+
+		anyMethod.collect(location, result);
+		if (request.getMethod() != null)
+		{
+			final HostIndex hostIndex = byMethod.get(request.getMethod());
+			if (hostIndex != null)
+			{
+				hostIndex.collect(location, result);
+			}
+		}
+
+		if (urlPrefilter != null && request.getUrl() != null)
+		{
+			prefiltered.clear();
+			urlPrefilter.match(request.getUrl(), prefiltered);
+			prefiltered.and(request.getMethod() == null ? prefilteredAnyMethod : prefilteredByMethod.getOrDefault(request.getMethod(), prefilteredAnyMethod));
+			result.or(prefiltered);
+		}
+	}
+
+	/**
+	 * Splits a url into host and the rest starting from the first '/', '?' or '#' after the host. Relative urls get an empty host.
+	 * The rest is null when the url ends with the host.
+	 */
+	static UrlLocation locate(final String url)
+	{
+		if (url == null)
+		{
+			return UrlLocation.ANYWHERE;
+		}
+
+		final int schemeEnd = url.indexOf(SCHEME_DELIMITER);
+		if (schemeEnd <= 0 || !isScheme(url, schemeEnd))
+		{
+			return new UrlLocation("", url);
+		}
+
+		final int hostStart = schemeEnd + SCHEME_DELIMITER.length();
+		for (int i = hostStart; i < url.length(); i++)
+		{
+			final char c = url.charAt(i);
+			if (c == '/' || c == '?' || c == '#')
+			{
+				return new UrlLocation(url.substring(hostStart, i), url.substring(i));
+			}
+		}
+
+		return new UrlLocation(url.substring(hostStart), null);
+	}
+
+	/**
+	 * Same as {@link #locate(String)} but for a literal prefix of urls. The host is known only if the prefix contains the whole of it.
+	 */
+	static UrlLocation locatePrefix(final String prefix)
+	{
+		if (prefix == null || prefix.isEmpty())
+		{
+			return UrlLocation.ANYWHERE;
+		}
+		if (!Character.isLetter(prefix.charAt(0)))
+		{
+			// can't be a scheme, so the prefix belongs to a relative url
+			return new UrlLocation("", prefix);
+		}
+
+		final int schemeEnd = prefix.indexOf(SCHEME_DELIMITER);
+		if (schemeEnd <= 0 || !isScheme(prefix, schemeEnd))
+		{
+			return UrlLocation.ANYWHERE;
+		}
+
+		final UrlLocation location = locate(prefix);
+		return location.path != null ? location : UrlLocation.ANYWHERE;
+	}
+
+	private static boolean isScheme(final String url, final int schemeEnd)
+	{
+		if (!Character.isLetter(url.charAt(0)))
+		{
+			return false;
+		}
+		for (int i = 1; i < schemeEnd; i++)
+		{
+			final char c = url.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the literal text every url matched by the given regex must start with, or null if the regex is not anchored to the beginning of the input.
+	 */
+	static String literalPrefix(final String regex)
+	{
+		if (regex == null || !regex.startsWith("^") || hasTopLevelAlternation(regex))
+		{
+			return null;
+		}
+
+		final StringBuilder prefix = new StringBuilder();
+		int i = 1;
+		while (i < regex.length())
+		{
+			final char c = regex.charAt(i);
+			final String literal;
+			final int next;
+
+			if (c == '\\')
+			{
+				if (i + 1 >= regex.length())
+				{
+					break;
+				}
+				final char escaped = regex.charAt(i + 1);
+				if (escaped == 'Q')
+				{
+					final int quoteEnd = regex.indexOf("\\E", i + 2);
+					literal = quoteEnd < 0 ? regex.substring(i + 2) : regex.substring(i + 2, quoteEnd);
+					next = quoteEnd < 0 ? regex.length() : quoteEnd + 2;
+				}
+				else if (!Character.isLetterOrDigit(escaped))
+				{
+					literal = String.valueOf(escaped);
+					next = i + 2;
+				}
+				else
+				{
+					break;
+				}
+			}
+			else if (REGEX_META_CHARACTERS.indexOf(c) >= 0)
+			{
+				break;
+			}
+			else
+			{
+				literal = String.valueOf(c);
+				next = i + 1;
+			}
+
+			if (next < regex.length() && "?*{".indexOf(regex.charAt(next)) >= 0)
+			{
+				// the last character is optional or repeated, so it can't be a part of the prefix
+				prefix.append(literal, 0, literal.length() - 1);
+				break;
+			}
+
+			prefix.append(literal);
+			if (next < regex.length() && regex.charAt(next) == '+')
+			{
+				break;
+			}
+			i = next;
+		}
+
+		return prefix.toString();
+	}
+
+	static boolean hasTopLevelAlternation(final String regex)
+	{
+		int depth = 0;
+		boolean inCharacterClass = false;
+		for (int i = 0; i < regex.length(); i++)
+		{
+			final char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q')
+				{
+					final int quoteEnd = regex.indexOf("\\E", i + 2);
+					if (quoteEnd < 0)
+					{
+						return false;
+					}
+					i = quoteEnd + 1;
+				}
+				else
+				{
+					i++;
+				}
+			}
+			else if (inCharacterClass)
+			{
+				inCharacterClass = c != ']';
+			}
+			else if (c == '[')
+			{
+				inCharacterClass = true;
+			}
+			else if (c == '(')
+			{
+				depth++;
+			}
+			else if (c == ')')
+			{
+				depth--;
+			}
+			else if (c == '|' && depth == 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static class UrlLocation
+	{
+		static final UrlLocation ANYWHERE = new UrlLocation(null, null);
+
+		final String host;
+		final String path;
+
+		UrlLocation(final String host, final String path)
+		{
+			this.host = host;
+			this.path = path;
+		}
+	}
+
+	private static class HostIndex
+	{
+		private final PathTrie anyHost = new PathTrie();
+		private final Map<String, PathTrie> byHost = new HashMap<>();
+
+		void add(final UrlLocation location, final int position)
+		{
+			if (location.host == null)
+			{
+				anyHost.add("", position);
+			}
+			else
+			{
+				byHost.computeIfAbsent(location.host, h -> new PathTrie()).add(location.path == null ? "" : location.path, position);
+			}
+		}
+
+		void collect(final UrlLocation location, final BitSet result)
+		{
+			anyHost.collect("", result);
+			if (location.host != null)
+			{
+				final PathTrie pathTrie = byHost.get(location.host);
+				if (pathTrie != null)
+				{
+					pathTrie.collect(location.path == null ? "" : location.path, result);
+				}
+			}
+		}
+	}
+
+	private static class PathTrie
+	{
+		private final BitSet rules = new BitSet();
+		private final Map<Character, PathTrie> children = new HashMap<>();
+
+		void add(final String pathPrefix, final int position)
+		{
+			PathTrie node = this;
+			for (int i = 0; i < pathPrefix.length(); i++)
+			{
+				node = node.children.computeIfAbsent(pathPrefix.charAt(i), c -> new PathTrie());
+			}
+			node.rules.set(position);
+		}
+
+		void collect(final String path, final BitSet result)
+		{
+			PathTrie node = this;
+			result.or(node.rules);
+			for (int i = 0; i < path.length() && !node.children.isEmpty(); i++)
+			{
+				node = node.children.get(path.charAt(i));
+				if (node == null)
+				{
+					return;
+				}
+				result.or(node.rules);
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package ca.vlastier.httpproxy;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Text with named placeholders, e.g. {@code Hello %username%}, compiled once into a list of segments so rendering is a concatenation.
+ * <p>
+ * A placeholder is a name made of letters, digits, {@code _}, {@code .} and {@code -}, starting with a letter or {@code _}, between two {@code %}.
+ * {@code %%} stands for a single {@code %}. Any other {@code %} is kept as is.
+ */
+public final class Template
+{
+	private final String text;
+	// literal segments at even indexes, placeholder names at odd indexes
+	private final String[] segments;
+	private final int literalLength;
+	private final Set<String> placeholders;
+
+	private Template(final String text, final String[] segments, final int literalLength, final Set<String> placeholders)
+	{
+		this.text = text;
+		this.segments = segments;
+		this.literalLength = literalLength;
+		this.placeholders = placeholders;
+	}
+
+	public static Template compile(@NonNull final String text)
+	{
+		final List<String> segments = new ArrayList<>();
+		final Set<String> placeholders = new LinkedHashSet<>();
+		final StringBuilder literal = new StringBuilder();
+		int literalLength = 0;
+
+		int i = 0;
+		while (i < text.length())
+		{
+			final char c = text.charAt(i);
+			if (c != '%')
+			{
+				literal.append(c);
+				i++;
+				continue;
+			}
+			if (i + 1 < text.length() && text.charAt(i + 1) == '%')
+			{
+				literal.append('%');
+				i += 2;
+				continue;
+			}
+
+			final int end = placeholderEnd(text, i + 1);
+			if (end < 0)
+			{
+				literal.append(c);
+				i++;
+				continue;
+			}
+			final String name = text.substring(i + 1, end);
+			segments.add(literal.toString());
+			segments.add(name);
+			placeholders.add(name);
+			literalLength += literal.length();
+			literal.setLength(0);
+			i = end + 1;
+		}
+		segments.add(literal.toString());
+		literalLength += literal.length();
+
+		return new Template(text, segments.toArray(new String[0]), literalLength, Set.copyOf(placeholders));
+	}
+
+	/**
+	 * @return the index of the % closing the placeholder name starting at {@code start}, or -1 if there is no valid name
+	 */
+	private static int placeholderEnd(final String text, final int start)
+	{
+		if (start >= text.length() || !(Character.isLetter(text.charAt(start)) || text.charAt(start) == '_'))
+		{
+			return -1;
+		}
+		for (int i = start + 1; i < text.length(); i++)
+		{
+			final char c = text.charAt(i);
+			if (c == '%')
+			{
+				return i;
+			}
+			if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '-')
+			{
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the names of the placeholders of the template
+	 */
+	public Set<String> getPlaceholders()
+	{
+		return placeholders;
+	}
+
+	/**
+	 * @return the source of the template, placeholders included
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a placeholder has no value
+	 */
+	public String render(@NonNull final Map<String, ?> values)
+	{
+		return render(values::get);
+	}
+
+	/**
+	 * @param values value of each placeholder by name, converted with {@link String#valueOf(Object)}
+	 * @throws IllegalArgumentException if a placeholder has no value
+	 */
+	public String render(@NonNull final Function<String, ?> values)
+	{
+		if (segments.length == 1)
+		{
+			return segments[0];
+		}
+
+		final String[] renderedValues = new String[segments.length / 2];
+		int length = literalLength;
+		for (int i = 1; i < segments.length; i += 2)
+		{
+			final Object value = values.apply(segments[i]);
+			if (value == null)
+			{
+				throw new IllegalArgumentException("no value for placeholder %" + segments[i] + "%");
+			}
+			final String renderedValue = String.valueOf(value);
+			renderedValues[i / 2] = renderedValue;
+			length += renderedValue.length();
+		}
+
+		final StringBuilder rendered = new StringBuilder(length);
+		for (int i = 0; i < segments.length; i++)
+		{
+			rendered.append(i % 2 == 0 ? segments[i] : renderedValues[i / 2]);
+		}
+		return rendered.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return text;
+	}
+}
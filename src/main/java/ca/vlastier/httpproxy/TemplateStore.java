@@ -0,0 +1,202 @@
+package ca.vlastier.httpproxy;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Template files, read and compiled once, then kept until they change. Replaces {@link FileReader}, which reads and formats the file on every
+ * call.
+ * <p>
+ * The directories of the loaded templates are watched with a {@link WatchService}: a modified, replaced or deleted file is dropped from the store
+ * and read again the next time it is requested, so templates can be edited while the proxy runs. When the file system can't be watched, files
+ * are read once and never reloaded.
+ * <pre>{@code
+ * final TemplateStore templates = new TemplateStore();
+ * ...
+ * .appendHtmlElementToBody("div", () -> templates.get("banner.html").render(Map.of("username", username)))
+ * }</pre>
+ * Elements appended from a {@code Supplier} may differ for each response, so the output of their rule is not cached unless it is declared
+ * cacheable.
+ */
+@Slf4j
+public class TemplateStore implements AutoCloseable
+{
+	private final Charset charset;
+	private final Map<Path, Template> templates = new ConcurrentHashMap<>();
+	private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+	private final WatchService watchService;
+	private final AtomicLong changes = new AtomicLong();
+
+	/**
+	 * Store of UTF-8 templates
+	 */
+	public TemplateStore()
+	{
+		this(StandardCharsets.UTF_8);
+	}
+
+	public TemplateStore(@NonNull final Charset charset)
+	{
+		this.charset = charset;
+		this.watchService = newWatchService();
+		if (watchService != null)
+		{
+			final Thread watcher = new Thread(this::watch, "template-store-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	private static WatchService newWatchService()
+	{
+		try
+		{
+			return FileSystems.getDefault().newWatchService();
+		}
+		catch (final IOException | UnsupportedOperationException e)
+		{
+			log.warn("template files can't be watched, they won't be reloaded when they change: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	public Template get(@NonNull final String path)
+	{
+		return get(Path.of(path));
+	}
+
+	/**
+	 * @return the compiled template of the file, read if it is not in the store yet
+	 * @throws UncheckedIOException if the file can't be read
+	 */
+	public Template get(@NonNull final Path path)
+	{
+		final Path file = path.toAbsolutePath().normalize();
+		final Template template = templates.get(file);
+		return template != null ? template : load(file);
+	}
+
+	/**
+	 * Shortcut for {@code get(path).render(values)}
+	 */
+	public String render(@NonNull final String path, @NonNull final Map<String, ?> values)
+	{
+		return get(path).render(values);
+	}
+
+	private Template load(final Path file)
+	{
+		// watched before being read, so a change made while it is read is not missed
+		watch(file.getParent());
+		final long changesBeforeRead = changes.get();
+		final Template template;
+		try
+		{
+			template = Template.compile(Files.readString(file, charset));
+		}
+		catch (final IOException e)
+		{
+			throw new UncheckedIOException("template can't be read from " + file, e);
+		}
+		templates.put(file, template);
+		if (changes.get() != changesBeforeRead)
+		{
+			// the file may have changed after it was read: it will be read again next time
+			templates.remove(file, template);
+		}
+		log.debug("template {} loaded", file);
+		return template;
+	}
+
+	private void watch(final Path directory)
+	{
+		if (watchService == null || directory == null || !watchedDirectories.add(directory))
+		{
+			return;
+		}
+		try
+		{
+			directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		}
+		catch (final IOException | ClosedWatchServiceException e)
+		{
+			watchedDirectories.remove(directory);
+			log.warn("templates of {} can't be watched, they won't be reloaded when they change: {}", directory, e.getMessage());
+		}
+	}
+
+	private void watch()
+	{
+		try
+		{
+			while (true)
+			{
+				final WatchKey key = watchService.take();
+				final Path directory = (Path) key.watchable();
+				changes.incrementAndGet();
+				for (final WatchEvent<?> event : key.pollEvents())
+				{
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						templates.keySet().removeIf(file -> directory.equals(file.getParent()));
+					}
+					else if (templates.remove(directory.resolve((Path) event.context())) != null)
+					{
+						log.info("template {} changed, it will be reloaded", directory.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset())
+				{
+					// directory deleted: its templates can't be watched any more
+					watchedDirectories.remove(directory);
+					templates.keySet().removeIf(file -> directory.equals(file.getParent()));
+				}
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (final ClosedWatchServiceException e)
+		{
+			// store closed
+		}
+	}
+
+	/**
+	 * Stops watching the template files. Templates already loaded are kept, without being reloaded any more.
+	 */
+	@Override
+	public void close()
+	{
+		if (watchService != null)
+		{
+			try
+			{
+				watchService.close();
+			}
+			catch (final IOException e)
+			{
+				log.warn("template watch service can't be closed: {}", e.getMessage());
+			}
+		}
+	}
+}
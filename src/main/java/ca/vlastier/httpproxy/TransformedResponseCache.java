@@ -0,0 +1,218 @@
+package ca.vlastier.httpproxy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Output of the response transformations, kept so identical upstream responses are not parsed and transformed again.
+ * An entry is identified by the url, the status, a validator of the upstream body (its strong ETag or a SHA-256 of the body) and the rules which
+ * transformed it. It stores the transformed body and the header changes made by the rules; headers are replayed over the new upstream response,
+ * so per-response headers such as Date or Set-Cookie are never shared between responses.
+ * Only rules declaring their response transformation as cacheable (see {@link WebSurferRule#isCacheableResponseTransformation()}) take part.
+ */
+class TransformedResponseCache
+{
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final Cache<Key, Entry> cache;
+
+	TransformedResponseCache(final long maximumSize)
+	{
+		this.cache = Caffeine.newBuilder()
+				.maximumWeight(maximumSize)
+				.weigher((Key key, Entry entry) -> entry.weight)
+				.build();
+	}
+
+	/**
+	 * @return the key of the response transformed by the given rules or null if the result can't be cached
+	 */
+	Key keyOf(final HttpResponseWrapper response, final List<WebSurferRule> transformingRules)
+	{
+		for (final WebSurferRule rule : transformingRules)
+		{
+			if (!rule.isCacheableResponseTransformation())
+			{
+				return null;
+			}
+		}
+		if (!response.hasTextBody() || response.isDomBodyParsed() || response.isJsonBodyParsed() || response.getBodyStream() != null
+				|| response.getHttpStatus() == null)
+		{
+			return null;
+		}
+
+		final String url = response.getOriginalRequest() != null ? response.getOriginalRequest().getUrl() : null;
+		final String etag = response.getHeaders().getETag();
+		final String validator = etag != null && !etag.startsWith("W/") ? etag : hash(response);
+		return new Key(url, response.getHttpStatus(), validator, transformingRules);
+	}
+
+	/**
+	 * @return true if the transformed response was found and its body and headers were applied to the upstream one
+	 */
+	boolean applyCached(final Key key, final HttpResponseWrapper response)
+	{
+		final Entry entry = cache.getIfPresent(key);
+		if (entry == null)
+		{
+			return false;
+		}
+		entry.applyTo(response);
+		return true;
+	}
+
+	/**
+	 * stores the result of the transformations. The body of the response is serialized now, so it is not serialized again when written
+	 */
+	void store(final Key key, final HttpHeaders upstreamHeaders, final HttpResponseWrapper transformedResponse)
+	{
+		final String body = transformedResponse.serializeBody();
+		transformedResponse.replaceBody(body);
+
+		final HttpHeaders transformedHeaders = transformedResponse.getHeaders();
+		final List<String> removedHeaders = new ArrayList<>();
+		upstreamHeaders.keySet().forEach(name -> {
+			if (!transformedHeaders.containsKey(name))
+			{
+				removedHeaders.add(name);
+			}
+		});
+		final Map<String, List<String>> changedHeaders = new HashMap<>();
+		transformedHeaders.forEach((name, values) -> {
+			if (!values.equals(upstreamHeaders.get(name)))
+			{
+				changedHeaders.put(name, List.copyOf(values));
+			}
+		});
+
+		// the body is weighed as it is written
+		final int bodySize = body != null ? body.getBytes(RawBody.charsetOf(transformedHeaders)).length : 0;
+		cache.put(key, new Entry(body, bodySize, transformedResponse.getHttpStatus(), List.copyOf(removedHeaders), changedHeaders));
+	}
+
+	/**
+	 * hashes the raw body when there is one, so it doesn't have to be decoded
+	 */
+	private static String hash(final HttpResponseWrapper response)
+	{
+		try
+		{
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			if (response.getRawBody() != null)
+			{
+				digest.update(response.getRawBody().asByteBuffer());
+			}
+			else
+			{
+				digest.update(response.textBody().getBytes(StandardCharsets.UTF_8));
+			}
+			return Base64.getEncoder().encodeToString(digest.digest());
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			// every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * rules are compared by identity: two rule instances may have equal fields but different behaviour behind their lambdas
+	 */
+	static final class Key
+	{
+		private final String url;
+		private final HttpStatus status;
+		private final String validator;
+		private final List<WebSurferRule> rules;
+		private final int hashCode;
+
+		private Key(final String url, final HttpStatus status, final String validator, final List<WebSurferRule> rules)
+		{
+			this.url = url;
+			this.status = status;
+			this.validator = validator;
+			this.rules = List.copyOf(rules);
+
+			int hash = 31 * String.valueOf(url).hashCode() + status.hashCode();
+			hash = 31 * hash + validator.hashCode();
+			for (final WebSurferRule rule : this.rules)
+			{
+				hash = 31 * hash + System.identityHashCode(rule);
+			}
+			this.hashCode = hash;
+		}
+
+		@Override
+		public boolean equals(final Object other)
+		{
+			if (this == other)
+			{
+				return true;
+			}
+			if (!(other instanceof Key))
+			{
+				return false;
+			}
+			final Key key = (Key) other;
+			if (hashCode != key.hashCode || status != key.status || !validator.equals(key.validator) || !String.valueOf(url).equals(String.valueOf(key.url))
+					|| rules.size() != key.rules.size())
+			{
+				return false;
+			}
+			for (int i = 0; i < rules.size(); i++)
+			{
+				if (rules.get(i) != key.rules.get(i))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
+
+	private static class Entry
+	{
+		private final String body;
+		private final HttpStatus status;
+		private final List<String> removedHeaders;
+		private final Map<String, List<String>> changedHeaders;
+		private final int weight;
+
+		Entry(final String body, final int bodySize, final HttpStatus status, final List<String> removedHeaders,
+				final Map<String, List<String>> changedHeaders)
+		{
+			this.body = body;
+			this.status = status;
+			this.removedHeaders = removedHeaders;
+			this.changedHeaders = changedHeaders;
+			this.weight = ENTRY_OVERHEAD + bodySize + removedHeaders.toString().length() + changedHeaders.toString().length();
+		}
+
+		void applyTo(final HttpResponseWrapper response)
+		{
+			final HttpHeaders headers = response.getHeaders();
+			removedHeaders.forEach(headers::remove);
+			changedHeaders.forEach((name, values) -> headers.put(name, new ArrayList<>(values)));
+			response.setHttpStatus(status);
+			response.replaceBody(body);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package ca.vlastier.httpproxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over literal texts required by url patterns. It finds in a single pass over a url every rule whose required literal
+ * occurs in it; the regex of those rules still has to confirm the match. Used by {@link RuleIndex} for patterns which can't be indexed by host.
+ * <p>
+ * See {@link #requiredLiteral(String)} for the literals which can be extracted from a regex.
+ */
+class UrlPatternPrefilter
+{
+	private static final String QUANTIFIERS = "?*+{";
+
+	// node 0 is the root. Transitions of a node are kept as sorted characters with their target nodes
+	private final char[][] transitionCharacters;
+	private final int[][] transitionTargets;
+	private final int[] failures;
+	// rules whose literal ends at the node or at one of its suffixes. null when there are none
+	private final BitSet[] matches;
+
+	private UrlPatternPrefilter(final List<TrieNode> nodes)
+	{
+		transitionCharacters = new char[nodes.size()][];
+		transitionTargets = new int[nodes.size()][];
+		failures = new int[nodes.size()];
+		matches = new BitSet[nodes.size()];
+
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			final TrieNode node = nodes.get(i);
+			transitionCharacters[i] = new char[node.children.size()];
+			transitionTargets[i] = new int[node.children.size()];
+			int transition = 0;
+			for (final Map.Entry<Character, Integer> child : node.children.entrySet())
+			{
+				transitionCharacters[i][transition] = child.getKey();
+				transitionTargets[i][transition] = child.getValue();
+				transition++;
+			}
+			matches[i] = node.rules.isEmpty() ? null : node.rules;
+		}
+
+		// breadth first, so failures of shorter suffixes are known first
+		final Deque<Integer> queue = new ArrayDeque<>();
+		for (final int child : transitionTargets[0])
+		{
+			queue.add(child);
+		}
+		while (!queue.isEmpty())
+		{
+			final int node = queue.poll();
+			for (int transition = 0; transition < transitionCharacters[node].length; transition++)
+			{
+				final char c = transitionCharacters[node][transition];
+				final int child = transitionTargets[node][transition];
+
+				int failure = failures[node];
+				int next = next(failure, c);
+				while (next < 0 && failure != 0)
+				{
+					failure = failures[failure];
+					next = next(failure, c);
+				}
+				failures[child] = next < 0 ? 0 : next;
+
+				if (matches[failures[child]] != null)
+				{
+					final BitSet inherited = matches[child] == null ? new BitSet() : matches[child];
+					inherited.or(matches[failures[child]]);
+					matches[child] = inherited;
+				}
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * @return positions of the rules whose literal occurs in the url
+	 */
+	BitSet match(final String url)
+	{
+		final BitSet result = new BitSet();
+		match(url, result);
+		return result;
+	}
+
+	/**
+	 * Adds to the result the positions of the rules whose literal occurs in the url
+	 */
+	void match(final String url, final BitSet result)
+	{
+		int node = 0;
+		for (int i = 0; i < url.length(); i++)
+		{
+			final char c = url.charAt(i);
+			int next = next(node, c);
+			while (next < 0 && node != 0)
+			{
+				node = failures[node];
+				next = next(node, c);
+			}
+			node = next < 0 ? 0 : next;
+			if (matches[node] != null)
+			{
+				result.or(matches[node]);
+			}
+		}
+	}
+
+	private int next(final int node, final char c)
+	{
+		final int transition = Arrays.binarySearch(transitionCharacters[node], c);
+		return transition < 0 ? -1 : transitionTargets[node][transition];
+	}
+
+	/**
+	 * Returns the longest literal text every url matched (with find semantics) by the given regex has to contain, or null if there is none.
+	 * Only the top level of the regex is considered: groups, character classes, escapes other than escaped punctuation and quantified characters
+	 * split the literal. Patterns with top level alternation or inline flags, such as {@code (?i)}, have no required literal.
+	 */
+	static String requiredLiteral(final String regex)
+	{
+		if (regex == null || regex.contains("(?") || RuleIndex.hasTopLevelAlternation(regex))
+		{
+			return null;
+		}
+
+		String longest = "";
+		final StringBuilder current = new StringBuilder();
+		int i = 0;
+		while (i < regex.length())
+		{
+			final char c = regex.charAt(i);
+			final String literal;
+			final int next;
+
+			if (c == '\\' && i + 1 < regex.length() && regex.charAt(i + 1) == 'Q')
+			{
+				final int quoteEnd = regex.indexOf("\\E", i + 2);
+				literal = quoteEnd < 0 ? regex.substring(i + 2) : regex.substring(i + 2, quoteEnd);
+				next = quoteEnd < 0 ? regex.length() : quoteEnd + 2;
+			}
+			else if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1)))
+			{
+				literal = String.valueOf(regex.charAt(i + 1));
+				next = i + 2;
+			}
+			else if (c == '\\' || c == '.' || c == '^' || c == '$' || c == '|' || c == ')' || c == ']' || c == '}')
+			{
+				// escapes such as \d or \x41, anchors and stray characters end the literal
+				literal = null;
+				next = c == '\\' ? skipEscape(regex, i) : i + 1;
+			}
+			else if (c == '[')
+			{
+				literal = null;
+				next = skipCharacterClass(regex, i);
+			}
+			else if (c == '(')
+			{
+				literal = null;
+				next = skipGroup(regex, i);
+			}
+			else if (QUANTIFIERS.indexOf(c) >= 0)
+			{
+				// quantifier of a group, a class or a modifier of another quantifier
+				literal = null;
+				next = c == '{' ? skipRepetition(regex, i) : i + 1;
+			}
+			else
+			{
+				literal = String.valueOf(c);
+				next = i + 1;
+			}
+
+			if (literal == null)
+			{
+				longest = longer(longest, current);
+				current.setLength(0);
+			}
+			else if (next < regex.length() && QUANTIFIERS.indexOf(regex.charAt(next)) >= 0)
+			{
+				// the quantifier applies to the last character only
+				final char quantifier = regex.charAt(next);
+				current.append(literal, 0, literal.length() - (quantifier == '+' ? 0 : 1));
+				longest = longer(longest, current);
+				current.setLength(0);
+			}
+			else
+			{
+				current.append(literal);
+			}
+			i = next;
+		}
+
+		longest = longer(longest, current);
+		return longest.isEmpty() ? null : longest;
+	}
+
+	private static String longer(final String longest, final StringBuilder candidate)
+	{
+		return candidate.length() > longest.length() ? candidate.toString() : longest;
+	}
+
+	/**
+	 * @return the position after the escape starting with the backslash at start and followed by a letter or a digit: the characters of
+	 * {@code \x41}, {@code \u0061}, {@code \0141}, {@code \cA}, {@code \k<name>} or {@code \p{Alpha}} are not literals
+	 */
+	private static int skipEscape(final String regex, final int start)
+	{
+		final int escaped = start + 1;
+		if (escaped >= regex.length())
+		{
+			return regex.length();
+		}
+		switch (regex.charAt(escaped))
+		{
+			case 'x':
+				return escaped + 1 < regex.length() && regex.charAt(escaped + 1) == '{' ?
+						skipRepetition(regex, escaped + 1) :
+						Math.min(escaped + 3, regex.length());
+			case 'u':
+				return Math.min(escaped + 5, regex.length());
+			case '0':
+				return skipDigits(regex, escaped + 1, 3, '7');
+			case 'c':
+				return Math.min(escaped + 2, regex.length());
+			case 'k':
+				final int nameEnd = regex.indexOf('>', escaped);
+				return nameEnd < 0 ? regex.length() : nameEnd + 1;
+			case 'p':
+			case 'P':
+			case 'N':
+				return escaped + 1 < regex.length() && regex.charAt(escaped + 1) == '{' ?
+						skipRepetition(regex, escaped + 1) :
+						Math.min(escaped + 2, regex.length());
+			default:
+				// back references take as many digits as there are groups: the digits after the first one are skipped as well
+				return Character.isDigit(regex.charAt(escaped)) ? skipDigits(regex, escaped + 1, Integer.MAX_VALUE, '9') : escaped + 1;
+		}
+	}
+
+	private static int skipDigits(final String regex, final int start, final int maximum, final char highest)
+	{
+		int i = start;
+		while (i < regex.length() && i - start < maximum && regex.charAt(i) >= '0' && regex.charAt(i) <= highest)
+		{
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipCharacterClass(final String regex, final int start)
+	{
+		int depth = 0;
+		for (int i = start; i < regex.length(); i++)
+		{
+			final char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				i++;
+			}
+			else if (c == '[')
+			{
+				depth++;
+				if (i + 1 < regex.length() && regex.charAt(i + 1) == ']')
+				{
+					// a leading ] is a literal member of the class
+					i++;
+				}
+			}
+			else if (c == ']' && --depth == 0)
+			{
+				return i + 1;
+			}
+		}
+		return regex.length();
+	}
+
+	private static int skipGroup(final String regex, final int start)
+	{
+		int depth = 0;
+		for (int i = start; i < regex.length(); i++)
+		{
+			final char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				i++;
+			}
+			else if (c == '[')
+			{
+				i = skipCharacterClass(regex, i) - 1;
+			}
+			else if (c == '(')
+			{
+				depth++;
+			}
+			else if (c == ')' && --depth == 0)
+			{
+				return i + 1;
+			}
+		}
+		return regex.length();
+	}
+
+	private static int skipRepetition(final String regex, final int start)
+	{
+		final int end = regex.indexOf('}', start);
+		return end < 0 ? regex.length() : end + 1;
+	}
+
+	static class Builder
+	{
+		private final List<TrieNode> nodes = new ArrayList<>(List.of(new TrieNode()));
+
+		Builder add(final String literal, final int position)
+		{
+			int node = 0;
+			for (int i = 0; i < literal.length(); i++)
+			{
+				final TrieNode trieNode = nodes.get(node);
+				final Integer child = trieNode.children.get(literal.charAt(i));
+				if (child == null)
+				{
+					nodes.add(new TrieNode());
+					trieNode.children.put(literal.charAt(i), nodes.size() - 1);
+					node = nodes.size() - 1;
+				}
+				else
+				{
+					node = child;
+				}
+			}
+			nodes.get(node).rules.set(position);
+			return this;
+		}
+
+		boolean isEmpty()
+		{
+			return nodes.size() == 1;
+		}
+
+		UrlPatternPrefilter build()
+		{
+			return new UrlPatternPrefilter(nodes);
+		}
+	}
+
+	private static class TrieNode
+	{
+		private final Map<Character, Integer> children = new TreeMap<>();
+		private final BitSet rules = new BitSet();
+	}
+}
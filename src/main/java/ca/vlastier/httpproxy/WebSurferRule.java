@@ -1,5 +1,6 @@
 package ca.vlastier.httpproxy;
 
+import ca.vlastier.httpproxy.configuration.Builder;
 import ca.vlastier.httpproxy.configuration.WebSurferConfigurator;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -24,6 +25,12 @@ import java.util.function.Predicate;
  * So if a response transformation is required, and it has only a request condition then response predicate must always return true and vice versa.
  * If a response transformation is required, and it has only a response condition then request predicate must always return true.
  * All this logic is transparent if use {@link WebSurferConfigurator}. Get one by calling {@link HttpProxyService#configure(HttpRequestExecutor)}
+ * <p>
+ * Rules created by the configurator also carry {@link RequestMatchCriteria} describing their request predicate. It lets {@link HttpProxyService} index rules
+ * and evaluate only the ones that can match a request. Rules without criteria are evaluated against every request.
+ * <p>
+ * The output of response transformations is cached only for rules marked as cacheable, which is never the case of rules built without the configurator.
+ * Likewise, only response predicates marked as side effect free may be evaluated in parallel.
  */
 @AllArgsConstructor
 @lombok.Builder
@@ -34,4 +41,13 @@ public class WebSurferRule {
     private Consumer<HttpRequestWrapper> requestTransformation;
     private Predicate<HttpResponseWrapper> responsePredicate;
     private Consumer<HttpResponseWrapper> responseTransformation;
+    private RequestMatchCriteria requestCriteria;
+    /**
+     * the response transformation gives the same result for the same upstream response, so its output may be cached. See {@link Builder#ruleCacheable()}
+     */
+    private boolean cacheableResponseTransformation;
+    /**
+     * the response predicate only reads the response, so it may be evaluated in parallel with the ones of other rules. See {@link Builder#ruleSideEffectFree()}
+     */
+    private boolean sideEffectFreeResponsePredicate;
 }
@@ -1,9 +1,85 @@
 package ca.vlastier.httpproxy.configuration;
 
+import ca.vlastier.httpproxy.HttpProxyMetrics;
 import ca.vlastier.httpproxy.HttpProxyService;
+import ca.vlastier.httpproxy.HttpRequestWrapper;
+import ca.vlastier.httpproxy.WebSurferRule;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 public interface Builder {
     WebSurferConfigurator ruleName(String name);
 
+    /**
+     * The response transformations of the next rule give the same result for the same upstream response, so their output may be cached, see
+     * {@link #cacheTransformedResponses(long)}. Without it, rules running code of their own are not cached: html elements supplied by a
+     * {@code Supplier}, html element changes, json array filters, header values computed by a {@code Function} and custom transformations may
+     * give a different result for each response, e.g. depending on the user or the time.
+     */
+    WebSurferConfigurator ruleCacheable();
+
+    /**
+     * The response transformations of the next rule may give different results for the same upstream response, so their output is never cached,
+     * even if they only use fixed values.
+     */
+    WebSurferConfigurator ruleNotCacheable();
+
+    /**
+     * The response conditions of the next rule only read the response, so they may be evaluated at the same time as the ones of other such rules.
+     * See {@link #parallelResponsePredicates(ForkJoinPool, int)}.
+     */
+    WebSurferConfigurator ruleSideEffectFree();
+
+    /**
+     * Evaluates the response conditions of the rules declared with {@link #ruleSideEffectFree()} in parallel on the pool, when a response triggers
+     * at least {@code minimumRules} of them. Below that, they are evaluated one after the other on the calling thread, as the conditions of the
+     * other rules always are. Response transformations are applied in their declared order whatever the way conditions are evaluated.
+     *
+     * @param minimumRules minimum number of side effect free rules of a response, at least 2, for their conditions to be evaluated in parallel
+     */
+    WebSurferConfigurator parallelResponsePredicates(ForkJoinPool pool, int minimumRules);
+
+    /**
+     * Responses no rule is going to transform are streamed from the upstream server instead of being buffered in memory.
+     * Their body is exposed as {@link ca.vlastier.httpproxy.HttpResponseWrapper#getBodyStream()} and has to be consumed or closed by the caller.
+     */
+    WebSurferConfigurator passthroughUntransformedResponses();
+
+    /**
+     * Records predicate evaluations, transformation durations and upstream latency of the built service. Nothing is recorded by default.
+     */
+    WebSurferConfigurator metrics(HttpProxyMetrics metrics);
+
+    /**
+     * Keeps the output of response transformations, so an upstream response already seen, recognized by its strong ETag or the hash of its body,
+     * is not transformed again by the same rules.
+     *
+     * @param maximumSize maximum size of the cached bodies in bytes, as encoded with the charset of their Content-Type
+     */
+    WebSurferConfigurator cacheTransformedResponses(long maximumSize);
+
+    /**
+     * Runs each {@link HttpProxyService#surfAsync(HttpRequestWrapper)} call, including the upstream exchange, on its own virtual thread, so the
+     * blocking rule API scales like an asynchronous one. Needs Java 21 at runtime; pair it with an executor which does not pin carrier threads,
+     * such as {@link ca.vlastier.httpproxy.HttpClientHttpRequestExecutorImpl}.
+     *
+     * @param maxConcurrentRequests maximum number of requests surfed at the same time, 0 for no limit. Further calls wait for a free slot
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    WebSurferConfigurator virtualThreads(int maxConcurrentRequests);
+
+    /**
+     * Same as {@link #virtualThreads(int)} with an executor supplied by the caller, for JVMs without virtual threads.
+     */
+    WebSurferConfigurator surfExecutor(ExecutorService executor, int maxConcurrentRequests);
+
     HttpProxyService build();
+
+    /**
+     * Creates the configured rules without building a service, to give them to {@link HttpProxyService#replaceRules(List)} of a running one.
+     * Service settings such as {@link #metrics(HttpProxyMetrics)} are ignored.
+     */
+    List<WebSurferRule> buildRules();
 }
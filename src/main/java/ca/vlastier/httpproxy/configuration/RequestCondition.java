@@ -1,5 +1,7 @@
 package ca.vlastier.httpproxy.configuration;
 
+import ca.vlastier.httpproxy.HeaderMatcher;
+
 public interface RequestCondition {
     RequestConditionConfigurator get(String url);
 
@@ -21,7 +23,16 @@ public interface RequestCondition {
 
     RequestConditionConfigurator requestHasNoHeader(String header);
 
+    /**
+     * Matches when one of the values of the header contains the value, ignoring case. Same as {@code requestHasHeaderMatching(header, HeaderMatcher.contains(value))}
+     */
     RequestConditionConfigurator requestHasHeaderWithValue(String header, String value);
 
+    /**
+     * Matches when one of the values of the header passes the matcher, e.g. {@link HeaderMatcher#prefix(String)}. Headers tested by several rules
+     * are looked up once per request.
+     */
+    RequestConditionConfigurator requestHasHeaderMatching(String header, HeaderMatcher matcher);
+
     RequestConditionConfigurator anyRequest();
 }
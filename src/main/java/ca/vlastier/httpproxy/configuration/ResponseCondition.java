@@ -1,5 +1,11 @@
 package ca.vlastier.httpproxy.configuration;
 
+import ca.vlastier.httpproxy.HeaderMatcher;
+import ca.vlastier.httpproxy.HttpResponseWrapper;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+
 public interface ResponseCondition {
     ResponseConditionConfigurator anyResponse();
 
@@ -7,7 +13,29 @@ public interface ResponseCondition {
 
     ResponseConditionConfigurator responseHasNoHeader(String header);
 
+    /**
+     * Matches when one of the values of the header contains the value, ignoring case. Same as {@code responseHasHeaderMatching(header, HeaderMatcher.contains(value))}
+     */
     ResponseConditionConfigurator responseHasHeaderWithValue(String header, String value);
 
+    /**
+     * Matches when one of the values of the header passes the matcher, e.g. {@link HeaderMatcher#prefix(String)}. Headers tested by several rules
+     * are looked up once per response.
+     */
+    ResponseConditionConfigurator responseHasHeaderMatching(String header, HeaderMatcher matcher);
+
     ResponseConditionConfigurator hasStatus(int statusCode);
+
+    /**
+     * Matches json responses having a value equal to the given one at the path, e.g. {@code $.user.role} or {@code $.items[*].id}. With
+     * {@code [*]}, one matching element is enough. Numbers are compared by value, whatever their representation. The body is read as a stream,
+     * only until the value is found.
+     */
+    ResponseConditionConfigurator jsonPathEquals(String path, Object value);
+
+    /**
+     * Matches responses passing the predicate, e.g. one inspecting the body. If it only reads the response, declare the rule with
+     * {@link Builder#ruleSideEffectFree()} so it may be evaluated in parallel with other rules, see {@link Builder#parallelResponsePredicates(ForkJoinPool, int)}.
+     */
+    ResponseConditionConfigurator customResponseCondition(Predicate<HttpResponseWrapper> predicate);
 }
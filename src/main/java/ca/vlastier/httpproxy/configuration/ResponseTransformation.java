@@ -1,16 +1,28 @@
 package ca.vlastier.httpproxy.configuration;
 
 import ca.vlastier.httpproxy.HttpResponseWrapper;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.jsoup.nodes.Element;
 
+import java.nio.file.Path;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 public interface ResponseTransformation {
+    /**
+     * Appends a {@code tagName} element to the body, with the supplied html as content. The supplier is called for every response, but the html it
+     * returns is parsed once: the parsed nodes are cached by html and copied into each response.
+     */
     ResponseTransformationConfigurator appendHtmlElementToBody(String tagName, Supplier<String> htmlContentSupplier);
 
+    /**
+     * Appends a {@code tagName} element to the body, with the content of the UTF-8 html file. The file is read and parsed once, then again only
+     * when its modification time or size changes; it is checked at most once per second.
+     */
+    ResponseTransformationConfigurator appendHtmlElementToBody(String tagName, Path htmlFile);
+
     ResponseTransformationConfigurator removeHeaderFromResponse(String name);
 
     ResponseTransformationConfigurator setResponseHeader(String name, String value);
@@ -19,15 +31,73 @@ public interface ResponseTransformation {
 
     ResponseTransformationConfigurator customResponseTransformation(Consumer<HttpResponseWrapper> consumer);
 
+    /**
+     * Changes the first element selected by the css query which passes the filter. The body is parsed as a whole document, so the filter and the
+     * action can look at the parent, siblings and ancestors of the element.
+     * <p>
+     * The change is applied once the rules were applied, or as soon as a later transformation asks for the document. Consecutive changes, of one
+     * or several rules, are then looked up in a single walk over the document, which gives the result of separate lookups only as long as each
+     * action changes nothing but its element and the content of its parent. The time of the change is part of the rule's transformation metric.
+     */
     ResponseTransformationConfigurator changeHtmlElement(String tagName, Predicate<Element> filter, Consumer<Element> action);
 
     default ResponseTransformationConfigurator changeHtmlElement(String tagName, Consumer<Element> action) {
         return changeHtmlElement(tagName, elem -> true, action);
     }
 
+    /**
+     * Changes every element selected by the css query which passes the filter, in the parsed document, see
+     * {@link #changeHtmlElement(String, Predicate, Consumer)}.
+     */
     ResponseTransformationConfigurator changeAllHtmlElements(String tagName, Predicate<Element> filter, Consumer<Element> action);
 
     default ResponseTransformationConfigurator changeAllHtmlElements(String tagName, Consumer<Element> action) {
         return changeAllHtmlElements(tagName, elem -> true, action);
     }
+
+    /**
+     * Changes the first element with the tag name which passes the filter, while the body is written: the page is copied as is, only the element
+     * is parsed, as a fragment out of the document. The filter and the action see the element and its content, but not its parent, siblings,
+     * ancestors or owner document, e.g. {@code e.parent()} is not the element's parent in the page.
+     * <p>
+     * A tag name whose element needs the whole document to be delimited, e.g. {@code p} or {@code td}, or any other css query, is not streamed:
+     * the change is then applied to the parsed document as {@link #changeHtmlElement(String, Predicate, Consumer)} does.
+     * <p>
+     * The change is made while the body is written, after the rules were applied: its time is not part of the rule's transformation metric, and
+     * an exception thrown by the filter or the action is thrown when the body is written. If the document is parsed after all, e.g. for a later
+     * change which isn't streamed, the change is applied to it as {@link #changeHtmlElement(String, Predicate, Consumer)} does.
+     */
+    ResponseTransformationConfigurator changeHtmlElementStreamed(String tagName, Predicate<Element> filter, Consumer<Element> action);
+
+    default ResponseTransformationConfigurator changeHtmlElementStreamed(String tagName, Consumer<Element> action) {
+        return changeHtmlElementStreamed(tagName, elem -> true, action);
+    }
+
+    /**
+     * Changes every element with the tag name which passes the filter, while the body is written, see
+     * {@link #changeHtmlElementStreamed(String, Predicate, Consumer)}.
+     */
+    ResponseTransformationConfigurator changeAllHtmlElementsStreamed(String tagName, Predicate<Element> filter, Consumer<Element> action);
+
+    default ResponseTransformationConfigurator changeAllHtmlElementsStreamed(String tagName, Consumer<Element> action) {
+        return changeAllHtmlElementsStreamed(tagName, elem -> true, action);
+    }
+
+    /**
+     * Sets the value at the path of a json response, e.g. {@code $.user.role}, {@code $.items[0]} or {@code $.items[*].price}. A missing field is
+     * added to its object; missing objects and array elements are not created. The value is converted to json by Jackson.
+     * <p>
+     * Json transformations are applied while the body is written, as a stream: the tree of the whole document is not built. Their paths refer to
+     * the upstream document, e.g. a renamed field is still addressed by its former name.
+     */
+    ResponseTransformationConfigurator setJsonField(String path, Object value);
+
+    ResponseTransformationConfigurator removeJsonField(String path);
+
+    ResponseTransformationConfigurator renameJsonField(String path, String newName);
+
+    /**
+     * Keeps only the elements of the json array at the path which pass the filter. Elements are read and tested one at a time.
+     */
+    ResponseTransformationConfigurator filterJsonArray(String path, Predicate<JsonNode> filter);
 }
@@ -0,0 +1,139 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BodyBufferLimitsTest
+{
+	private static final String HTML = "<html><head></head><body><h1>caf\u00e9</h1><p>some text long enough to be spilled</p></body></html>";
+
+	@TempDir
+	Path spillDirectory;
+
+	@Test
+	public void shouldKeepSmallBodiesOnHeap() throws IOException
+	{
+		final BodyBufferLimits limits = BodyBufferLimits.builder().defaultInMemoryLimit(1024L).spillDirectory(spillDirectory).build();
+
+		final HttpResponseWrapper response = buffer(limits, HTML, "text/html;charset=UTF-8");
+
+		assertTrue(response.getRawBody().isOnHeap());
+		assertEquals(HTML, response.getRawBody().asString());
+	}
+
+	@Test
+	public void shouldMapBodiesOverTheLimitOfTheirContentType() throws IOException
+	{
+		final BodyBufferLimits limits = BodyBufferLimits.builder()
+				.inMemoryLimits(Map.of("text/html", 16L))
+				.spillDirectory(spillDirectory)
+				.build();
+
+		final RawBody rawBody = buffer(limits, HTML, "text/html;charset=UTF-8").getRawBody();
+
+		assertFalse(rawBody.isOnHeap());
+		assertEquals(HTML.getBytes(StandardCharsets.UTF_8).length, rawBody.length());
+		assertEquals(HTML, rawBody.asString());
+		assertArrayEquals(HTML.getBytes(StandardCharsets.UTF_8), rawBody.asInputStream().readAllBytes());
+		assertArrayEquals(HTML.getBytes(StandardCharsets.UTF_8), rawBody.toByteArray());
+		assertNoSpilledFile();
+	}
+
+	@Test
+	public void shouldApplyLimitOfWildcardContentType() throws IOException
+	{
+		final BodyBufferLimits limits = BodyBufferLimits.builder()
+				.inMemoryLimits(Map.of("image/*", 0L, "text/html", 0L))
+				.defaultInMemoryLimit(0L)
+				.build();
+
+		assertEquals(0, limits.inMemoryLimitOf(headers("image/png")));
+		assertEquals(0, limits.inMemoryLimitOf(headers("text/html; charset=UTF-8")));
+		assertEquals(0, limits.inMemoryLimitOf(headers("not a content type")));
+		assertEquals(4 * 1024 * 1024, BodyBufferLimits.builder().build().inMemoryLimitOf(headers("text/plain")));
+	}
+
+	@Test
+	public void shouldStreamBodiesOverTheSpillLimitThrough() throws IOException
+	{
+		final BodyBufferLimits limits = BodyBufferLimits.builder().defaultInMemoryLimit(8L).spillLimit(32L).spillDirectory(spillDirectory).build();
+
+		final HttpResponseWrapper response = buffer(limits, HTML, "text/html");
+
+		assertNull(response.getRawBody());
+		try (final InputStream bodyStream = response.getBodyStream())
+		{
+			assertEquals(HTML, new String(bodyStream.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertNoSpilledFile();
+	}
+
+	@Test
+	public void shouldTransformMappedBody() throws IOException
+	{
+		final BodyBufferLimits limits = BodyBufferLimits.builder().defaultInMemoryLimit(0L).spillDirectory(spillDirectory).build();
+		final HttpResponseWrapper upstreamResponse = buffer(limits, HTML, "text/html;charset=UTF-8");
+		final HttpProxyService service = HttpProxyService.configure(request -> upstreamResponse)
+				.anyResponse()
+				.changeAllHtmlElements("h1", heading -> heading.text(heading.text() + "!"))
+				.build();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.surf(HttpRequestWrapper.builder().url("http://localhost/").build()).writeTo(out);
+
+		assertTrue(out.toString(StandardCharsets.UTF_8).contains("<h1>caf\u00e9!</h1>"));
+	}
+
+	@Test
+	public void shouldRejectInvalidLimits()
+	{
+		assertThrows(IllegalArgumentException.class, () -> BodyBufferLimits.builder().defaultInMemoryLimit(-1L).build());
+		assertThrows(IllegalArgumentException.class, () -> BodyBufferLimits.builder().spillLimit(Integer.MAX_VALUE + 1L).build());
+		assertThrows(IllegalArgumentException.class, () -> BodyBufferLimits.builder().inMemoryLimits(Map.of("html", 0L)).build());
+	}
+
+	private static HttpResponseWrapper buffer(final BodyBufferLimits limits, final String body, final String contentType) throws IOException
+	{
+		final HttpHeaders headers = headers(contentType);
+		final HttpResponseWrapper.HttpResponseWrapperBuilder response = HttpResponseWrapper.builder().headers(headers).httpStatus(HttpStatus.OK);
+		limits.buffer(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), headers, response);
+		final HttpResponseWrapper built = response.build();
+		assertNotNull(built.getRawBody() != null ? built.getRawBody() : built.getBodyStream());
+		return built;
+	}
+
+	private static HttpHeaders headers(final String contentType)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, contentType);
+		return headers;
+	}
+
+	private void assertNoSpilledFile() throws IOException
+	{
+		try (final Stream<Path> files = Files.list(spillDirectory))
+		{
+			assertEquals(0, files.count());
+		}
+	}
+}
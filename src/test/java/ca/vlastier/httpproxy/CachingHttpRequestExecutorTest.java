@@ -0,0 +1,205 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingHttpRequestExecutorTest
+{
+	private static final String URL = "https://example.com/page";
+
+	@Mock
+	private HttpRequestExecutor delegate;
+
+	private final MutableClock clock = new MutableClock();
+	private CachingHttpRequestExecutor executor;
+
+	@BeforeEach
+	public void setup()
+	{
+		executor = new CachingHttpRequestExecutor(delegate, 1024 * 1024, clock);
+	}
+
+	@Test
+	public void shouldServeFreshResponseWithoutCallingUpstream()
+	{
+		when(delegate.executeRequest(any())).thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+
+		executor.executeRequest(get());
+		clock.advance(10_000);
+		final HttpResponseWrapper cached = executor.executeRequest(get());
+
+		verify(delegate).executeRequest(any());
+		assertEquals("body", cached.getOriginalResponse().getBody());
+		assertEquals("10", cached.getHeaders().getFirst(HttpHeaders.AGE));
+	}
+
+	@Test
+	public void shouldCallUpstreamWhenResponseIsStale()
+	{
+		when(delegate.executeRequest(any())).thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+
+		executor.executeRequest(get());
+		clock.advance(61_000);
+		executor.executeRequest(get());
+
+		verify(delegate, times(2)).executeRequest(any());
+	}
+
+	@Test
+	public void shouldRevalidateStaleResponseHavingETag()
+	{
+		when(delegate.executeRequest(any()))
+				.thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "max-age=60", HttpHeaders.ETAG, "\"v1\""))
+				.thenReturn(response(HttpStatus.NOT_MODIFIED, null, HttpHeaders.CACHE_CONTROL, "max-age=120"));
+
+		executor.executeRequest(get());
+		clock.advance(61_000);
+		final HttpResponseWrapper revalidated = executor.executeRequest(get());
+		clock.advance(100_000);
+		executor.executeRequest(get());
+
+		final ArgumentCaptor<HttpRequestWrapper> requests = ArgumentCaptor.forClass(HttpRequestWrapper.class);
+		verify(delegate, times(2)).executeRequest(requests.capture());
+		assertEquals("\"v1\"", requests.getAllValues().get(1).getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+		assertEquals(HttpStatus.OK, revalidated.getHttpStatus());
+		assertEquals("body", revalidated.getOriginalResponse().getBody());
+	}
+
+	@Test
+	public void shouldNotStorePrivateOrNoStoreResponses()
+	{
+		when(delegate.executeRequest(any()))
+				.thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "private, max-age=60"))
+				.thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "no-store, max-age=60"))
+				.thenReturn(response(HttpStatus.OK, "body"));
+
+		executor.executeRequest(get());
+		executor.executeRequest(get());
+		executor.executeRequest(get());
+
+		verify(delegate, times(3)).executeRequest(any());
+	}
+
+	@Test
+	public void shouldSelectResponseByVaryingRequestHeaders()
+	{
+		when(delegate.executeRequest(any()))
+				.thenReturn(response(HttpStatus.OK, "english", HttpHeaders.CACHE_CONTROL, "max-age=60", HttpHeaders.VARY, HttpHeaders.ACCEPT_LANGUAGE))
+				.thenReturn(response(HttpStatus.OK, "french", HttpHeaders.CACHE_CONTROL, "max-age=60", HttpHeaders.VARY, HttpHeaders.ACCEPT_LANGUAGE));
+
+		executor.executeRequest(get(HttpHeaders.ACCEPT_LANGUAGE, "en"));
+		executor.executeRequest(get(HttpHeaders.ACCEPT_LANGUAGE, "fr"));
+
+		assertEquals("english", executor.executeRequest(get(HttpHeaders.ACCEPT_LANGUAGE, "en")).getOriginalResponse().getBody());
+		assertEquals("french", executor.executeRequest(get(HttpHeaders.ACCEPT_LANGUAGE, "fr")).getOriginalResponse().getBody());
+		verify(delegate, times(2)).executeRequest(any());
+	}
+
+	@Test
+	public void shouldInvalidateEntryAfterUnsafeRequest()
+	{
+		when(delegate.executeRequest(any())).thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+
+		executor.executeRequest(get());
+		executor.executeRequest(HttpRequestWrapper.builder().method(HttpMethod.POST.name()).url(URL).body("form").build());
+		executor.executeRequest(get());
+
+		verify(delegate, times(3)).executeRequest(any());
+	}
+
+	@Test
+	public void shouldReturnIndependentResponsesOnCacheHits()
+	{
+		when(delegate.executeRequest(any())).thenReturn(response(HttpStatus.OK, "body", HttpHeaders.CACHE_CONTROL, "max-age=60"));
+
+		executor.executeRequest(get());
+		final HttpResponseWrapper first = executor.executeRequest(get());
+		first.getHeaders().set("X-Changed-By-Rule", "yes");
+		final HttpResponseWrapper second = executor.executeRequest(get());
+
+		assertNotSame(first, second);
+		assertNull(second.getHeaders().getFirst("X-Changed-By-Rule"));
+	}
+
+	private static HttpRequestWrapper get(final String... headers)
+	{
+		return HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url(URL).headers(headers(headers)).build();
+	}
+
+	private static HttpResponseWrapper response(final HttpStatus status, final String body, final String... headers)
+	{
+		final HttpHeaders responseHeaders = headers(headers);
+		return HttpResponseWrapper.builder()
+				.httpStatus(status)
+				.headers(responseHeaders)
+				.originalResponse(new ResponseEntity<>(body, responseHeaders, status))
+				.build();
+	}
+
+	private static HttpHeaders headers(final String... namesAndValues)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+		{
+			headers.put(namesAndValues[i], List.of(namesAndValues[i + 1]));
+		}
+		return headers;
+	}
+
+	private static class MutableClock extends Clock
+	{
+		private long millis = 1_600_000_000_000L;
+
+		void advance(final long duration)
+		{
+			millis += duration;
+		}
+
+		@Override
+		public long millis()
+		{
+			return millis;
+		}
+
+		@Override
+		public Instant instant()
+		{
+			return Instant.ofEpochMilli(millis);
+		}
+
+		@Override
+		public ZoneId getZone()
+		{
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(final ZoneId zone)
+		{
+			return this;
+		}
+	}
+}
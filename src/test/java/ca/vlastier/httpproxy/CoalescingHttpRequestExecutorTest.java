@@ -0,0 +1,230 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class CoalescingHttpRequestExecutorTest
+{
+	private static final String URL = "https://example.com/page";
+
+	@Mock
+	private AsyncHttpRequestExecutor delegate;
+
+	private CoalescingHttpRequestExecutor executor;
+
+	@BeforeEach
+	public void setup()
+	{
+		executor = new CoalescingHttpRequestExecutor(delegate);
+	}
+
+	@Test
+	public void shouldShareOneUpstreamCallBetweenConcurrentIdenticalRequests()
+	{
+		final CompletableFuture<HttpResponseWrapper> upstream = new CompletableFuture<>();
+		when(delegate.executeRequestAsync(any())).thenReturn(upstream);
+
+		final CompletableFuture<HttpResponseWrapper> first = executor.executeRequestAsync(get("text/html")).toCompletableFuture();
+		final CompletableFuture<HttpResponseWrapper> second = executor.executeRequestAsync(get("text/html")).toCompletableFuture();
+		upstream.complete(response(null));
+
+		verify(delegate).executeRequestAsync(any());
+		final HttpResponseWrapper firstResponse = first.join();
+		final HttpResponseWrapper secondResponse = second.join();
+		assertNotSame(firstResponse, secondResponse);
+		assertSame(firstResponse.getRawBody(), secondResponse.getRawBody());
+
+		firstResponse.getHeaders().set("X-Rule", "applied");
+		firstResponse.setHttpStatus(HttpStatus.NOT_FOUND);
+		assertNull(secondResponse.getHeaders().get("X-Rule"));
+		assertEquals(HttpStatus.OK, secondResponse.getHttpStatus());
+		assertEquals("<p>page</p>", secondResponse.getOriginalResponse().getBody());
+	}
+
+	@Test
+	public void shouldStartNewCallOnceResponseIsShared()
+	{
+		when(delegate.executeRequestAsync(any())).thenReturn(CompletableFuture.completedFuture(response(null)));
+
+		executor.executeRequestAsync(get("text/html")).toCompletableFuture().join();
+		executor.executeRequestAsync(get("text/html")).toCompletableFuture().join();
+
+		verify(delegate, times(2)).executeRequestAsync(any());
+	}
+
+	@Test
+	public void shouldNotCoalesceRequestsWithDifferentKeyHeaders()
+	{
+		when(delegate.executeRequestAsync(any())).thenReturn(new CompletableFuture<>());
+
+		executor.executeRequestAsync(get("text/html"));
+		executor.executeRequestAsync(get("application/json"));
+
+		verify(delegate, times(2)).executeRequestAsync(any());
+	}
+
+	@Test
+	public void shouldExecuteOwnRequestWhenVaryingHeaderDiffers()
+	{
+		final CompletableFuture<HttpResponseWrapper> upstream = new CompletableFuture<>();
+		when(delegate.executeRequestAsync(any())).thenReturn(upstream).thenReturn(CompletableFuture.completedFuture(response(null)));
+
+		executor.executeRequestAsync(get("text/html", "Mozilla"));
+		final CompletableFuture<HttpResponseWrapper> other = executor.executeRequestAsync(get("text/html", "curl")).toCompletableFuture();
+		upstream.complete(response(HttpHeaders.USER_AGENT));
+
+		other.join();
+		verify(delegate, times(2)).executeRequestAsync(any());
+	}
+
+	@Test
+	public void shouldFailWaitingRequestsWhenSharedCallFails()
+	{
+		final CompletableFuture<HttpResponseWrapper> upstream = new CompletableFuture<>();
+		when(delegate.executeRequestAsync(any())).thenReturn(upstream);
+
+		executor.executeRequestAsync(get("text/html"));
+		final CompletableFuture<HttpResponseWrapper> waiting = executor.executeRequestAsync(get("text/html")).toCompletableFuture();
+		upstream.completeExceptionally(new IllegalStateException("connection reset"));
+
+		final CompletionException error = assertThrows(CompletionException.class, waiting::join);
+		assertEquals("connection reset", error.getCause().getMessage());
+		verify(delegate).executeRequestAsync(any());
+	}
+
+	@Test
+	public void shouldNotShareResponsesMeantForOneClient()
+	{
+		assertNotShared(HttpHeaders.SET_COOKIE, "session=1234");
+		assertNotShared(HttpHeaders.CACHE_CONTROL, "private, max-age=60");
+		assertNotShared(HttpHeaders.CACHE_CONTROL, "no-store");
+	}
+
+	private void assertNotShared(final String header, final String value)
+	{
+		reset(delegate);
+		final CompletableFuture<HttpResponseWrapper> upstream = new CompletableFuture<>();
+		final HttpResponseWrapper ownResponse = response(null);
+		when(delegate.executeRequestAsync(any())).thenReturn(upstream).thenReturn(CompletableFuture.completedFuture(ownResponse));
+
+		executor.executeRequestAsync(get("text/html"));
+		final CompletableFuture<HttpResponseWrapper> waiting = executor.executeRequestAsync(get("text/html")).toCompletableFuture();
+		final HttpResponseWrapper personalResponse = response(null);
+		personalResponse.getHeaders().set(header, value);
+		upstream.complete(personalResponse);
+
+		assertSame(ownResponse, waiting.join());
+		verify(delegate, times(2)).executeRequestAsync(any());
+	}
+
+	@Test
+	public void shouldNotKeepCallInFlightWhenDelegateThrowsError()
+	{
+		when(delegate.executeRequest(any())).thenThrow(new StackOverflowError()).thenReturn(response(null));
+
+		assertThrows(StackOverflowError.class, () -> executor.executeRequest(get("text/html")));
+
+		final HttpResponseWrapper response = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> executor.executeRequest(get("text/html")));
+		assertEquals(HttpStatus.OK, response.getHttpStatus());
+	}
+
+	@Test
+	public void shouldNotCoalesceRequestsWithBody()
+	{
+		when(delegate.executeRequest(any())).thenReturn(response(null));
+		final HttpRequestWrapper post = HttpRequestWrapper.builder().method(HttpMethod.POST.name()).url(URL).body("{}").build();
+
+		executor.executeRequest(post);
+		executor.executeRequest(post);
+
+		verify(delegate, times(2)).executeRequest(any());
+	}
+
+	@Test
+	public void shouldShareBlockingCallBetweenThreads() throws Exception
+	{
+		final CountDownLatch upstreamCalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(delegate.executeRequest(any())).thenAnswer(invocation -> {
+			upstreamCalled.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return response(null);
+		});
+
+		final ExecutorService threads = Executors.newFixedThreadPool(2);
+		try
+		{
+			final Future<HttpResponseWrapper> first = threads.submit(() -> executor.executeRequest(get("text/html")));
+			upstreamCalled.await(5, TimeUnit.SECONDS);
+			final Future<HttpResponseWrapper> second = threads.submit(() -> executor.executeRequest(get("text/html")));
+			// gives the second request time to join the call in flight
+			Thread.sleep(100);
+			release.countDown();
+
+			assertEquals(HttpStatus.OK, first.get(5, TimeUnit.SECONDS).getHttpStatus());
+			assertEquals(HttpStatus.OK, second.get(5, TimeUnit.SECONDS).getHttpStatus());
+			verify(delegate).executeRequest(any());
+		}
+		finally
+		{
+			threads.shutdownNow();
+		}
+	}
+
+	private static HttpRequestWrapper get(final String accept)
+	{
+		return get(accept, "Mozilla");
+	}
+
+	private static HttpRequestWrapper get(final String accept, final String userAgent)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.ACCEPT, accept);
+		headers.set(HttpHeaders.USER_AGENT, userAgent);
+		return HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url(URL).headers(headers).build();
+	}
+
+	private static HttpResponseWrapper response(final String vary)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+		if (vary != null)
+		{
+			headers.set(HttpHeaders.VARY, vary);
+		}
+		return HttpResponseWrapper.builder()
+				.headers(headers)
+				.httpStatus(HttpStatus.OK)
+				.rawBody(RawBody.of("<p>page</p>".getBytes(StandardCharsets.UTF_8), headers))
+				.build();
+	}
+}
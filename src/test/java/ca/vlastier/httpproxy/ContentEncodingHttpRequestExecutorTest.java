@@ -0,0 +1,150 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class ContentEncodingHttpRequestExecutorTest
+{
+	private static final String HTML = "<html><head></head><body><h1>caf\u00e9</h1><p>text</p></body></html>";
+
+	@Mock
+	private HttpRequestExecutor delegate;
+
+	private ContentEncodingHttpRequestExecutor executor;
+
+	@BeforeEach
+	public void setup()
+	{
+		executor = new ContentEncodingHttpRequestExecutor(delegate, Deflater.BEST_SPEED);
+	}
+
+	@Test
+	public void shouldOnlyAcceptDecodableCodingsUpstream()
+	{
+		when(delegate.executeRequest(any())).thenReturn(HttpResponseWrapper.builder().build());
+
+		assertEquals("gzip;q=0.8, deflate", acceptEncoding(HttpRequestWrapper.builder().headers(headers("br, gzip;q=0.8, deflate")).build()));
+		assertEquals("identity", acceptEncoding(HttpRequestWrapper.builder().headers(headers("br")).build()));
+		assertEquals("gzip", acceptEncoding(HttpRequestWrapper.builder().headers(headers("gzip")).build()));
+		assertNull(acceptEncoding(HttpRequestWrapper.builder().build()));
+	}
+
+	@Test
+	public void shouldForwardStreamedRequestsUnchanged()
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().headers(headers("br, gzip")).build();
+		final HttpResponseWrapper response = HttpResponseWrapper.builder().build();
+		when(delegate.executeRequestStreaming(request)).thenReturn(response);
+
+		assertSame(response, executor.executeRequestStreaming(request));
+	}
+
+	@Test
+	public void shouldWriteUntransformedBodyStillCompressed()
+	{
+		final byte[] compressedBody = ContentCoding.GZIP.encode(HTML.getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+		when(delegate.executeRequest(any())).thenReturn(compressedResponse(compressedBody));
+		final HttpProxyService service = HttpProxyService.configure(executor)
+				.hasStatus(HttpStatus.NOT_FOUND.value())
+				.changeAllHtmlElements("h1", heading -> heading.text("changed"))
+				.build();
+
+		final ResponseEntity<Object> response = service.surf(request()).buildResponse();
+
+		assertSame(compressedBody, response.getBody());
+		assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+	}
+
+	@Test
+	public void shouldDecompressBodyTransformedByRulesAndCompressItAgain()
+	{
+		final byte[] compressedBody = ContentCoding.GZIP.encode(HTML.getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+		when(delegate.executeRequest(any())).thenReturn(compressedResponse(compressedBody));
+		final HttpProxyService service = HttpProxyService.configure(executor)
+				.anyResponse()
+				.changeAllHtmlElements("h1", heading -> heading.text(heading.text() + "!"))
+				.build();
+
+		final ResponseEntity<Object> response = service.surf(request()).buildResponse();
+
+		final String body = new String(ContentCoding.GZIP.decode((byte[]) response.getBody()), StandardCharsets.UTF_8);
+		assertTrue(body.contains("<h1>caf\u00e9!</h1>"), body);
+		assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH));
+	}
+
+	@Test
+	public void shouldWriteTransformedBodyCompressedAgainToStream() throws IOException
+	{
+		final byte[] compressedBody = ContentCoding.GZIP.encode(HTML.getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+		when(delegate.executeRequest(any())).thenReturn(compressedResponse(compressedBody));
+		final HttpProxyService service = HttpProxyService.configure(executor)
+				.anyResponse()
+				.changeAllHtmlElements("body > h1", heading -> heading.text(heading.text() + "!"))
+				.build();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.surf(request()).writeTo(out);
+
+		final String body = new String(ContentCoding.GZIP.decode(out.toByteArray()), StandardCharsets.UTF_8);
+		assertTrue(body.contains("<h1>caf\u00e9!</h1>"), body);
+	}
+
+	private String acceptEncoding(final HttpRequestWrapper request)
+	{
+		executor.executeRequest(request);
+
+		final ArgumentCaptor<HttpRequestWrapper> upstreamRequest = ArgumentCaptor.forClass(HttpRequestWrapper.class);
+		verify(delegate).executeRequest(upstreamRequest.capture());
+		clearInvocations(delegate);
+		return upstreamRequest.getValue().getHeaders().getFirst(HttpHeaders.ACCEPT_ENCODING);
+	}
+
+	private static HttpRequestWrapper request()
+	{
+		return HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("https://example.com/").headers(headers("gzip, br")).build();
+	}
+
+	private static HttpResponseWrapper compressedResponse(final byte[] compressedBody)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+		headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+		headers.setContentLength(compressedBody.length);
+		return HttpResponseWrapper.builder()
+				.headers(headers)
+				.httpStatus(HttpStatus.OK)
+				.rawBody(RawBody.of(compressedBody, headers))
+				.build();
+	}
+
+	private static HttpHeaders headers(final String acceptEncoding)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+		return headers;
+	}
+}
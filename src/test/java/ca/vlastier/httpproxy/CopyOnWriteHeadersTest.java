@@ -0,0 +1,106 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CopyOnWriteHeadersTest
+{
+	@Test
+	public void shouldReadThroughReadOnlyUpstreamHeaders()
+	{
+		final HttpHeaders headers = CopyOnWriteHeaders.wrap(HttpHeaders.readOnlyHttpHeaders(upstream()));
+
+		assertEquals(MediaType.TEXT_HTML, headers.getContentType());
+		assertEquals(List.of("a=1", "b=2"), headers.get("set-cookie"));
+		assertTrue(headers.containsKey("CONTENT-TYPE"));
+		assertNull(headers.get("X-Missing"));
+		assertEquals(2, headers.size());
+		assertEquals(upstream(), headers);
+		assertEquals(headers, upstream());
+	}
+
+	@Test
+	public void shouldCopyUpstreamHeadersWhenChanged()
+	{
+		final HttpHeaders upstream = upstream();
+		final HttpHeaders headers = CopyOnWriteHeaders.wrap(upstream);
+
+		headers.add(HttpHeaders.SET_COOKIE, "c=3");
+		headers.set("X-Added", "yes");
+		headers.remove(HttpHeaders.CONTENT_TYPE);
+		assertNull(headers.remove("X-Missing"));
+
+		assertEquals(List.of("a=1", "b=2", "c=3"), headers.get(HttpHeaders.SET_COOKIE));
+		assertEquals("yes", headers.getFirst("x-added"));
+		assertFalse(headers.containsKey(HttpHeaders.CONTENT_TYPE));
+		assertEquals(upstream(), upstream);
+	}
+
+	@Test
+	public void shouldCopyHeadersWithTheirValueLists()
+	{
+		final HttpHeaders upstream = upstream();
+		final HttpHeaders copy = CopyOnWriteHeaders.copyOf(upstream);
+
+		copy.get(HttpHeaders.SET_COOKIE).add("c=3");
+		upstream.add(HttpHeaders.SET_COOKIE, "d=4");
+
+		assertEquals(List.of("a=1", "b=2", "c=3"), copy.get("set-cookie"));
+		assertEquals(List.of("a=1", "b=2", "d=4"), upstream.get(HttpHeaders.SET_COOKIE));
+		assertEquals(MediaType.TEXT_HTML, copy.getContentType());
+	}
+
+	@Test
+	public void shouldCopyUpstreamHeadersBeforeChangesThroughViews()
+	{
+		final HttpHeaders upstream = upstream();
+		final HttpHeaders headers = CopyOnWriteHeaders.wrap(upstream);
+
+		final Iterator<Map.Entry<String, List<String>>> entries = headers.entrySet().iterator();
+		entries.next().setValue(List.of("text/plain"));
+		entries.next();
+		entries.remove();
+
+		assertEquals(MediaType.TEXT_PLAIN, headers.getContentType());
+		assertFalse(headers.containsKey(HttpHeaders.SET_COOKIE));
+		assertEquals(upstream(), upstream);
+
+		final HttpHeaders other = CopyOnWriteHeaders.wrap(upstream);
+		assertTrue(other.keySet().removeIf(HttpHeaders.CONTENT_TYPE::equals));
+		assertTrue(other.values().remove(List.of("a=1", "b=2")));
+		assertTrue(other.isEmpty());
+		assertEquals(upstream(), upstream);
+	}
+
+	@Test
+	public void shouldClearWithoutCopying()
+	{
+		final HttpHeaders upstream = upstream();
+		final HttpHeaders headers = CopyOnWriteHeaders.wrap(upstream);
+
+		headers.clear();
+		headers.add("X-Added", "yes");
+
+		assertEquals(List.of("X-Added"), List.copyOf(headers.keySet()));
+		assertEquals(upstream(), upstream);
+	}
+
+	private static HttpHeaders upstream()
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.TEXT_HTML);
+		headers.add(HttpHeaders.SET_COOKIE, "a=1");
+		headers.add(HttpHeaders.SET_COOKIE, "b=2");
+		return headers;
+	}
+}
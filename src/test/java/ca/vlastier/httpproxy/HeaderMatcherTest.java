@@ -0,0 +1,64 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeaderMatcherTest
+{
+	@Test
+	public void shouldMatchExactValueIgnoringCase()
+	{
+		final HeaderMatcher matcher = HeaderMatcher.exact("text/html");
+
+		assertTrue(matcher.matches("Text/HTML"));
+		assertFalse(matcher.matches("text/html; charset=UTF-8"));
+		assertFalse(matcher.matches(null));
+	}
+
+	@Test
+	public void shouldMatchPrefixIgnoringCase()
+	{
+		final HeaderMatcher matcher = HeaderMatcher.prefix("Bearer ");
+
+		assertTrue(matcher.matches("bearer abc"));
+		assertFalse(matcher.matches("Basic abc"));
+		assertFalse(matcher.matches("Bear"));
+	}
+
+	@Test
+	public void shouldMatchContainedValueIgnoringCase()
+	{
+		final HeaderMatcher matcher = HeaderMatcher.contains("Firefox");
+
+		assertTrue(matcher.matches("Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 FIREFOX/119.0"));
+		assertTrue(matcher.matches("firefox"));
+		assertFalse(matcher.matches("Mozilla/5.0 Chrome/119.0"));
+		assertFalse(matcher.matches("Firefo"));
+		assertTrue(HeaderMatcher.contains("\u00c9T\u00c9").matches("r\u00e9sum\u00e9 d'\u00e9t\u00e9"));
+		assertTrue(HeaderMatcher.contains("").matches(""));
+	}
+
+	@Test
+	public void shouldFindRegexIgnoringCase()
+	{
+		assertTrue(HeaderMatcher.regex("^max-age=\\d+$").matches("MAX-AGE=60"));
+		assertFalse(HeaderMatcher.regex("^max-age=\\d+$").matches("no-store, max-age=60"));
+		assertFalse(HeaderMatcher.regex(Pattern.compile("gzip")).matches("GZIP"));
+	}
+
+	@Test
+	public void shouldMatchAnyValue()
+	{
+		final HeaderMatcher matcher = HeaderMatcher.exact("gzip");
+
+		assertTrue(matcher.matchesAny(Arrays.asList(null, "br", "GZIP")));
+		assertFalse(matcher.matchesAny(List.of("br")));
+		assertFalse(matcher.matchesAny(null));
+	}
+}
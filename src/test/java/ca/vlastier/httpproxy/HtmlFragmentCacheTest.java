@@ -0,0 +1,69 @@
+package ca.vlastier.httpproxy;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HtmlFragmentCacheTest
+{
+	@TempDir
+	Path directory;
+
+	private final HtmlFragmentCache cache = new HtmlFragmentCache(0);
+
+	@Test
+	public void shouldParseSameHtmlOnce()
+	{
+		final List<Node> fragment = cache.fragment("div", "<b>banner</b>");
+
+		assertSame(fragment, cache.fragment("div", "<b>banner</b>"));
+		assertNotSame(fragment, cache.fragment("span", "<b>banner</b>"));
+		assertEquals("<b>banner</b>", fragment.get(0).outerHtml());
+	}
+
+	@Test
+	public void shouldParseFileAgainOnlyWhenItChanges() throws IOException
+	{
+		final Path file = directory.resolve("banner.html");
+		Files.writeString(file, "<b>first</b>", StandardCharsets.UTF_8);
+		final List<Node> fragment = cache.fragment("div", file, StandardCharsets.UTF_8);
+
+		assertSame(fragment, cache.fragment("div", file, StandardCharsets.UTF_8));
+
+		Files.writeString(file, "<i>second</i>", StandardCharsets.UTF_8);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+		assertEquals("<i>second</i>", cache.fragment("div", file, StandardCharsets.UTF_8).get(0).outerHtml());
+	}
+
+	@Test
+	public void shouldFailWhenFileIsMissing()
+	{
+		assertThrows(UncheckedIOException.class, () -> cache.fragment("div", directory.resolve("missing.html"), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void shouldInstantiateIndependentCopiesOfTemplate()
+	{
+		final List<Node> template = cache.fragment("div", "<b>banner</b>");
+
+		final Element element = new Element("div").insertChildren(0, HtmlFragmentCache.instantiate(template));
+		element.child(0).text("changed");
+
+		assertEquals("<b>banner</b>", template.get(0).outerHtml());
+		assertEquals("<b>changed</b>", element.child(0).outerHtml());
+	}
+}
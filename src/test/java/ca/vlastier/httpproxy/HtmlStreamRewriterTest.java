@@ -0,0 +1,256 @@
+package ca.vlastier.httpproxy;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HtmlStreamRewriterTest
+{
+	private static final String HTML = "<!DOCTYPE html>\n<html><head><title>a <div> in title</title></head>\n<body>\n"
+			+ "<!-- <div>commented</div> -->\n"
+			+ "<div id='first'>first <div>nested</div></div>\n"
+			+ "<script>var s = '<div>';</script>\n"
+			+ "<div id=\"second\">second</div>\n"
+			+ "</body>\n</html>";
+
+	@Test
+	public void shouldChangeOnlyMatchedElementsAndCopyTheRest()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> div.id().equals("second"), div -> div.text("changed"), false, true));
+
+		final String result = rewriter.rewrite(HTML);
+
+		assertEquals(HTML.replace("<div id=\"second\">second</div>", "<div id=\"second\">changed</div>"), result);
+	}
+
+	@Test
+	public void shouldChangeNestedElements()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> div.attr("seen", "yes"), false, true));
+
+		final Document result = Parser.parse(rewriter.rewrite(HTML), "http://localhost");
+
+		assertEquals(3, result.select("div[seen=yes]").size());
+		assertEquals("a <div> in title", result.title());
+		assertTrue(result.select("script").html().contains("'<div>'"));
+	}
+
+	@Test
+	public void shouldChangeFirstElementOnly()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> div.attr("seen", "yes"), true, true));
+
+		final Document result = Parser.parse(rewriter.rewrite(HTML), "http://localhost");
+
+		assertEquals(1, result.select("div[seen=yes]").size());
+		assertEquals("first", result.select("div[seen=yes]").attr("id"));
+	}
+
+	@Test
+	public void shouldAppendBeforeBodyEndAndApplyLaterOperationsToAppendedElement()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.AppendToBody("myTag", "<span>appended</span>"));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("span", span -> true, span -> span.text("changed"), false, true));
+
+		final String result = rewriter.rewrite(HTML);
+
+		assertTrue(result.contains("<myTag><span>changed</span></myTag></body>"));
+	}
+
+	@Test
+	public void shouldReplayOperationsOnDocument()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.AppendToBody("myTag", "<span>appended</span>"));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("span", span -> true, span -> span.text("changed"), false, true));
+
+		final Document document = Parser.parse(HTML, "http://localhost");
+		rewriter.applyTo(document);
+
+		assertEquals("changed", document.select("myTag span").text());
+	}
+
+	@Test
+	public void shouldNotStreamSelectorsNeedingWholeDocument()
+	{
+		assertTrue(HtmlStreamRewriter.isStreamable("div"));
+		assertTrue(HtmlStreamRewriter.isStreamable("my-tag"));
+		assertFalse(HtmlStreamRewriter.isStreamable("p"));
+		assertFalse(HtmlStreamRewriter.isStreamable("body"));
+		assertFalse(HtmlStreamRewriter.isStreamable("div.class"));
+		assertFalse(HtmlStreamRewriter.isStreamable("div > span"));
+	}
+
+	@Test
+	public void shouldBuildTextOnlyElementsAsTheParserDoes()
+	{
+		final String html = "<body><div ID='a' class=x data-v=\"Tom &amp; Jerry\" id=b>caf&eacute; &lt;b&gt;</div>"
+				+ "<div data-empty title=\"plain\"></div></body>";
+		final List<Element> streamed = new ArrayList<>();
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, streamed::add, false, true));
+
+		rewriter.rewrite(html);
+
+		final Elements parsed = Parser.parse(html, "http://localhost").select("div");
+		assertEquals(parsed.size(), streamed.size());
+		for (int i = 0; i < parsed.size(); i++)
+		{
+			assertEquals(parsed.get(i).attributes().html(), streamed.get(i).attributes().html());
+			assertEquals(parsed.get(i).text(), streamed.get(i).text());
+		}
+		assertEquals("a", streamed.get(0).id());
+		assertEquals("Tom & Jerry", streamed.get(0).attr("data-v"));
+		assertEquals("caf\u00e9 <b>", streamed.get(0).text());
+	}
+
+	@Test
+	public void shouldParseElementsWithNestedMarkupOrRawText()
+	{
+		final String html = "<body><div>a <b>bold</b> word</div><textarea>x &amp; <b>y</b></textarea></body>";
+		final List<String> texts = new ArrayList<>();
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> texts.add(div.child(0).text()), false, true));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("textarea", textarea -> true, textarea -> texts.add(textarea.val()), false, true));
+
+		rewriter.rewrite(html);
+
+		assertEquals(List.of("bold", "x & <b>y</b>"), texts);
+	}
+
+	@Test
+	public void shouldChangeEachElementOnItsOwnAlthoughTheShellDocumentIsReused()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("span", span -> true, span -> span.text(span.text() + "!"), false, true));
+
+		final String result = rewriter.rewrite("<body><span>one</span><i>between</i><span>two <b>2</b></span><span>three</span></body>");
+
+		assertEquals("<body><span>one!</span><i>between</i><span>two 2!</span><span>three!</span></body>", result);
+	}
+
+	@Test
+	public void shouldStreamOnlyChangesAskedToBeStreamed()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> div.attr("seen", "yes"), false, true));
+		assertTrue(rewriter.isStreamable());
+
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> div.attr("seen", "yes"), false, false));
+		assertFalse(rewriter.isStreamable());
+	}
+
+	@Test
+	public void shouldApplyConsecutiveChangesInDeclaredOrderAfterSingleWalk()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div#first", div -> true, div -> div.addClass("marked"), true, false));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div.marked", div -> true, div -> div.attr("data-step", "2"), false, false));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div[data-step=2]", div -> true, div -> div.attr("data-step", "3"), false, false));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div#second", div -> true, div -> div.remove(), false, false));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> div.attr("data-seen", "true"), false, false));
+		assertFalse(rewriter.isStreamable());
+
+		final Document document = Parser.parse(HTML, "http://localhost");
+		rewriter.applyTo(document);
+
+		assertEquals("3", document.getElementById("first").attr("data-step"));
+		assertTrue(document.select("#second").isEmpty());
+		assertEquals(2, document.select("div[data-seen]").size());
+	}
+
+	@Test
+	public void shouldSkipElementsNoLongerMatchingWhenTheirChangeComes()
+	{
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div[id]", div -> true, div -> div.removeAttr("id"), false, false));
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div[id]", div -> true, div -> div.text("still has an id"), false, false));
+
+		final Document document = Parser.parse(HTML, "http://localhost");
+		rewriter.applyTo(document);
+
+		assertFalse(document.body().text().contains("still has an id"));
+	}
+
+	@Test
+	public void shouldLookUpChangesOfSeveralRulesWithSingleWalk()
+	{
+		final List<Element> visited = new ArrayList<>();
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		final int rules = 3;
+		for (int rule = 0; rule < rules; rule++)
+		{
+			rewriter.add(new HtmlStreamRewriter.ChangeElements(new Evaluator()
+			{
+				@Override
+				public boolean matches(final Element root, final Element element)
+				{
+					visited.add(element);
+					return false;
+				}
+			}, element -> true, element -> {
+			}, false), rule);
+		}
+
+		final Document document = Parser.parse(HTML, "http://localhost");
+		rewriter.applyTo(document);
+
+		// each element is matched against every selector before the walk goes on to the next one
+		final Elements elements = document.getAllElements();
+		assertEquals(elements.size() * rules, visited.size());
+		for (int i = 0; i < visited.size(); i++)
+		{
+			assertSame(elements.get(i / rules), visited.get(i));
+		}
+	}
+
+	@Test
+	public void shouldTellListenerAboutChangesOnBehalfOfTheirRules()
+	{
+		final List<Integer> applied = new ArrayList<>();
+		final List<Integer> failed = new ArrayList<>();
+		final HtmlStreamRewriter.OperationListener listener = new HtmlStreamRewriter.OperationListener()
+		{
+			@Override
+			public void applied(final int owner, final long durationNanos)
+			{
+				applied.add(owner);
+			}
+
+			@Override
+			public void failed(final int owner, final RuntimeException e)
+			{
+				failed.add(owner);
+			}
+		};
+		final HtmlStreamRewriter rewriter = new HtmlStreamRewriter("http://localhost");
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div#first", div -> true, div -> div.addClass("marked"), false, false), 4);
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div#second", div -> true, div -> div.addClass("marked"), false, false), 7);
+		rewriter.add(new HtmlStreamRewriter.ChangeElements("div", div -> true, div -> {
+			throw new IllegalStateException("failing action");
+		}, false, false), 9);
+
+		final Document document = Parser.parse(HTML, "http://localhost");
+		assertThrows(IllegalStateException.class, () -> rewriter.applyTo(document, listener));
+
+		assertEquals(List.of(4, 7, 9), applied);
+		assertEquals(List.of(9), failed);
+		assertEquals(2, document.select("div.marked").size());
+	}
+}
@@ -0,0 +1,153 @@
+package ca.vlastier.httpproxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class HttpClientHttpRequestExecutorImplTest
+{
+	private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+	private HttpServer server;
+
+	@BeforeEach
+	public void setup() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(serverThreads);
+		server.start();
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	@Test
+	public void shouldBufferTextBodyDecodedWithCharsetOfContentType()
+	{
+		server.createContext("/text", exchange -> respond(exchange, "text/html; charset=ISO-8859-1", "<p>caf\u00e9</p>".getBytes(StandardCharsets.ISO_8859_1)));
+		final HttpClientHttpRequestExecutorImpl executor = HttpClientHttpRequestExecutorImpl.builder().build();
+
+		final HttpResponseWrapper response = executor.executeRequest(request("/text"));
+
+		assertEquals(HttpStatus.OK, response.getHttpStatus());
+		assertArrayEquals("<p>caf\u00e9</p>".getBytes(StandardCharsets.ISO_8859_1), (byte[]) response.buildResponse().getBody());
+		assertEquals("<p>caf\u00e9</p>", response.getOriginalResponse().getBody());
+		assertEquals("text/html; charset=ISO-8859-1", response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+		assertNull(response.getBodyStream());
+	}
+
+	@Test
+	public void shouldNotDecodeBinaryBody() throws IOException
+	{
+		final byte[] image = { (byte) 0x89, 'P', 'N', 'G', (byte) 0xff, 0 };
+		server.createContext("/image", exchange -> respond(exchange, "image/png", image));
+		final HttpClientHttpRequestExecutorImpl executor = HttpClientHttpRequestExecutorImpl.builder().build();
+
+		final HttpResponseWrapper response = executor.executeRequest(request("/image"));
+
+		assertNull(response.getOriginalResponse());
+		try (final InputStream body = response.getBodyStream())
+		{
+			assertArrayEquals(image, body.readAllBytes());
+		}
+	}
+
+	@Test
+	public void shouldLimitConcurrentRequestsPerHost() throws InterruptedException
+	{
+		final AtomicInteger inProgress = new AtomicInteger();
+		final AtomicInteger maxInProgress = new AtomicInteger();
+		final CountDownLatch firstRequestReceived = new CountDownLatch(1);
+		final CountDownLatch serverResponds = new CountDownLatch(1);
+		server.createContext("/slow", exchange -> {
+			maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+			firstRequestReceived.countDown();
+			try
+			{
+				serverResponds.await();
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			inProgress.decrementAndGet();
+			respond(exchange, "text/plain", "done".getBytes(StandardCharsets.UTF_8));
+		});
+		final HttpClientHttpRequestExecutorImpl executor = HttpClientHttpRequestExecutorImpl.builder().maxConcurrentRequestsPerHost(1).build();
+
+		final List<CompletableFuture<HttpResponseWrapper>> responses = List.of(executor.executeRequestAsync(request("/slow")).toCompletableFuture(),
+				executor.executeRequestAsync(request("/slow")).toCompletableFuture());
+		firstRequestReceived.await();
+		Thread.sleep(100);
+		serverResponds.countDown();
+
+		responses.forEach(response -> assertEquals("done", response.join().getOriginalResponse().getBody()));
+		assertEquals(1, maxInProgress.get());
+		assertEquals(0, executor.limitedHosts());
+	}
+
+	@Test
+	public void shouldForgetHostOnceItsStreamedBodiesAreClosed() throws IOException
+	{
+		server.createContext("/image", exchange -> respond(exchange, "image/png", new byte[] { (byte) 0x89, 'P', 'N', 'G' }));
+		final HttpClientHttpRequestExecutorImpl executor = HttpClientHttpRequestExecutorImpl.builder().maxConcurrentRequestsPerHost(2).build();
+
+		final HttpResponseWrapper first = executor.executeRequest(request("/image"));
+		final HttpResponseWrapper second = executor.executeRequest(request("/image"));
+		assertEquals(1, executor.limitedHosts());
+
+		first.getBodyStream().close();
+		assertEquals(1, executor.limitedHosts());
+		second.getBodyStream().close();
+		assertEquals(0, executor.limitedHosts());
+
+		try (final InputStream body = executor.executeRequest(request("/image")).getBodyStream())
+		{
+			assertEquals(1, executor.limitedHosts());
+			assertEquals(4, body.readAllBytes().length);
+		}
+		assertEquals(0, executor.limitedHosts());
+	}
+
+	private HttpRequestWrapper request(final String path)
+	{
+		return HttpRequestWrapper.builder()
+				.method(HttpMethod.GET.name())
+				.url("http://localhost:" + server.getAddress().getPort() + path)
+				.build();
+	}
+
+	private static void respond(final HttpExchange exchange, final String contentType, final byte[] body) throws IOException
+	{
+		exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, contentType);
+		exchange.sendResponseHeaders(200, body.length);
+		try (final OutputStream responseBody = exchange.getResponseBody())
+		{
+			responseBody.write(body);
+		}
+	}
+}
@@ -1,30 +1,53 @@
 package ca.vlastier.httpproxy;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.parser.Parser;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.http.HttpHeaders;
-
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class HttpProxyServiceConfigurationResponseTransformationTest extends HttpProxyServiceConfiguratorImplTest
 {
-	private final FileReader fileReader = new FileReader();
+	private final TemplateStore templates = new TemplateStore();
+
+	@AfterEach
+	public void tearDown()
+	{
+		templates.close();
+	}
 
 	@Test
 	public void shouldAppendHtmlElementToBody()
 	{
-		final String innerHtmlOfElementToAppend = fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-element-to-append.html");
+		final String innerHtmlOfElementToAppend = templates.get("src/test/resources/http-proxy-test-files/html-element-to-append.html").getText();
 		//@formatter: off
 		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
 				.anyResponse()
@@ -34,7 +57,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -50,10 +73,30 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 				myTags.get(0).child(0).toString());
 	}
 
+	@Test
+	public void shouldAppendHtmlElementReadFromFileToBody(@TempDir final Path directory) throws IOException
+	{
+		final Path file = directory.resolve("banner.html");
+		Files.writeString(file, "<b>banner</b>", StandardCharsets.UTF_8);
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.appendHtmlElementToBody("myTag", file)
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenAnswer(invocation -> HttpResponseWrapper.builder()
+				.domBody(Parser.parse("<html><body><p>page</p></body></html>", "http://localhost"))
+				.build());
+
+		final Element first = webSurfer.surf(defaultRequest).getDomBody().selectFirst("myTag");
+		first.child(0).text("changed");
+		final Element second = webSurfer.surf(defaultRequest).getDomBody().selectFirst("myTag");
+
+		assertEquals("<b>banner</b>", second.html());
+	}
+
 	@Test
 	public void shouldNotFailWhenAppendingHtmlElementToNullBody()
 	{
-		final String innerHtmlOfElementToAppend = fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-element-to-append.html");
+		final String innerHtmlOfElementToAppend = templates.get("src/test/resources/http-proxy-test-files/html-element-to-append.html").getText();
 		//@formatter: off
 		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
 				.anyResponse()
@@ -70,7 +113,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 	@Test
 	public void shouldNotFailOnAppendingMalformedHtmlElementToBody()
 	{
-		final String innerHtmlOfElementToAppend = fileReader.readFileAsString("src/test/resources/http-proxy-test-files/malformed-html-content.html");
+		final String innerHtmlOfElementToAppend = templates.get("src/test/resources/http-proxy-test-files/malformed-html-content.html").getText();
 		//@formatter: off
 		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
 				.anyResponse()
@@ -80,7 +123,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -110,7 +153,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build());
 
@@ -222,7 +265,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -252,7 +295,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -282,7 +325,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -310,7 +353,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -356,7 +399,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 				.build();
 		//@formatter: on
 
-		final String htmlResponseExample = fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html");
+		final String htmlResponseExample = templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText();
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
 				.domBody(Parser.parse(htmlResponseExample, "http://localhost"))
 				.build();
@@ -395,7 +438,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 				.build();
 		//@formatter: on
 
-		final String htmlResponseExample = fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html");
+		final String htmlResponseExample = templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText();
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
 				.domBody(Parser.parse(htmlResponseExample, "http://localhost"))
 				.build();
@@ -418,7 +461,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -447,7 +490,7 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		//@formatter: on
 
 		final HttpResponseWrapper response = HttpResponseWrapper.builder()
-				.domBody(Parser.parse(fileReader.readFileAsString("src/test/resources/http-proxy-test-files/html-response-example.html"),
+				.domBody(Parser.parse(templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText(),
 						"http://localhost"))
 				.build();
 		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
@@ -463,4 +506,326 @@ public class HttpProxyServiceConfigurationResponseTransformationTest extends Htt
 		assertEquals("new text", modifiedElements.get(1).text());
 		assertEquals("new text", modifiedElements.get(2).text());
 	}
+
+	@Test
+	public void shouldRewriteHtmlOfNotParsedBodyWhenBuildingResponse()
+	{
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.changeAllHtmlElementsStreamed("h1", heading -> heading.text("new heading"))
+				.appendHtmlElementToBody("myTag", () -> "<b>appended</b>")
+
+				.build();
+		//@formatter: on
+
+		final String htmlResponseExample = templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText();
+		final HttpResponseWrapper response = HttpResponseWrapper.builder()
+				.httpStatus(HttpStatus.OK)
+				.originalResponse(ResponseEntity.ok(htmlResponseExample))
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
+
+		final HttpResponseWrapper resultResponse = webSurfer.surf(defaultRequest);
+
+		final String body = (String) resultResponse.buildResponse().getBody();
+		assertEquals(htmlResponseExample.replace("<h1>This is a Heading</h1>", "<h1>new heading</h1>")
+				.replace("</body>", "<myTag><b>appended</b></myTag></body>"), body);
+
+		assertEquals("new heading", resultResponse.getDomBody().select("h1").text());
+		assertEquals("appended", resultResponse.getDomBody().select("myTag").text());
+	}
+
+	@Test
+	public void shouldLetFiltersLookAtTheDocumentAroundElementsWhenNotStreamed()
+	{
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.changeAllHtmlElements("a", link -> link.parent().tagName().equals("nav"), link -> link.attr("data-nav", "1"))
+
+				.build();
+		//@formatter: on
+
+		final HttpResponseWrapper response = HttpResponseWrapper.builder()
+				.httpStatus(HttpStatus.OK)
+				.originalResponse(ResponseEntity.ok("<html><body><nav><a href='/home'>home</a></nav><a href='/other'>other</a></body></html>"))
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
+
+		final HttpResponseWrapper resultResponse = webSurfer.surf(defaultRequest);
+
+		final Document body = Parser.parse((String) resultResponse.buildResponse().getBody(), "");
+		assertEquals("1", body.selectFirst("nav > a").attr("data-nav"));
+		assertFalse(body.select("body > a").hasAttr("data-nav"));
+	}
+
+	@Test
+	public void shouldApplyChangesWhichAreNotStreamedOnceAllRulesAreApplied()
+	{
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.changeAllHtmlElements("a", link -> true, link -> {
+					throw new IllegalStateException("failing action");
+				})
+				.customResponseTransformation(response -> assertFalse(response.isDomBodyParsed()))
+
+				.build();
+		//@formatter: on
+
+		final HttpResponseWrapper response = HttpResponseWrapper.builder()
+				.httpStatus(HttpStatus.OK)
+				.originalResponse(ResponseEntity.ok("<html><body><a href='/home'>home</a></body></html>"))
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(response);
+
+		final IllegalStateException exception = assertThrows(IllegalStateException.class, () -> webSurfer.surf(defaultRequest));
+		assertEquals("failing action", exception.getMessage());
+		assertTrue(response.isDomBodyParsed());
+	}
+
+	@Test
+	public void shouldServeTransformedResponseFromCache()
+	{
+		final AtomicInteger transformations = new AtomicInteger();
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.cacheTransformedResponses(1024 * 1024)
+				.ruleCacheable()
+				.anyResponse()
+				.changeAllHtmlElements("h1", heading -> heading.text("heading " + transformations.incrementAndGet()))
+				.setResponseHeader("X-Rewritten", "yes")
+				.removeHeaderFromResponse("X-Upstream")
+
+				.build();
+		//@formatter: on
+
+		final String htmlResponseExample = templates.get("src/test/resources/http-proxy-test-files/html-response-example.html").getText();
+		when(httpRequestExecutor.executeRequest(defaultRequest))
+				.thenReturn(htmlResponse(htmlResponseExample, "X-Upstream", "first"))
+				.thenReturn(htmlResponse(htmlResponseExample, "X-Upstream", "second", HttpHeaders.DATE, "Thu, 01 Oct 2020 10:00:00 GMT"));
+
+		final HttpResponseWrapper first = webSurfer.surf(defaultRequest);
+		final HttpResponseWrapper second = webSurfer.surf(defaultRequest);
+
+		assertEquals(1, transformations.get());
+		assertEquals(first.buildResponse().getBody(), second.buildResponse().getBody());
+		assertEquals("heading 1", Parser.parse((String) second.buildResponse().getBody(), "").select("h1").text());
+		assertEquals("yes", second.getHeaders().getFirst("X-Rewritten"));
+		assertFalse(second.getHeaders().containsKey("X-Upstream"));
+		assertEquals("Thu, 01 Oct 2020 10:00:00 GMT", second.getHeaders().getFirst(HttpHeaders.DATE));
+	}
+
+	@Test
+	public void shouldTransformAgainWhenUpstreamBodyChangesOrRuleIsNotCacheable()
+	{
+		final AtomicInteger cacheableTransformations = new AtomicInteger();
+		final AtomicInteger notCacheableTransformations = new AtomicInteger();
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.cacheTransformedResponses(1024 * 1024)
+				.ruleCacheable()
+				.anyResponse()
+				.changeAllHtmlElements("h1", heading -> cacheableTransformations.incrementAndGet())
+
+				.ruleNotCacheable()
+				.hasStatus(HttpStatus.CREATED.value())
+				.changeAllHtmlElements("h1", heading -> notCacheableTransformations.incrementAndGet())
+
+				.build();
+		//@formatter: on
+
+		when(httpRequestExecutor.executeRequest(defaultRequest))
+				.thenReturn(htmlResponse("<h1>first</h1>"))
+				.thenReturn(htmlResponse("<h1>first</h1>"))
+				.thenReturn(htmlResponse("<h1>changed</h1>"));
+		webSurfer.surf(defaultRequest);
+		webSurfer.surf(defaultRequest);
+		webSurfer.surf(defaultRequest);
+		assertEquals(2, cacheableTransformations.get());
+
+		final HttpResponseWrapper created = htmlResponse("<h1>created</h1>");
+		created.setHttpStatus(HttpStatus.CREATED);
+		final HttpResponseWrapper createdAgain = htmlResponse("<h1>created</h1>");
+		createdAgain.setHttpStatus(HttpStatus.CREATED);
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(created).thenReturn(createdAgain);
+		webSurfer.surf(defaultRequest).buildResponse();
+		webSurfer.surf(defaultRequest).buildResponse();
+		assertEquals(2, notCacheableTransformations.get());
+	}
+
+	@Test
+	public void shouldNotCacheRulesRunningLambdasUnlessDeclaredCacheable()
+	{
+		final AtomicInteger appended = new AtomicInteger();
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.cacheTransformedResponses(1024 * 1024)
+				.anyResponse()
+				.appendHtmlElementToBody("div", () -> "visitor " + appended.incrementAndGet())
+
+				.build();
+		//@formatter: on
+
+		when(httpRequestExecutor.executeRequest(defaultRequest))
+				.thenReturn(htmlResponse("<h1>first</h1>"))
+				.thenReturn(htmlResponse("<h1>first</h1>"));
+		final HttpResponseWrapper first = webSurfer.surf(defaultRequest);
+		final HttpResponseWrapper second = webSurfer.surf(defaultRequest);
+
+		assertEquals(2, appended.get());
+		assertTrue(((String) first.buildResponse().getBody()).contains("visitor 1"));
+		assertTrue(((String) second.buildResponse().getBody()).contains("visitor 2"));
+	}
+
+	@Test
+	public void shouldDecodeRawBodyWithItsCharsetOnlyWhenTransformed()
+	{
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.responseHasHeaderWithValue(HttpHeaders.CONTENT_TYPE, "text/html")
+				.changeAllHtmlElements("h1", heading -> heading.text(heading.text() + "!"))
+
+				.build();
+		//@formatter: on
+
+		final byte[] image = { (byte) 0x89, 'P', 'N', 'G', (byte) 0xe9, 0 };
+		final HttpHeaders imageHeaders = new HttpHeaders();
+		imageHeaders.setContentType(MediaType.IMAGE_PNG);
+		final HttpHeaders htmlHeaders = new HttpHeaders();
+		htmlHeaders.set(HttpHeaders.CONTENT_TYPE, "text/html; charset=ISO-8859-1");
+		when(httpRequestExecutor.executeRequest(defaultRequest))
+				.thenReturn(HttpResponseWrapper.builder().headers(imageHeaders).httpStatus(HttpStatus.OK).rawBody(RawBody.of(image, imageHeaders)).build())
+				.thenReturn(HttpResponseWrapper.builder()
+						.headers(htmlHeaders)
+						.httpStatus(HttpStatus.OK)
+						.rawBody(RawBody.of("<h1>caf\u00e9</h1>".getBytes(StandardCharsets.ISO_8859_1), htmlHeaders))
+						.build());
+
+		assertSame(image, webSurfer.surf(defaultRequest).buildResponse().getBody());
+		assertEquals("caf\u00e9!", Parser.parse((String) webSurfer.surf(defaultRequest).buildResponse().getBody(), "").select("h1").text());
+	}
+
+	@Test
+	public void shouldTransformJsonBodyWhenPathMatches()
+	{
+		//@formatter: off
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.jsonPathEquals("$.user.role", "guest")
+				.removeJsonField("$.user.email")
+				.renameJsonField("$.user.name", "login")
+				.setJsonField("$.user.banner", List.of("welcome"))
+				.filterJsonArray("$.orders", order -> order.get("amount").asInt() > 10)
+
+				.build();
+		//@formatter: on
+
+		final String json = "{\"user\":{\"name\":\"john\",\"email\":\"john@example.com\",\"role\":\"guest\"},\"orders\":[{\"amount\":5},{\"amount\":15}]}";
+		when(httpRequestExecutor.executeRequest(defaultRequest))
+				.thenReturn(HttpResponseWrapper.builder().httpStatus(HttpStatus.OK).originalResponse(ResponseEntity.ok(json)).build())
+				.thenReturn(HttpResponseWrapper.builder()
+						.httpStatus(HttpStatus.OK)
+						.originalResponse(ResponseEntity.ok(json.replace("guest", "admin")))
+						.build());
+
+		final HttpResponseWrapper guestResponse = webSurfer.surf(defaultRequest);
+		final HttpResponseWrapper adminResponse = webSurfer.surf(defaultRequest);
+
+		assertEquals("{\"user\":{\"login\":\"john\",\"role\":\"guest\",\"banner\":[\"welcome\"]},\"orders\":[{\"amount\":15}]}",
+				guestResponse.buildResponse().getBody());
+		assertEquals("login", guestResponse.getJsonBody().get("user").fieldNames().next());
+		assertEquals(json.replace("guest", "admin"), adminResponse.buildResponse().getBody());
+	}
+
+	private static HttpResponseWrapper htmlResponse(final String body, final String... headers)
+	{
+		final HttpHeaders responseHeaders = new HttpHeaders();
+		for (int i = 0; i < headers.length; i += 2)
+		{
+			responseHeaders.set(headers[i], headers[i + 1]);
+		}
+		return HttpResponseWrapper.builder()
+				.headers(responseHeaders)
+				.httpStatus(HttpStatus.OK)
+				.originalResponse(ResponseEntity.ok(body))
+				.build();
+	}
+
+	@Test
+	public void shouldWriteDomBodyToStreamWithoutUnescapingMarkup() throws IOException
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.parseMediaType("text/html;charset=ISO-8859-1"));
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.changeAllHtmlElements("p.price", p -> p.text(p.text() + " \u20ac"))
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(HttpResponseWrapper.builder()
+				.headers(headers)
+				.rawBody(RawBody.of("<html><body><p class=\"price\">caf\u00e9 &lt; 3</p></body></html>".getBytes(StandardCharsets.ISO_8859_1), headers))
+				.build());
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		webSurfer.surf(defaultRequest).writeTo(out);
+
+		assertTrue(new String(out.toByteArray(), StandardCharsets.ISO_8859_1).contains("<p class=\"price\">caf\u00e9 &lt; 3 &#x20ac;</p>"));
+	}
+
+	@Test
+	public void shouldWriteJsonBodyToChannel() throws IOException
+	{
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.customResponseTransformation(response -> ((ObjectNode) response.getJsonBody()).put("added", true))
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(HttpResponseWrapper.builder()
+				.jsonBody(JsonStreamRewriter.OBJECT_MAPPER.createObjectNode().put("name", "caf\u00e9"))
+				.build());
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		webSurfer.surf(defaultRequest).writeTo(Channels.newChannel(out));
+
+		assertEquals("{\"name\":\"caf\u00e9\",\"added\":true}", out.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void shouldStreamPendingJsonTransformationsToStreamWithCharsetOfContentType() throws IOException
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.parseMediaType("application/json;charset=ISO-8859-1"));
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.setJsonField("$.name", "th\u00e9")
+				.removeJsonField("$.internal")
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(HttpResponseWrapper.builder()
+				.headers(headers)
+				.rawBody(RawBody.of("{\"name\":\"caf\u00e9\",\"internal\":1}".getBytes(StandardCharsets.ISO_8859_1), headers))
+				.build());
+
+		final HttpResponseWrapper response = webSurfer.surf(defaultRequest);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		response.writeTo(out);
+
+		assertFalse(response.isJsonBodyParsed());
+		assertEquals("{\"name\":\"th\u00e9\"}", out.toString(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void shouldWriteBodyWhichIsNotJsonAsIsWhenStreamingJsonTransformations() throws IOException
+	{
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.anyResponse()
+				.setJsonField("$.name", "tea")
+				.build();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenReturn(HttpResponseWrapper.builder()
+				.originalResponse(ResponseEntity.ok("{\"name\": <b>not json</b>"))
+				.build());
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		webSurfer.surf(defaultRequest).writeTo(out);
+
+		assertEquals("{\"name\": <b>not json</b>", out.toString(StandardCharsets.UTF_8));
+	}
 }
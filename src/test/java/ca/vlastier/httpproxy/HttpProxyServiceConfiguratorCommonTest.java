@@ -2,7 +2,16 @@ package ca.vlastier.httpproxy;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.when;
 
 public class HttpProxyServiceConfiguratorCommonTest extends HttpProxyServiceConfiguratorImplTest
 {
@@ -12,4 +21,47 @@ public class HttpProxyServiceConfiguratorCommonTest extends HttpProxyServiceConf
 		assertThrows(NullPointerException.class,
 				() -> HttpProxyService.configure(null).get().customRequestTransformation(mockRequestConsumer).build());
 	}
+
+	@Test
+	public void shouldReplaceRulesOfRunningServiceByConfiguredOnes()
+	{
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor)
+				.ruleName("old")
+				.get()
+				.customRequestTransformation(mockRequestConsumer)
+				.build();
+
+		final List<WebSurferRule> newRules = HttpProxyService.configure(httpRequestExecutor)
+				.ruleName("new")
+				.post()
+				.customRequestTransformation(mockRequestConsumer)
+				.buildRules();
+		webSurfer.replaceRules(newRules);
+
+		assertEquals(List.of("new"), webSurfer.getRules().stream().map(WebSurferRule::getName).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void shouldSurfOnVirtualThreadWhenAvailable()
+	{
+		assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21");
+		final HttpProxyService webSurfer = HttpProxyService.configure(httpRequestExecutor).virtualThreads(10).build();
+
+		final AtomicReference<Thread> surfThread = new AtomicReference<>();
+		when(httpRequestExecutor.executeRequest(defaultRequest)).thenAnswer(invocation -> {
+			surfThread.set(Thread.currentThread());
+			return defaultResponse;
+		});
+
+		assertSame(defaultResponse, webSurfer.surfAsync(defaultRequest).toCompletableFuture().join());
+		assertTrue(surfThread.get().toString().startsWith("VirtualThread"));
+	}
+
+	@Test
+	public void shouldRefuseVirtualThreadsWhenNotAvailable()
+	{
+		assumeTrue(Runtime.version().feature() < 19, "virtual threads are available");
+
+		assertThrows(UnsupportedOperationException.class, () -> HttpProxyService.configure(httpRequestExecutor).virtualThreads(10));
+	}
 }
@@ -5,6 +5,13 @@ import org.junit.jupiter.api.Test;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
@@ -298,4 +305,119 @@ public class HttpProxyServiceConfiguratorResponsePredicateTest extends HttpProxy
 		httpProxyService.surf(request);
 		verify(mockResponseConsumer, times(1)).accept(any(HttpResponseWrapper.class));
 	}
+
+	@Test
+	public void shouldEvaluateSideEffectFreeConditionsInParallelAndTransformInDeclaredOrder()
+	{
+		final ForkJoinPool pool = new ForkJoinPool(3);
+		// each condition waits for the two others: they are met only when evaluated at the same time
+		final CyclicBarrier allEvaluating = new CyclicBarrier(3);
+		final Predicate<HttpResponseWrapper> concurrentCondition = response -> {
+			try
+			{
+				allEvaluating.await(5, TimeUnit.SECONDS);
+				return true;
+			}
+			catch (final Exception e)
+			{
+				return false;
+			}
+		};
+		final List<String> transformations = new CopyOnWriteArrayList<>();
+		//@formatter:off
+		final HttpProxyService httpProxyService = HttpProxyService.configure(httpRequestExecutor)
+				.parallelResponsePredicates(pool, 3)
+				.ruleSideEffectFree()
+				.customResponseCondition(concurrentCondition)
+				.customResponseTransformation(response -> transformations.add("first"))
+
+				.hasStatus(200)
+				.customResponseTransformation(response -> transformations.add("second"))
+
+				.ruleSideEffectFree()
+				.customResponseCondition(concurrentCondition)
+				.customResponseTransformation(response -> transformations.add("third"))
+
+				.ruleSideEffectFree()
+				.customResponseCondition(concurrentCondition)
+				.customResponseTransformation(response -> transformations.add("fourth"))
+
+				.build();
+		//@formatter:on
+		when(httpRequestExecutor.executeRequest(any(HttpRequestWrapper.class))).thenReturn(
+				HttpResponseWrapper.builder().httpStatus(HttpStatus.OK).build());
+
+		httpProxyService.surf(defaultRequest);
+		pool.shutdown();
+
+		Assertions.assertEquals(List.of("first", "second", "third", "fourth"), transformations);
+	}
+
+	@Test
+	public void shouldEvaluateHeaderConditionsInParallelWithoutSharedLookup()
+	{
+		final ForkJoinPool pool = new ForkJoinPool(3);
+		final List<Boolean> lookupAttached = new CopyOnWriteArrayList<>();
+		//@formatter:off
+		final HttpProxyService httpProxyService = HttpProxyService.configure(httpRequestExecutor)
+				.parallelResponsePredicates(pool, 3)
+				.ruleSideEffectFree()
+				.responseHasHeaderWithValue("X-Cache", "hit")
+				.customResponseTransformation(mockResponseConsumer)
+
+				.ruleSideEffectFree()
+				.responseHasHeaderWithValue("X-Cache", "HIT")
+				.customResponseTransformation(mockResponseConsumer)
+
+				.ruleSideEffectFree()
+				.customResponseCondition(response -> lookupAttached.add(response.getHeaderLookup() != null))
+				.customResponseTransformation(mockResponseConsumer)
+
+				.build();
+		//@formatter:on
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set("X-Cache", "Hit");
+		when(httpRequestExecutor.executeRequest(any(HttpRequestWrapper.class))).thenReturn(
+				HttpResponseWrapper.builder().httpStatus(HttpStatus.OK).headers(headers).build());
+
+		httpProxyService.surf(defaultRequest);
+		pool.shutdown();
+
+		Assertions.assertEquals(List.of(false), lookupAttached);
+		verify(mockResponseConsumer, times(3)).accept(any(HttpResponseWrapper.class));
+	}
+
+	@Test
+	public void shouldEvaluateConditionsOnCallingThreadBelowThreshold()
+	{
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		final Thread caller = Thread.currentThread();
+		//@formatter:off
+		final HttpProxyService httpProxyService = HttpProxyService.configure(httpRequestExecutor)
+				.parallelResponsePredicates(pool, 3)
+				.ruleSideEffectFree()
+				.customResponseCondition(response -> Thread.currentThread() == caller)
+				.customResponseTransformation(mockResponseConsumer)
+
+				.ruleSideEffectFree()
+				.customResponseCondition(response -> Thread.currentThread() == caller)
+				.customResponseTransformation(mockResponseConsumer)
+
+				.build();
+		//@formatter:on
+		when(httpRequestExecutor.executeRequest(any(HttpRequestWrapper.class))).thenReturn(
+				HttpResponseWrapper.builder().httpStatus(HttpStatus.OK).build());
+
+		httpProxyService.surf(defaultRequest);
+		pool.shutdown();
+
+		verify(mockResponseConsumer, times(2)).accept(any(HttpResponseWrapper.class));
+	}
+
+	@Test
+	public void shouldRejectParallelEvaluationOfSingleRule()
+	{
+		assertThrows(IllegalArgumentException.class,
+				() -> HttpProxyService.configure(httpRequestExecutor).parallelResponsePredicates(ForkJoinPool.commonPool(), 1));
+	}
 }
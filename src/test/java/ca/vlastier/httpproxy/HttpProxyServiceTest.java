@@ -3,20 +3,37 @@ package ca.vlastier.httpproxy;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -31,6 +48,11 @@ public class HttpProxyServiceTest
 
 	@Mock
 	private HttpRequestExecutor httpRequestExecutor;
+	@Mock
+	private AsyncHttpRequestExecutor asyncHttpRequestExecutor;
+
+	@Mock
+	private HttpProxyMetrics metrics;
 
 	@Mock
 	private Predicate<HttpRequestWrapper> requestPredicate1;
@@ -78,8 +100,6 @@ public class HttpProxyServiceTest
 				.responsePredicate(responsePredicate3)
 				.responseTransformation(responseTransformation3)
 				.build();
-
-		service = new HttpProxyService(httpRequestExecutor, rules);
 	}
 
 	@Test
@@ -97,6 +117,7 @@ public class HttpProxyServiceTest
 				.headers(headers)
 				.build();
 		rules.add(rule1);
+		service = new HttpProxyService(httpRequestExecutor, rules);
 
 		when(requestPredicate1.test(request)).thenReturn(true);
 		when(responsePredicate1.test(any())).thenReturn(true);
@@ -123,6 +144,7 @@ public class HttpProxyServiceTest
 				.build();
 
 		rules.add(rule1);
+		service = new HttpProxyService(httpRequestExecutor, rules);
 
 		when(requestPredicate1.test(request)).thenReturn(true);
 		when(responsePredicate1.test(any())).thenReturn(false);
@@ -149,6 +171,7 @@ public class HttpProxyServiceTest
 				.build();
 
 		rules.add(rule1);
+		service = new HttpProxyService(httpRequestExecutor, rules);
 
 		when(requestPredicate1.test(request)).thenReturn(false);
 		service.surf(request);
@@ -158,9 +181,280 @@ public class HttpProxyServiceTest
 		verify(httpRequestExecutor).executeRequest(request);
 	}
 
+	@Test
+	public void shouldNotTestRulesExcludedByIndex()
+	{
+		when(httpRequestExecutor.executeRequest(any(HttpRequestWrapper.class))).thenReturn(new HttpResponseWrapper());
+
+		final HttpRequestWrapper request = HttpRequestWrapper.builder()
+				.method(HttpMethod.GET.name())
+				.url("https://example.com/api")
+				.build();
+
+		rule1.setRequestCriteria(new RequestMatchCriteria(List.of(HttpMethod.POST.name()), List.of(), List.of()));
+		rule2.setRequestCriteria(new RequestMatchCriteria(List.of(HttpMethod.GET.name()), List.of("^https://example\\.com/api"), List.of()));
+		rule3.setRequestCriteria(new RequestMatchCriteria(List.of(HttpMethod.GET.name()), List.of("^https://example\\.com/other"), List.of()));
+		rules.addAll(List.of(rule1, rule2, rule3));
+		service = new HttpProxyService(httpRequestExecutor, rules);
+
+		when(requestPredicate2.test(request)).thenReturn(true);
+		service.surf(request);
+
+		verify(requestPredicate1, never()).test(any());
+		verify(requestPredicate3, never()).test(any());
+		verify(requestTransformation2).accept(request);
+	}
+
+	@Test
+	public void shouldApplyResponseTransformationsWhenAsyncRequestCompletes()
+	{
+		final CompletableFuture<HttpResponseWrapper> upstreamResponse = new CompletableFuture<>();
+		when(asyncHttpRequestExecutor.executeRequestAsync(any(HttpRequestWrapper.class))).thenReturn(upstreamResponse);
+
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		rules.add(rule1);
+		service = new HttpProxyService(asyncHttpRequestExecutor, rules);
+
+		when(requestPredicate1.test(request)).thenReturn(true);
+		when(responsePredicate1.test(any())).thenReturn(true);
+		final CompletableFuture<HttpResponseWrapper> result = service.surfAsync(request).toCompletableFuture();
+
+		verify(requestTransformation1).accept(request);
+		verify(responseTransformation1, never()).accept(any());
+		assertFalse(result.isDone());
+
+		final HttpResponseWrapper response = new HttpResponseWrapper();
+		upstreamResponse.complete(response);
+
+		verify(responseTransformation1).accept(response);
+		assertSame(response, result.join());
+	}
+
+	@Test
+	public void shouldStreamResponseWhenNoResponseTransformationCanApply()
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		final HttpProxyServiceSettings settings = HttpProxyServiceSettings.builder().passthroughUntransformedResponses(true).build();
+		rule1.setResponseTransformation(null);
+		rules.addAll(List.of(rule1, rule2));
+		service = new HttpProxyService(httpRequestExecutor, rules, settings);
+
+		when(httpRequestExecutor.executeRequestStreaming(request)).thenReturn(new HttpResponseWrapper());
+		when(requestPredicate1.test(request)).thenReturn(true);
+		when(requestPredicate2.test(request)).thenReturn(false);
+		service.surf(request);
+
+		verify(httpRequestExecutor).executeRequestStreaming(request);
+		verify(httpRequestExecutor, never()).executeRequest(any());
+
+		when(httpRequestExecutor.executeRequest(request)).thenReturn(new HttpResponseWrapper());
+		when(requestPredicate2.test(request)).thenReturn(true);
+		service.surf(request);
+
+		verify(httpRequestExecutor).executeRequest(request);
+	}
+
+	@Test
+	public void shouldRecordRuleMetrics()
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		final HttpProxyServiceSettings settings = HttpProxyServiceSettings.builder().metrics(metrics).build();
+		rule1.setName("rule1");
+		rule2.setName("rule2");
+		rules.addAll(List.of(rule1, rule2));
+		service = new HttpProxyService(httpRequestExecutor, rules, settings);
+
+		when(httpRequestExecutor.executeRequest(request)).thenReturn(new HttpResponseWrapper());
+		when(requestPredicate1.test(request)).thenReturn(true);
+		when(requestPredicate2.test(request)).thenReturn(false);
+		when(responsePredicate1.test(any())).thenReturn(true);
+		service.surf(request);
+
+		verify(metrics).requestPredicateEvaluated("rule1", true);
+		verify(metrics).requestPredicateEvaluated("rule2", false);
+		verify(metrics).responsePredicateEvaluated("rule1", true);
+		verify(metrics).requestTransformationExecuted(eq("rule1"), anyLong());
+		verify(metrics).responseTransformationExecuted(eq("rule1"), anyLong());
+		verify(metrics).upstreamRequestExecuted(eq(request), anyLong(), eq(false));
+		verifyNoMoreInteractions(metrics);
+	}
+
+	@Test
+	public void shouldCountPostponedHtmlChangesInTheTimeOfTheRuleWhichAddedThem()
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		final HttpProxyServiceSettings settings = HttpProxyServiceSettings.builder().metrics(metrics).build();
+		rule1.setName("rule1");
+		rule2.setName("rule2");
+		rules.addAll(List.of(rule1, rule2));
+		service = new HttpProxyService(httpRequestExecutor, rules, settings);
+
+		final HttpResponseWrapper response = HttpResponseWrapper.builder()
+				.originalResponse(ResponseEntity.ok("<html><body><a href='/home'>home</a></body></html>"))
+				.build();
+		when(httpRequestExecutor.executeRequest(request)).thenReturn(response);
+		when(requestPredicate1.test(request)).thenReturn(true);
+		when(requestPredicate2.test(request)).thenReturn(true);
+		when(responsePredicate1.test(any())).thenReturn(true);
+		when(responsePredicate2.test(any())).thenReturn(true);
+		doAnswer(invocation -> {
+			response.postponeHtmlTransformation(new HtmlStreamRewriter.ChangeElements("a", link -> true, link -> {
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				link.attr("href", "/changed");
+			}, false, false));
+			return null;
+		}).when(responseTransformation1).accept(response);
+		// the second rule asks for the document, to which the change postponed by the first rule is applied then
+		doAnswer(invocation -> {
+			assertEquals("/changed", response.getDomBody().selectFirst("a").attr("href"));
+			return null;
+		}).when(responseTransformation2).accept(response);
+		service.surf(request);
+
+		final ArgumentCaptor<Long> rule1Nanos = ArgumentCaptor.forClass(Long.class);
+		final ArgumentCaptor<Long> rule2Nanos = ArgumentCaptor.forClass(Long.class);
+		verify(metrics).responseTransformationExecuted(eq("rule1"), rule1Nanos.capture());
+		verify(metrics).responseTransformationExecuted(eq("rule2"), rule2Nanos.capture());
+		assertTrue(rule1Nanos.getValue() >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(rule2Nanos.getValue() < TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	@Test
+	public void shouldRecordFailedUpstreamRequest()
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		final HttpProxyServiceSettings settings = HttpProxyServiceSettings.builder().metrics(metrics).build();
+		service = new HttpProxyService(httpRequestExecutor, rules, settings);
+
+		when(httpRequestExecutor.executeRequest(request)).thenThrow(new IllegalStateException("upstream is down"));
+
+		assertThrows(IllegalStateException.class, () -> service.surf(request));
+		verify(metrics).upstreamRequestExecuted(eq(request), anyLong(), eq(true));
+	}
+
+	@Test
+	public void shouldApplyReplacedRulesToNextRequests()
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		rule1.setName("rule1");
+		rules.add(rule1);
+		service = new HttpProxyService(httpRequestExecutor, rules);
+
+		when(httpRequestExecutor.executeRequest(request)).thenReturn(new HttpResponseWrapper());
+		when(requestPredicate2.test(request)).thenReturn(true);
+		when(responsePredicate2.test(any())).thenReturn(true);
+		service.addRules(List.of(rule2));
+		service.removeRules("rule1");
+		service.surf(request);
+
+		assertEquals(List.of(rule2), service.getRules());
+		verify(requestPredicate1, never()).test(any());
+		verify(requestTransformation2).accept(request);
+		verify(responseTransformation2).accept(any());
+	}
+
+	@Test
+	public void shouldKeepRulesOfRequestInProgressWhenRulesAreReplaced()
+	{
+		final CompletableFuture<HttpResponseWrapper> upstreamResponse = new CompletableFuture<>();
+		when(asyncHttpRequestExecutor.executeRequestAsync(any(HttpRequestWrapper.class))).thenReturn(upstreamResponse);
+
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		rules.add(rule1);
+		service = new HttpProxyService(asyncHttpRequestExecutor, rules);
+
+		when(requestPredicate1.test(request)).thenReturn(true);
+		when(responsePredicate1.test(any())).thenReturn(true);
+		final CompletableFuture<HttpResponseWrapper> result = service.surfAsync(request).toCompletableFuture();
+
+		service.replaceRules(List.of(rule2));
+		upstreamResponse.complete(new HttpResponseWrapper());
+		result.join();
+
+		verify(responseTransformation1).accept(any());
+		verify(requestPredicate2, never()).test(any());
+		verify(responseTransformation2, never()).accept(any());
+	}
+
+	@Test
+	public void shouldSurfOnSurfExecutorWithinConcurrencyLimit() throws InterruptedException
+	{
+		final HttpRequestWrapper request = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build();
+		final ExecutorService surfExecutor = Executors.newFixedThreadPool(2);
+		final HttpProxyServiceSettings settings = HttpProxyServiceSettings.builder().surfExecutor(surfExecutor).maxConcurrentRequests(1).build();
+		service = new HttpProxyService(httpRequestExecutor, rules, settings);
+
+		final Thread testThread = Thread.currentThread();
+		final CountDownLatch firstRequestStarted = new CountDownLatch(1);
+		final CountDownLatch upstreamResponds = new CountDownLatch(1);
+		when(httpRequestExecutor.executeRequest(request)).thenAnswer(invocation -> {
+			assertNotSame(testThread, Thread.currentThread());
+			firstRequestStarted.countDown();
+			upstreamResponds.await();
+			return new HttpResponseWrapper();
+		});
+
+		try
+		{
+			final CompletableFuture<HttpResponseWrapper> first = service.surfAsync(request).toCompletableFuture();
+			final CompletableFuture<HttpResponseWrapper> second = service.surfAsync(request).toCompletableFuture();
+			firstRequestStarted.await();
+			Thread.sleep(100);
+
+			verify(httpRequestExecutor, times(1)).executeRequest(request);
+			upstreamResponds.countDown();
+			first.join();
+			second.join();
+			verify(httpRequestExecutor, times(2)).executeRequest(request);
+		}
+		finally
+		{
+			surfExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldApplyOwnRulesToRequestSurfedByTransformation()
+	{
+		final HttpRequestWrapper outerRequest = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("outer").build();
+		final HttpRequestWrapper innerRequest = HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("inner").build();
+		rules.add(rule1);
+		rules.add(rule2);
+		service = new HttpProxyService(httpRequestExecutor, rules);
+
+		final HttpResponseWrapper outerResponse = new HttpResponseWrapper();
+		final HttpResponseWrapper innerResponse = new HttpResponseWrapper();
+		when(httpRequestExecutor.executeRequest(outerRequest)).thenReturn(outerResponse);
+		when(httpRequestExecutor.executeRequest(innerRequest)).thenReturn(innerResponse);
+		when(requestPredicate1.test(outerRequest)).thenReturn(true);
+		when(requestPredicate1.test(innerRequest)).thenReturn(false);
+		when(requestPredicate2.test(outerRequest)).thenReturn(false);
+		when(requestPredicate2.test(innerRequest)).thenReturn(true);
+		when(responsePredicate1.test(outerResponse)).thenReturn(true);
+		when(responsePredicate2.test(innerResponse)).thenReturn(true);
+		// the outer call is still surfing on this thread while the inner one is
+		doAnswer(invocation -> service.surf(innerRequest)).when(requestTransformation1).accept(outerRequest);
+
+		assertSame(outerResponse, service.surf(outerRequest));
+
+		verify(requestTransformation2).accept(innerRequest);
+		verify(responseTransformation2).accept(innerResponse);
+		verify(responseTransformation1).accept(outerResponse);
+		verify(responseTransformation1, never()).accept(innerResponse);
+		verify(responseTransformation2, never()).accept(outerResponse);
+	}
+
 	@Test
 	public void shouldThrowExceptionWhenCalledWithNulls()
 	{
+		service = new HttpProxyService(httpRequestExecutor, rules);
 		assertThrows(NullPointerException.class, () -> service.surf(null));
 	}
 }
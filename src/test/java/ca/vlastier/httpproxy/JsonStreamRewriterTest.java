@@ -0,0 +1,114 @@
+package ca.vlastier.httpproxy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JsonStreamRewriterTest
+{
+	private static final String JSON = "{\"user\":{\"name\":\"john\",\"password\":\"secret\"},"
+			+ "\"items\":[{\"id\":1,\"price\":10,\"hidden\":false},{\"id\":2,\"price\":20,\"hidden\":true},{\"id\":3,\"price\":30,\"hidden\":false}],"
+			+ "\"total\":60}";
+
+	@Test
+	public void shouldCopyUntouchedDocumentAsIs()
+	{
+		final JsonStreamRewriter rewriter = new JsonStreamRewriter();
+		rewriter.add(new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse("$.missing.field")));
+
+		assertEquals(JSON, rewriter.rewrite(response(JSON)));
+	}
+
+	@Test
+	public void shouldSetRemoveAndRenameFields()
+	{
+		final JsonStreamRewriter rewriter = new JsonStreamRewriter();
+		rewriter.add(new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse("$.user.password")));
+		rewriter.add(new JsonStreamRewriter.RenameField(JsonStreamRewriter.Path.parse("user.name"), "login"));
+		rewriter.add(new JsonStreamRewriter.SetValue(JsonStreamRewriter.Path.parse("$.user.role"), JsonStreamRewriter.toJsonNode("admin")));
+		rewriter.add(new JsonStreamRewriter.SetValue(JsonStreamRewriter.Path.parse("$.total"), JsonStreamRewriter.toJsonNode(0)));
+		rewriter.add(new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse("$.items[*].hidden")));
+
+		assertEquals("{\"user\":{\"login\":\"john\",\"role\":\"admin\"},"
+				+ "\"items\":[{\"id\":1,\"price\":10},{\"id\":2,\"price\":20},{\"id\":3,\"price\":30}],\"total\":0}", rewriter.rewrite(response(JSON)));
+	}
+
+	@Test
+	public void shouldFilterArrayAndTransformKeptElements()
+	{
+		final JsonStreamRewriter rewriter = new JsonStreamRewriter();
+		rewriter.add(new JsonStreamRewriter.FilterArray(JsonStreamRewriter.Path.parse("$.items"), item -> !item.get("hidden").asBoolean()));
+		rewriter.add(new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse("$.items[*].hidden")));
+		rewriter.add(new JsonStreamRewriter.SetValue(JsonStreamRewriter.Path.parse("$.items[2].price"), JsonStreamRewriter.toJsonNode(25)));
+
+		final JsonNode result = rewriter.parse(response(JSON));
+
+		assertEquals(2, result.get("items").size());
+		assertEquals("{\"id\":1,\"price\":10}", result.get("items").get(0).toString());
+		// indexes refer to the upstream array
+		assertEquals("{\"id\":3,\"price\":25}", result.get("items").get(1).toString());
+	}
+
+	@Test
+	public void shouldApplyOperationsToParsedDocumentWithoutModifyingIt()
+	{
+		final JsonNode document = JsonStreamRewriter.toJsonNode(JsonStreamRewriter.OBJECT_MAPPER.createObjectNode().put("a", 1));
+		final JsonStreamRewriter rewriter = new JsonStreamRewriter();
+		rewriter.add(new JsonStreamRewriter.RenameField(JsonStreamRewriter.Path.parse("a"), "b"));
+
+		assertEquals("{\"b\":1}", rewriter.applyTo(document).toString());
+		assertEquals("{\"a\":1}", document.toString());
+	}
+
+	@Test
+	public void shouldLeaveInvalidJsonUnchanged()
+	{
+		final JsonStreamRewriter rewriter = new JsonStreamRewriter();
+		rewriter.add(new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse("$.a")));
+
+		assertEquals("<html>not json</html>", rewriter.rewrite(response("<html>not json</html>")));
+	}
+
+	@Test
+	public void shouldFindValuesAtPath()
+	{
+		final HttpResponseWrapper response = response(JSON);
+
+		assertTrue(JsonStreamRewriter.anyValueMatches(response, JsonStreamRewriter.Path.parse("$.user.name"),
+				value -> JsonStreamRewriter.jsonEquals(value, JsonStreamRewriter.toJsonNode("john"))));
+		assertTrue(JsonStreamRewriter.anyValueMatches(response, JsonStreamRewriter.Path.parse("$.items[*].price"),
+				value -> JsonStreamRewriter.jsonEquals(value, JsonStreamRewriter.toJsonNode(20.0))));
+		assertFalse(JsonStreamRewriter.anyValueMatches(response, JsonStreamRewriter.Path.parse("$.items[0].price"),
+				value -> JsonStreamRewriter.jsonEquals(value, JsonStreamRewriter.toJsonNode(20))));
+		assertFalse(JsonStreamRewriter.anyValueMatches(response(""), JsonStreamRewriter.Path.parse("$.user"), value -> true));
+	}
+
+	@Test
+	public void shouldRejectInvalidPaths()
+	{
+		assertThrows(IllegalArgumentException.class, () -> JsonStreamRewriter.Path.parse("$.items[x]"));
+		assertThrows(IllegalArgumentException.class, () -> JsonStreamRewriter.Path.parse("$..a"));
+		assertThrows(IllegalArgumentException.class, () -> new JsonStreamRewriter.RenameField(JsonStreamRewriter.Path.parse("$.items[0]"), "b"));
+		assertThrows(IllegalArgumentException.class, () -> new JsonStreamRewriter.RemoveValue(JsonStreamRewriter.Path.parse("$")));
+	}
+
+	private static HttpResponseWrapper response(final String body)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return HttpResponseWrapper.builder()
+				.headers(headers)
+				.httpStatus(HttpStatus.OK)
+				.rawBody(RawBody.of(body.getBytes(StandardCharsets.UTF_8), headers))
+				.build();
+	}
+}
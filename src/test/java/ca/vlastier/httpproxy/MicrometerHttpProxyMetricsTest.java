@@ -0,0 +1,42 @@
+package ca.vlastier.httpproxy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MicrometerHttpProxyMetricsTest
+{
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final MicrometerHttpProxyMetrics metrics = new MicrometerHttpProxyMetrics(registry);
+
+	@Test
+	public void shouldCountPredicateEvaluationsAndHitsPerRule()
+	{
+		metrics.requestPredicateEvaluated("rule1", true);
+		metrics.requestPredicateEvaluated("rule1", false);
+		metrics.requestPredicateEvaluated("rule2", false);
+		metrics.responsePredicateEvaluated("rule1", true);
+
+		assertEquals(2, registry.get("httpproxy.rule.predicate.evaluations").tags("rule", "rule1", "phase", "request").counter().count());
+		assertEquals(1, registry.get("httpproxy.rule.predicate.hits").tags("rule", "rule1", "phase", "request").counter().count());
+		assertEquals(1, registry.get("httpproxy.rule.predicate.evaluations").tags("rule", "rule2", "phase", "request").counter().count());
+		assertEquals(0, registry.get("httpproxy.rule.predicate.hits").tags("rule", "rule2", "phase", "request").counter().count());
+		assertEquals(1, registry.get("httpproxy.rule.predicate.hits").tags("rule", "rule1", "phase", "response").counter().count());
+	}
+
+	@Test
+	public void shouldTimeTransformationsAndUpstreamRequests()
+	{
+		metrics.responseTransformationExecuted("rule1", TimeUnit.MILLISECONDS.toNanos(3));
+		metrics.responseTransformationExecuted("rule1", TimeUnit.MILLISECONDS.toNanos(5));
+		metrics.upstreamRequestExecuted(HttpRequestWrapper.builder().method(HttpMethod.GET.name()).url("url").build(), TimeUnit.MILLISECONDS.toNanos(7), true);
+
+		assertEquals(2, registry.get("httpproxy.rule.transformation").tags("rule", "rule1", "phase", "response").timer().count());
+		assertEquals(8, registry.get("httpproxy.rule.transformation").tags("rule", "rule1", "phase", "response").timer().totalTime(TimeUnit.MILLISECONDS));
+		assertEquals(7, registry.get("httpproxy.upstream").tags("method", "GET", "outcome", "error").timer().totalTime(TimeUnit.MILLISECONDS));
+	}
+}
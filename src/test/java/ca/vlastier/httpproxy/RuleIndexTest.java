@@ -0,0 +1,100 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class RuleIndexTest
+{
+	@Test
+	public void shouldExtractLiteralPrefixOfAnchoredPattern()
+	{
+		assertEquals("https://example.com/api", RuleIndex.literalPrefix("^https://example\\.com/api"));
+		assertEquals("https://example.com/", RuleIndex.literalPrefix("^\\Qhttps://example.com/\\E.*"));
+		assertEquals("https://example", RuleIndex.literalPrefix("^https://example.com/api"));
+		assertEquals("http", RuleIndex.literalPrefix("^https?://example"));
+		assertEquals("http://a/b", RuleIndex.literalPrefix("^http://a/b+"));
+		assertEquals("", RuleIndex.literalPrefix("^(?i)http://a/"));
+		assertNull(RuleIndex.literalPrefix("http://a/"));
+		assertNull(RuleIndex.literalPrefix("^http://a/|http://b/"));
+	}
+
+	@Test
+	public void shouldReturnCandidatesInDeclaredOrder()
+	{
+		final List<WebSurferRule> rules = List.of(
+				rule(null),
+				rule(criteria(List.of("GET"), List.of("^https://a\\.com/api"))),
+				rule(criteria(List.of("GET"), List.of("^https://b\\.com/"))),
+				rule(criteria(List.of("POST"), List.of())),
+				rule(criteria(List.of(), List.of("api"))),
+				rule(criteria(List.of("GET"), List.of("^/relative"))));
+		final RuleIndex index = new RuleIndex(rules);
+
+		assertEquals(bits(0, 1, 4), index.candidates(request("GET", "https://a.com/api/users")));
+		assertEquals(bits(0), index.candidates(request("GET", "https://a.com/other")));
+		assertEquals(bits(0, 4), index.candidates(request("GET", "https://a.com.evil.org/api")));
+		assertEquals(bits(0, 2), index.candidates(request("GET", "https://b.com/")));
+		assertEquals(bits(0, 3, 4), index.candidates(request("POST", "https://a.com/api")));
+		assertEquals(bits(0, 5), index.candidates(request("GET", "/relative/path")));
+		assertEquals(bits(0), index.candidates(request(null, null)));
+	}
+
+	@Test
+	public void shouldFilterNotIndexedPatternsByRequiredLiteral()
+	{
+		final List<WebSurferRule> rules = List.of(
+				rule(criteria(List.of("GET"), List.of("example\\.com/shop"))),
+				rule(criteria(List.of("POST"), List.of("/checkout"))),
+				rule(criteria(List.of(), List.of("/images/.*\\.(png|jpe?g)$"))),
+				rule(criteria(List.of(), List.of("[0-9]+"))));
+		final RuleIndex index = new RuleIndex(rules);
+
+		assertEquals(bits(0, 3), index.candidates(request("GET", "https://www.example.com/shop/checkout")));
+		assertEquals(bits(1, 3), index.candidates(request("POST", "https://www.example.com/shop/checkout")));
+		assertEquals(bits(2, 3), index.candidates(request("GET", "https://cdn.org/images/logo.png")));
+	}
+
+	@Test
+	public void shouldNotTakeEscapedCharactersForRequiredLiterals()
+	{
+		final List<WebSurferRule> rules = List.of(
+				rule(criteria(List.of("GET"), List.of("/\\x41pi/v1"))),
+				rule(criteria(List.of("GET"), List.of("/\\u0061pi/v1"))),
+				rule(criteria(List.of("GET"), List.of("/\\0141pi/v1"))),
+				rule(criteria(List.of("GET"), List.of("/\\cApi/v1"))));
+		final RuleIndex index = new RuleIndex(rules);
+
+		assertEquals(bits(0, 1, 2, 3), index.candidates(request("GET", "http://h/Api/v1")));
+		assertEquals(bits(), index.candidates(request("GET", "http://h/41pi/v2")));
+	}
+
+	private static WebSurferRule rule(final RequestMatchCriteria criteria)
+	{
+		return WebSurferRule.builder().requestPredicate(req -> true).requestCriteria(criteria).build();
+	}
+
+	private static RequestMatchCriteria criteria(final List<String> methods, final List<String> urlPatterns)
+	{
+		return new RequestMatchCriteria(methods, urlPatterns, List.of());
+	}
+
+	private static HttpRequestWrapper request(final String method, final String url)
+	{
+		return HttpRequestWrapper.builder().method(method).url(url).build();
+	}
+
+	private static BitSet bits(final int... positions)
+	{
+		final BitSet bitSet = new BitSet();
+		for (final int position : positions)
+		{
+			bitSet.set(position);
+		}
+		return bitSet;
+	}
+}
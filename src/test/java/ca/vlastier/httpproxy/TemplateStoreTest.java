@@ -0,0 +1,70 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TemplateStoreTest
+{
+	@TempDir
+	Path directory;
+
+	private final TemplateStore store = new TemplateStore();
+
+	@AfterEach
+	public void tearDown()
+	{
+		store.close();
+	}
+
+	@Test
+	public void shouldReadTemplateOnce() throws IOException
+	{
+		final Path file = write("banner.html", "<b>Hello %username%</b>");
+
+		final Template template = store.get(file);
+
+		assertSame(template, store.get(file.toString()));
+		assertEquals("<b>Hello bob</b>", store.render(file.toString(), Map.of("username", "bob")));
+	}
+
+	@Test
+	public void shouldReloadTemplateWhenFileChanges() throws Exception
+	{
+		final Path file = write("banner.html", "<b>first</b>");
+		assertEquals("<b>first</b>", store.get(file).getText());
+
+		write("banner.html", "<b>second</b>");
+
+		final long deadline = System.currentTimeMillis() + 10_000;
+		while (!"<b>second</b>".equals(store.get(file).getText()) && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(20);
+		}
+		assertEquals("<b>second</b>", store.get(file).getText());
+	}
+
+	@Test
+	public void shouldFailWithFileNameWhenTemplateIsMissing()
+	{
+		final UncheckedIOException error = assertThrows(UncheckedIOException.class, () -> store.get(directory.resolve("missing.html")));
+
+		assertEquals("template can't be read from " + directory.resolve("missing.html"), error.getMessage());
+	}
+
+	private Path write(final String name, final String content) throws IOException
+	{
+		return Files.writeString(directory.resolve(name), content, StandardCharsets.UTF_8);
+	}
+}
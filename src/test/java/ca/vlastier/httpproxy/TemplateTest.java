@@ -0,0 +1,47 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TemplateTest
+{
+	@Test
+	public void shouldReplaceNamedPlaceholders()
+	{
+		final Template template = Template.compile("<p>Hello %username%, %count% new messages for %username%</p>");
+
+		assertEquals(Set.of("username", "count"), template.getPlaceholders());
+		assertEquals("<p>Hello bob, 3 new messages for bob</p>", template.render(Map.of("username", "bob", "count", 3)));
+	}
+
+	@Test
+	public void shouldKeepPercentSignsWhichAreNotPlaceholders()
+	{
+		final Template template = Template.compile("right: 50%%; top: 10%; width: 5% of %total-width%%%");
+
+		assertEquals("right: 50%; top: 10%; width: 5% of 300px%", template.render(Map.of("total-width", "300px")));
+	}
+
+	@Test
+	public void shouldReturnSameTextWhenThereIsNoPlaceholder()
+	{
+		final Template template = Template.compile("<b>banner</b>");
+
+		assertSame(template.render(Map.of()), template.render(Map.of()));
+		assertEquals("<b>banner</b>", template.render(Map.of()));
+	}
+
+	@Test
+	public void shouldFailWhenPlaceholderHasNoValue()
+	{
+		final Template template = Template.compile("Hello %username%");
+
+		assertThrows(IllegalArgumentException.class, () -> template.render(Map.of("name", "bob")));
+	}
+}
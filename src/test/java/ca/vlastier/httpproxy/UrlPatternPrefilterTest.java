@@ -0,0 +1,58 @@
+package ca.vlastier.httpproxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class UrlPatternPrefilterTest
+{
+	@Test
+	public void shouldExtractLongestRequiredLiteral()
+	{
+		assertEquals("example.com/shop", UrlPatternPrefilter.requiredLiteral("example\\.com/shop"));
+		assertEquals("/checkout/", UrlPatternPrefilter.requiredLiteral("^https?://[a-z.]+/checkout/\\d+"));
+		assertEquals(".example.org/static/", UrlPatternPrefilter.requiredLiteral("(www|cdn)\\.example\\.org/static/.*"));
+		assertEquals("api/v", UrlPatternPrefilter.requiredLiteral("api/v[0-9]+/users?"));
+		assertEquals("items", UrlPatternPrefilter.requiredLiteral("\\Qitems\\E[?]"));
+		assertEquals("aaa", UrlPatternPrefilter.requiredLiteral("aaa+b*"));
+		assertNull(UrlPatternPrefilter.requiredLiteral("(?i)example"));
+		assertNull(UrlPatternPrefilter.requiredLiteral("shop|store"));
+		assertNull(UrlPatternPrefilter.requiredLiteral(".*\\d+"));
+		assertEquals("pi/v1", UrlPatternPrefilter.requiredLiteral("\\x41pi/v1"));
+		assertEquals("/v1", UrlPatternPrefilter.requiredLiteral("\\x{41}\\u0061\\0141/v1"));
+		assertEquals("1/v1", UrlPatternPrefilter.requiredLiteral("\\cA1/v1"));
+		assertEquals("/v", UrlPatternPrefilter.requiredLiteral("([a-z])\\k<name>/v"));
+		assertEquals("1api", UrlPatternPrefilter.requiredLiteral("\\p{Alpha}\\pL1api"));
+		assertEquals("/v", UrlPatternPrefilter.requiredLiteral("(a)\\12/v"));
+	}
+
+	@Test
+	public void shouldFindAllLiteralsInOnePass()
+	{
+		final UrlPatternPrefilter prefilter = new UrlPatternPrefilter.Builder()
+				.add("example.com", 0)
+				.add("shop", 1)
+				.add("hop", 2)
+				.add("/shopping", 3)
+				.add("example.com", 4)
+				.build();
+
+		assertEquals(bits(0, 1, 2, 4), prefilter.match("https://example.com/shop/item"));
+		assertEquals(bits(1, 2, 3), prefilter.match("https://other.org/shopping"));
+		assertEquals(bits(2), prefilter.match("/hop"));
+		assertEquals(bits(), prefilter.match("https://example.org/"));
+	}
+
+	private static BitSet bits(final int... positions)
+	{
+		final BitSet bitSet = new BitSet();
+		for (final int position : positions)
+		{
+			bitSet.set(position);
+		}
+		return bitSet;
+	}
+}